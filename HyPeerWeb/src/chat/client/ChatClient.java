@@ -456,7 +456,7 @@ public class ChatClient extends JFrame{
 				ChatServer.className, "sendMessage",
 				new String[]{"int", "int", "java.lang.String"},
 				new Object[]{userID, recipientID, message}
-			);
+			).setPriority(Command.Priority.DATA);
 			Communicator.request(server, sender, false);
 		}
 	}
@@ -72,8 +72,10 @@ public class ChatServer implements Serializable{
 					users = db.users;
 					clients = db.clients;
 					dbName = db.dbName;
-					segment = SegmentDB.load(dbName);
+					//Set the UID counter first; replaying the log may add nodes
 					Communicator.setId(db.globalUID);					
+					segment = SegmentDB.load(dbName);
+					//The segment keeps its UID when it's loaded, so the saved links are still its own
 					segment.L = db.links;
 					cache = new SegmentCache();
 					
@@ -482,32 +484,32 @@ public class ChatServer implements Serializable{
 			syncResults.add(req);
 		}
 		
-		//Retrieve all dirty nodes
-		ArrayList<NodeCache> clean = new ArrayList();
-		NodeListener retrieve = new NodeListener(
-			className, "_syncCache_send",
-			new String[]{RemoteAddress.className, "[I", "int"},
-			new Object[]{Communicator.getAddress(), null, request_id}
-		);
+		//Retrieve all dirty nodes; one multicast reaches every segment
+		int[] netIDs = new int[numGroups];
+		Object[] dirtyLists = new Object[numGroups];
+		int g = 0;
 		for (Entry<Integer, ArrayList<Integer>> entry: grouped.entrySet()){
 			//Convert parameters
 			ArrayList<Integer> lst = entry.getValue();
-			int netID = entry.getKey();
 			int[] dirty = new int[lst.size()];
 			for (int i=0, l=lst.size(); i<l; i++)
 				dirty[i] = lst.get(i).intValue();
-			//Execute the retrieval command
-			retrieve.setBaseParameter(1, dirty);
-			SendVisitor visitor = new SendVisitor(netID, retrieve);
-			visitor.visit(segment);
+			netIDs[g] = entry.getKey();
+			dirtyLists[g++] = dirty;
 		}
-		
+		//Execute the retrieval command
+		NodeListener retrieve = new NodeListener(
+			className, "_syncCache_send",
+			new String[]{RemoteAddress.className, "int"},
+			new Object[]{Communicator.getAddress(), request_id}
+		);
+		new MulticastVisitor(netIDs, dirtyLists, retrieve).visit(segment);
 	}
-	protected static void _syncCache_send(Node n, RemoteAddress origin, int[] dirty, int request_id){
+	protected static void _syncCache_send(Node n, Object dirty, RemoteAddress origin, int request_id){
 		Communicator.request(origin, new Command(
 			className, "_syncCache_retrieve",
 			new String[]{SegmentCache.nodeClassNameArr, "int"},
-			new Object[]{segment.getCache(dirty), request_id}
+			new Object[]{segment.getCache((int[]) dirty), request_id}
 		), false);
 	}
 	protected static void _syncCache_retrieve(NodeCache[] clean, int request_id){
@@ -570,22 +572,24 @@ public class ChatServer implements Serializable{
 	public static void sendMessage(int senderID, int recipientID, String message){
 		if (recipientID == -1){
 			//Public message
-			new BroadcastVisitor(new NodeListener(
+			NodeListener sender = new NodeListener(
 				ChatServer.className, "_sendMessagePublic",
 				new String[]{"int", "java.lang.String"},
 				new Object[]{senderID, message}
-			)).visit(segment);
+			);
+			sender.setPriority(Command.Priority.DATA);
+			new BroadcastVisitor(sender).visit(segment);
 		}
 		else{
-			//Private message
-			new SendVisitor(
-				users.get(recipientID).networkID, false,
-				new NodeListener(
-					ChatServer.className, "_sendMessagePrivate",
-					new String[]{"int", "int", "java.lang.String"},
-					new Object[]{senderID, recipientID, message}
-				)
-			).visit(segment);
+			//Private message; the segment remembers where the recipient's
+			//segment is, so repeat messages go there directly
+			NodeListener sender = new NodeListener(
+				ChatServer.className, "_sendMessagePrivate",
+				new String[]{"int", "int", "java.lang.String"},
+				new Object[]{senderID, recipientID, message}
+			);
+			sender.setPriority(Command.Priority.DATA);
+			segment.getSegment(users.get(recipientID).networkID, false, sender);
 		}
 	}
 	protected static void _sendMessagePublic(Node n, int senderID, String message){
@@ -614,11 +618,13 @@ public class ChatServer implements Serializable{
 	 * @param name new name for this user (null to remove user)
 	 */
 	public static void updateUser(int userid, String username, int networkid){
-		new BroadcastVisitor(new NodeListener(
+		NodeListener updater = new NodeListener(
 			ChatServer.className, "_updateUser",
 			new String[]{"int", "java.lang.String", "int"},
 			new Object[]{userid, username, networkid}
-		)).visit(segment);
+		);
+		updater.setPriority(Command.Priority.DATA);
+		new BroadcastVisitor(updater).visit(segment);
 	}
 	protected static void _updateUser(Node n, int userid, String username, int networkid){
 		ChatUser user = users.get(userid);
@@ -11,8 +11,21 @@ import java.util.Arrays;
  * Implements the Command pattern in such a way that the command can be sent over a socket.
  * @author Scott Woodfield
  */
-public class Command implements Serializable{
+public class Command implements Serializable, Cloneable{
 	public static final String className = Command.class.getName();
+	/**
+	 * Scheduling class of a command; control-plane commands (which keep the
+	 * HyPeerWeb's structure consistent) run on a separate executor from
+	 * data-plane commands (e.g. chat traffic), so a burst of one can't delay the other
+	 */
+	public static enum Priority {CONTROL, DATA}
+	//Priority of the command this thread is executing; new commands inherit it
+	private static final ThreadLocal<Priority> current = new ThreadLocal<Priority>(){
+		@Override
+		protected Priority initialValue(){
+			return Priority.CONTROL;
+		}
+	};
 	//The class in which the method is defined.
 	protected final String clazz;
 	//The name of the method to be invoked.
@@ -30,6 +43,8 @@ public class Command implements Serializable{
 	protected int addedParamCount = 0;
 	//Remote address, if we want to override the address given by Communicator.request(addr, ...)
 	protected RemoteAddress origin;
+	//Which executor runs this command, when it arrives from another machine
+	protected Priority priority = current.get();
 	
 	/**
 	 * Create a command object with no parameters
@@ -120,7 +135,14 @@ public class Command implements Serializable{
 				if (target == null)
 					System.err.println("Failed to resolve UID for remote object: "+targetClass+": "+UID);
 			}
-			return method.invoke(target, paramVals_lst.toArray(new Object[l]));
+			//Commands sent while executing this one get the same priority
+			Priority outer = current.get();
+			current.set(priority);
+			try{
+				return method.invoke(target, paramVals_lst.toArray(new Object[l]));
+			} finally{
+				current.set(outer);
+			}
 		} catch (Exception e){
 			System.err.println("Command: Failed to execute "+clazz+"."+methodName);
 			if (e.getCause() != null)
@@ -139,6 +161,23 @@ public class Command implements Serializable{
 			return e;
 		}
 	}
+	/**
+	 * Copies this command, so the copy's parameters can be changed (e.g. by
+	 * NodeListener.callback) without affecting the original; useful if the
+	 * command is executed on many threads at once. Parameter values are not copied
+	 * @return a copy of this command
+	 */
+	@Override
+	public Command clone(){
+		try{
+			Command copy = (Command) super.clone();
+			copy.paramTypes_lst = new ArrayList(paramTypes_lst);
+			copy.paramVals_lst = new ArrayList(paramVals_lst);
+			return copy;
+		} catch (CloneNotSupportedException e){
+			throw new AssertionError(e);
+		}
+	}
 	/**
 	 * Should this listener be executed on the machine that created it?
 	 * @param enabled true, to enable remote execution; this sets
@@ -149,6 +188,22 @@ public class Command implements Serializable{
 		return this;
 	}
 	/**
+	 * Set the scheduling class of this command; by default, a command has the
+	 * priority of the command that was executing when it was created (or CONTROL)
+	 * @param priority the new priority
+	 */
+	public Command setPriority(Priority priority){
+		this.priority = priority;
+		return this;
+	}
+	/**
+	 * Get the scheduling class of this command
+	 * @return the command's priority
+	 */
+	public Priority getPriority(){
+		return priority;
+	}
+	/**
 -	 * Returns a class for the indicated className.  Works for built in and non-built in classes.  Usually you would
 -	 * use the Class.forName(String) method but this doesn't work for built in types such as <i>int</i>.  This method
 -	 * checks to see if the name is the name of a built in type and, if so, returns the appropriate class.  Otherwise
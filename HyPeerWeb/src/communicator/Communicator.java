@@ -7,6 +7,9 @@ import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The deamon used to both send and receive commands from other applications that may be on this or other machines.
@@ -24,7 +27,7 @@ public class Communicator extends Thread{
 	//The variable indicating whether this PeerCommunicator (a long running process) should stop.
 	private static boolean stop = false;
 	//Counter for local object ids
-	private static int LOCAL_ID_COUNTER = Integer.MIN_VALUE;
+	private static final AtomicInteger LOCAL_ID_COUNTER = new AtomicInteger(Integer.MIN_VALUE);
 	//Proxies that have been registered with the communicator
 	private static enum ProxyType{NODE, LINKS, SEGMENT};
 	private static final HashMap<Class<?>, ProxyType> validProxies = new HashMap(){{
@@ -106,7 +109,20 @@ public class Communicator extends Thread{
 		//If the request happens to be for the same machine, just execute
 		if (raddr.onSameMachineAs(address))
 			return command.execute(sync);
-		//Otherwise, send a request across the network
+		//Otherwise, send a request across the network; if we're running in a
+		//mailbox (see Mailbox), let the pool know we're going to block
+		if (sync && ForkJoinTask.inForkJoinPool()){
+			Exchange exchange = new Exchange(raddr, command);
+			try{
+				ForkJoinPool.managedBlock(exchange);
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			return exchange.result;
+		}
+		return send(raddr, command, sync);
+	}
+	private static Object send(RemoteAddress raddr, Command command, boolean sync){
 		Object result = null;
 		try {
 			command.commSync = sync;
@@ -134,6 +150,29 @@ public class Communicator extends Thread{
 		}
 		return result;
 	}
+	/**
+	 * A synchronous request, run from a pool thread
+	 */
+	private static class Exchange implements ForkJoinPool.ManagedBlocker{
+		private final RemoteAddress raddr;
+		private final Command command;
+		private boolean done = false;
+		public Object result;
+		public Exchange(RemoteAddress raddr, Command command){
+			this.raddr = raddr;
+			this.command = command;
+		}
+		@Override
+		public boolean block(){
+			result = send(raddr, command, true);
+			done = true;
+			return true;
+		}
+		@Override
+		public boolean isReleasable(){
+			return done;
+		}
+	}
 	/**
 	 * Performs a handshake with a remote class, to make sure it exists
 	 * @param remoteClass the class to handshake with
@@ -151,10 +190,18 @@ public class Communicator extends Thread{
 	 * @return the unique id
 	 */
 	public static int assignId(){
-		return LOCAL_ID_COUNTER++;
+		return LOCAL_ID_COUNTER.getAndIncrement();
 	}
 	public static void setId(int UID){
-		LOCAL_ID_COUNTER = UID;
+		LOCAL_ID_COUNTER.set(UID);
+	}
+	/**
+	 * Makes sure an id that was restored from a database won't be assigned again
+	 * @param UID the restored id
+	 */
+	public static void reserveId(int UID){
+		int next;
+		while ((next = LOCAL_ID_COUNTER.get()) <= UID && !LOCAL_ID_COUNTER.compareAndSet(next, UID+1));
 	}
 	/**
 	 * Resolve a UID to it's local object/proxy
@@ -171,8 +218,11 @@ public class Communicator extends Thread{
 			case NODE:
 				for (Segment segment : Segment.segmentList) {
 					Node node = segment.getSegmentNodeByUID(raw_uid);
-					if (node != null)
+					if (node != null){
+						//Counted for load balancing (see Segment.rebalance)
+						segment.recordRequest();
 						return type == ProxyType.LINKS ? node.L : node;
+					}
 				}
 			//Segments are also nodes, so if NODE fails, check SEGMENT
 			case SEGMENT:
@@ -0,0 +1,216 @@
+package communicator;
+
+import hypeerweb.Node;
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the asynchronous commands that arrive for an object (usually a Node,
+ * its Links, or a Segment) one at a time, in the order they arrived. Each
+ * object gets its own mailbox; mailboxes for different objects run at the same
+ * time, on a shared pool of lightweight fork-join tasks. The pool's parallelism
+ * is bounded; if a command blocks on a synchronous request (see Communicator.request),
+ * the pool is told, so it can add a thread to keep the other mailboxes moving.
+ * Empty mailboxes are discarded
+ *
+ * Commands sent to a machine's address run a static method; they go in the
+ * mailbox of the node they run on (their first parameter), if they have one.
+ * Static commands without a node aren't ordered; they run as soon as there's a thread
+ *
+ * Each command priority (see Command.Priority) has its own lane: a separate
+ * pool, set of mailboxes, and bounded queue. Control-plane commands never wait
+ * behind data-plane commands, even if they're sent to the same object
+ */
+public class Mailbox implements Runnable{
+	//Commands run before a mailbox yields its thread to other mailboxes
+	private static final int THROUGHPUT = 16;
+	private static final EnumMap<Command.Priority, Lane> lanes = new EnumMap(Command.Priority.class);
+	static{
+		int cpus = Runtime.getRuntime().availableProcessors();
+		lanes.put(Command.Priority.CONTROL, new Lane("control", cpus, 8192, Thread.MAX_PRIORITY));
+		lanes.put(Command.Priority.DATA, new Lane("data", Math.max(1, cpus/2), 1024, Thread.NORM_PRIORITY));
+	}
+	private final Lane lane;
+	private final int UID;
+	private final ConcurrentLinkedQueue<Command> queue = new ConcurrentLinkedQueue();
+	//Number of commands posted, but not finished; -1 once the mailbox is discarded
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private Mailbox(Lane lane, int UID){
+		this.lane = lane;
+		this.UID = UID;
+	}
+
+	/**
+	 * Queues a command to run after all the others of the same priority sent
+	 * to the same object; if the priority's queue is full, this blocks until
+	 * there is room
+	 * @param command a command received from another machine
+	 */
+	public static void post(final Command command){
+		final Lane lane = lanes.get(command.priority);
+		lane.reserve();
+		Integer target = getTarget(command);
+		if (target == null){
+			lane.pool.execute(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						command.execute(false);
+					} finally{
+						lane.release();
+					}
+				}
+			});
+			return;
+		}
+		while (true){
+			Mailbox box = lane.boxes.get(target);
+			if (box == null){
+				Mailbox created = new Mailbox(lane, target);
+				box = lane.boxes.putIfAbsent(target, created);
+				if (box == null)
+					box = created;
+			}
+			//The mailbox was discarded after we got it; make a new one
+			if (box.offer(command))
+				return;
+		}
+	}
+	/**
+	 * Gets the object a command runs on
+	 * @param command the command
+	 * @return the object's UID; null, if it's a static command without a node
+	 */
+	private static Integer getTarget(Command command){
+		RemoteAddress machine = Communicator.getAddress();
+		if (machine == null || command.UID != machine.UID)
+			return command.UID;
+		Object first = command.paramVals_lst.isEmpty() ? null : command.paramVals_lst.get(0);
+		return first instanceof Node ? ((Node) first).UID : null;
+	}
+	/**
+	 * Add a command to this mailbox
+	 * @param command the command
+	 * @return false, if this mailbox has been discarded
+	 */
+	private boolean offer(Command command){
+		int count;
+		do{
+			count = pending.get();
+			if (count < 0)
+				return false;
+		} while (!pending.compareAndSet(count, count+1));
+		queue.add(command);
+		//Nothing was running; start this mailbox
+		if (count == 0)
+			lane.pool.execute(this);
+		return true;
+	}
+
+	@Override
+	public void run(){
+		for (int i=0; i<THROUGHPUT; i++){
+			Command command;
+			//The command may have been counted, but not added yet
+			while ((command = queue.poll()) == null)
+				Thread.yield();
+			try{
+				command.execute(false);
+			} finally{
+				lane.release();
+			}
+			//Discard the mailbox once it's empty; if another command arrives
+			//first, the compare fails, but offer has already restarted us
+			if (pending.decrementAndGet() == 0){
+				if (pending.compareAndSet(0, -1))
+					lane.boxes.remove(UID, this);
+				return;
+			}
+		}
+		//Let other mailboxes have a turn
+		lane.pool.execute(this);
+	}
+
+	//METRICS
+	/**
+	 * Get the number of commands of this priority that are queued or running
+	 * @param priority the command priority
+	 * @return the queue depth
+	 */
+	public static int getQueueDepth(Command.Priority priority){
+		return lanes.get(priority).depth.get();
+	}
+	/**
+	 * Get the largest queue depth this priority has reached
+	 * @param priority the command priority
+	 * @return the peak queue depth
+	 */
+	public static int getPeakQueueDepth(Command.Priority priority){
+		return lanes.get(priority).peak.get();
+	}
+	/**
+	 * Get the number of commands of this priority that waited for room in the queue
+	 * @param priority the command priority
+	 * @return how many posts blocked
+	 */
+	public static int getBlockedPosts(Command.Priority priority){
+		return lanes.get(priority).blocked.get();
+	}
+	/**
+	 * Get the maximum number of commands of this priority that can be queued
+	 * @param priority the command priority
+	 * @return the queue capacity
+	 */
+	public static int getCapacity(Command.Priority priority){
+		return lanes.get(priority).capacity;
+	}
+
+	/**
+	 * The pool, mailboxes and bounded queue for one priority
+	 */
+	private static class Lane{
+		private final ForkJoinPool pool;
+		private final ConcurrentHashMap<Integer, Mailbox> boxes = new ConcurrentHashMap();
+		private final int capacity;
+		private final Semaphore room;
+		private final AtomicInteger depth = new AtomicInteger(), peak = new AtomicInteger(), blocked = new AtomicInteger();
+
+		public Lane(final String name, int parallelism, int capacity, final int threadPriority){
+			this.capacity = capacity;
+			room = new Semaphore(capacity);
+			pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory(){
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool){
+					ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					t.setName("mailbox-"+name+"-"+t.getPoolIndex());
+					t.setPriority(threadPriority);
+					return t;
+				}
+			}, null, true);
+		}
+		/**
+		 * Wait for room in the queue, and count the new command
+		 */
+		private void reserve(){
+			if (!room.tryAcquire()){
+				blocked.incrementAndGet();
+				room.acquireUninterruptibly();
+			}
+			int d = depth.incrementAndGet(), p;
+			while (d > (p = peak.get()) && !peak.compareAndSet(p, d));
+		}
+		/**
+		 * A command has finished; make room for another
+		 */
+		private void release(){
+			depth.decrementAndGet();
+			room.release();
+		}
+	}
+}
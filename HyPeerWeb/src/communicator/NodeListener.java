@@ -39,6 +39,11 @@ public class NodeListener extends Command{
 		super(cname, mname, ptypes, pvals);
 	}
 	
+	@Override
+	public NodeListener clone(){
+		return (NodeListener) super.clone();
+	}
+	
 	/**
 	 * Runs the callback on this node
 	 * @param n the node to callback on
@@ -89,4 +94,22 @@ public class NodeListener extends Command{
 		}
 		execute(false);
 	}
+	/**
+	 * Runs the callback on this node, with a result value
+	 * (e.g. for the ReduceVisitor callback)
+	 * @param n the node to callback on
+	 * @param result the result value
+	 */
+	public void callback(Node n, Object result){
+		if (addedParamCount != 2){
+			assert(addedParamCount == 0);
+			prependParameter("java.lang.Object", result);
+			prependParameter(Node.className, n);
+		}
+		else{
+			setParameter(0, n);
+			setParameter(1, result);
+		}
+		execute(false);
+	}
 }
@@ -60,7 +60,8 @@ public class ServerThread extends Thread {
 	            oos.close();
 		        ois.close();
 	            client.close();
-	            command.execute(false);
+	            //Commands for the same object run in the order they arrived
+	            Mailbox.post(command);
 	        }
 	    } catch(IOException | ClassNotFoundException e) {}       
 	}
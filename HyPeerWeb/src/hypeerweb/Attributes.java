@@ -1,21 +1,41 @@
 package hypeerweb;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 /**
- * Hold name-value pair for attributes
+ * Hold name-value pair for attributes; these are read and changed by
+ * the segment's threads while the log writes them, so every access locks
  * @author John
  */
 public class Attributes implements Serializable{
 	private final HashMap<String, Object> attributes = new HashMap<>();
+	//Attributes that were loaded from a checkpoint, but haven't
+	//been deserialized yet (see SegmentMap)
+	private transient ByteBuffer serialized;
 
+	public Attributes(){}
+	/**
+	 * Attributes that are deserialized the first time they're accessed
+	 * @param serialized a serialized Attributes object
+	 */
+	protected Attributes(ByteBuffer serialized){
+		this.serialized = serialized;
+	}
+	
 	/**
 	 * Set a data attribute
 	 * @param name the name of the attribute (key)
 	 * @param value the data to hold under this name
 	 */
-	public void setAttribute(String name, Object value){
+	public synchronized void setAttribute(String name, Object value){
+		resolve();
 		attributes.put(name, value);
 	}
 	/**
@@ -23,7 +43,62 @@ public class Attributes implements Serializable{
 	 * @param name the name the data was stored under
 	 * @return the data object, or null, if it doesn't exist
 	 */
-	public Object getAttribute(String name){
+	public synchronized Object getAttribute(String name){
+		resolve();
 		return attributes.get(name);
 	}
+	/**
+	 * Remove a data attribute
+	 * @param name the name the data was stored under
+	 * @return the data object that was removed, or null, if it didn't exist
+	 */
+	public synchronized Object removeAttribute(String name){
+		resolve();
+		return attributes.remove(name);
+	}
+	/**
+	 * Get these attributes in serialized form; attributes that
+	 * haven't been deserialized yet are copied as they are
+	 * @return the serialized attributes, or an empty array if there are none
+	 * @throws IOException if an attribute isn't Serializable
+	 */
+	protected synchronized byte[] toBytes() throws IOException{
+		if (serialized != null){
+			byte[] bytes = new byte[serialized.remaining()];
+			serialized.duplicate().get(bytes);
+			return bytes;
+		}
+		if (attributes.isEmpty())
+			return new byte[0];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)){
+			out.writeObject(this);
+		}
+		return bytes.toByteArray();
+	}
+	/**
+	 * Get a copy of every attribute, by name
+	 * @return the attributes
+	 */
+	protected synchronized HashMap<String, Object> toMap(){
+		resolve();
+		return new HashMap(attributes);
+	}
+	private synchronized void resolve(){
+		if (serialized == null)
+			return;
+		byte[] bytes = new byte[serialized.remaining()];
+		serialized.duplicate().get(bytes);
+		serialized = null;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))){
+			attributes.putAll(((Attributes) in.readObject()).attributes);
+		} catch (IOException | ClassNotFoundException e){
+			System.err.println("Attributes: could not read saved attributes");
+			e.printStackTrace();
+		}
+	}
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException{
+		resolve();
+		out.defaultWriteObject();
+	}
 }
@@ -38,10 +38,11 @@ public class Criteria {
 				Node high = friend.L.getHighestLink();
 				if (high != null && high.getHeight() > origin.getHeight())
 					return high;
-				//Then go up to children, if it has any
+				//Then go up to children, if it has any; the child can't be lower,
+				//otherwise we could walk back and forth between it and a higher node
 				if (origin == friend){
 					Node child = origin.L.getHighestNeighbor();
-					if (child.getWebId() > origin.getWebId())
+					if (child != null && child.getWebId() > origin.getWebId() && child.getHeight() >= origin.getHeight())
 						return child;
 				}
 				return null;
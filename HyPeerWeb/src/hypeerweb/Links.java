@@ -27,17 +27,22 @@ public class Links implements Serializable {
 	//Serialization
 	public final int UID;
 	private boolean writeRealLinks = false;
-	//Link data
-	protected Node fold;
-	protected Node surrogateFold;
-	protected Node inverseSurrogateFold;
+	//Link data; all access to the sets must be synchronized on this object.
+	//Links to other nodes are notified after we release the lock, so two
+	//nodes updating each other can't deadlock
+	protected volatile Node fold;
+	protected volatile Node surrogateFold;
+	protected volatile Node inverseSurrogateFold;
 	protected TreeSet<Node> neighbors;
 	protected TreeSet<Node> surrogateNeighbors;
 	protected TreeSet<Node> inverseSurrogateNeighbors;
 	protected TreeSet<Node> highest;
+	//Routing table for Node.getCloserNode; see getRoutes. It is replaced,
+	//never modified, so the routing path can read it without locking
+	private transient volatile Routes routes;
 
 	@Override
-	public String toString() {
+	public synchronized String toString() {
 		StringBuilder builder = new StringBuilder();
 		if(fold != null)
 			builder.append("Fold: " + fold.getWebId()+ "\n");
@@ -90,7 +95,7 @@ public class Links implements Serializable {
 	 * @param newNode the new Node reference
 	 * @param type the type of connection (Links.Type)
 	 */
-	protected void update(Node oldNode, Node newNode, Type type){
+	protected synchronized void update(Node oldNode, Node newNode, Type type){
 		switch (type){
 			case FOLD:
 				oldNode = fold;
@@ -134,12 +139,8 @@ public class Links implements Serializable {
 		//*
 		//Update the highest connection list
 		//Make sure this node isn't being referenced elsewhere
-		if (oldNode != null && (!(fold == oldNode || surrogateFold == oldNode ||
-			inverseSurrogateFold == oldNode || neighbors.contains(oldNode) ||
-			surrogateNeighbors.contains(oldNode) || inverseSurrogateNeighbors.contains(oldNode))))
-		{
+		if (oldNode != null && !isReferenced(oldNode))
 			highest.remove(oldNode);
-		}
 		//*/
 		//Add it to the appropriate structure
 		//Change the key back to the changed value
@@ -158,6 +159,22 @@ public class Links implements Serializable {
 			//Update the highest connection list
 			highest.add(newNode);
 		}
+		//Routing table is rebuilt the next time it is needed
+		if (type != Type.FOLD && type != Type.SFOLD && type != Type.ISFOLD)
+			routes = null;
+		//Host segment needs to refresh its cached copy of this node
+		Segment.markDirty(UID);
+	}
+	
+	/**
+	 * Is this node linked by any of the connection types?
+	 * @param n the node to check
+	 * @return true, if it should be kept in the highest connection list
+	 */
+	private boolean isReferenced(Node n){
+		return fold == n || surrogateFold == n || inverseSurrogateFold == n ||
+			neighbors.contains(n) || surrogateNeighbors.contains(n) ||
+			inverseSurrogateNeighbors.contains(n);
 	}
 	
 	//BROADCAST AND NOTIFICATION
@@ -169,21 +186,31 @@ public class Links implements Serializable {
 	 * than a replacement of oldPointer
 	 */
 	protected void broadcastReplacement(Node oldPointer, Node newPointer){
+		Node f, sf, isf;
+		Node[] n, sn, isn;
+		synchronized (this){
+			f = fold;
+			sf = surrogateFold;
+			isf = inverseSurrogateFold;
+			n = getNeighbors();
+			sn = getSurrogateNeighbors();
+			isn = getInverseSurrogateNeighbors();
+		}
 		//NOTE: we reverse surrogate/inverse-surrogate connection types
 		//In the case of folds, we do not have to search for an oldPointer
 		//TODO: group these into mass updates
-		if (fold != null)
-			fold.L.update(null, newPointer, Type.FOLD);
-		if (surrogateFold != null)
-			surrogateFold.L.update(null, newPointer, Type.ISFOLD);
-		if (inverseSurrogateFold != null)
-			inverseSurrogateFold.L.update(null, newPointer, Type.SFOLD);
-		for (Node n: neighbors)
-			n.L.update(oldPointer, newPointer, Type.NEIGHBOR);
-		for (Node n: surrogateNeighbors)
-			n.L.update(oldPointer, newPointer, Type.ISNEIGHBOR);
-		for (Node n: inverseSurrogateNeighbors)
-			n.L.update(oldPointer, newPointer, Type.SNEIGHBOR);
+		if (f != null)
+			f.L.update(null, newPointer, Type.FOLD);
+		if (sf != null)
+			sf.L.update(null, newPointer, Type.ISFOLD);
+		if (isf != null)
+			isf.L.update(null, newPointer, Type.SFOLD);
+		for (Node x: n)
+			x.L.update(oldPointer, newPointer, Type.NEIGHBOR);
+		for (Node x: sn)
+			x.L.update(oldPointer, newPointer, Type.ISNEIGHBOR);
+		for (Node x: isn)
+			x.L.update(oldPointer, newPointer, Type.SNEIGHBOR);
 	}
 	/**
 	 * Notifies all incoming pointers that the current node has
@@ -198,7 +225,7 @@ public class Links implements Serializable {
 		//A list of proxy nodes, mapped by their RemoteAddress
 		HashMap<RemoteAddress, ArrayList<Links>> proxies = new HashMap();
 		//Sort all links into here/proxies
-		for (Node link: highest){
+		for (Node link: getAllLinks()){
 			//Not a proxy
 			RemoteAddress laddr = link.getAddress();
 			if (laddr == null || laddr.onSameMachineAs(hostAddr))
@@ -221,7 +248,7 @@ public class Links implements Serializable {
 				Links.className, "_resortLinks",
 				new String[]{"int", "int", "int", Links.classNameArr},
 				new Object[]{original.webID, original.height, newHeight, null}
-			);
+			).setPriority(Command.Priority.CONTROL);
 			for (Entry<RemoteAddress, ArrayList<Links>> proxy: proxies.entrySet()){
 				update.setBaseParameter(3, proxy.getValue().toArray(new Links[proxy.getValue().size()]));
 				Communicator.request(proxy.getKey(), update, false);
@@ -232,7 +259,10 @@ public class Links implements Serializable {
 		if (!here.isEmpty())
 			Links._resortLinks(original.webID, original.height, newHeight, here.toArray(new Links[here.size()]));
 		//No references, we're safe to update
-		else original.height = newHeight;
+		else{
+			original.height = newHeight;
+			Segment.markDirty(original.UID);
+		}
 	}
 	protected static void _resortLinks(int webId, int oldHeight, int newHeight, Links[] toUpdate){
 		//All these links will be on this machine; if not, we did something wrong
@@ -255,6 +285,7 @@ public class Links implements Serializable {
 				if (pointer == null){
 					pointer = update.pointer;
 					pointer.height = newHeight;
+					Segment.markDirty(pointer.UID);
 				}
 				//Re-insert
 				if (update.foldRef != null)
@@ -264,7 +295,22 @@ public class Links implements Serializable {
 			}
 		}
 	}
-	private HeightUpdate _removeOutdatedLink(int webID, int oldHeight, int newHeight){
+	/**
+	 * Replaces many node pointers at once; used to move nodes between segments,
+	 * with one request for all the links on a machine. The lists are parallel
+	 * @param toUpdate the links that point to the old nodes (all on this machine)
+	 * @param oldPointers the old node pointers
+	 * @param newPointers the new node pointers
+	 * @param types how each of the links refers to the old node
+	 */
+	protected static void _replaceLinks(Links[] toUpdate, Node[] oldPointers, Node[] newPointers, Type[] types){
+		for (int i=0; i<toUpdate.length; i++){
+			if (toUpdate[i] instanceof LinksProxy)
+				System.err.println("_replaceLinks will fail! This should not happen");
+			toUpdate[i].update(oldPointers[i], newPointers[i], types[i]);
+		}
+	}
+	private synchronized HeightUpdate _removeOutdatedLink(int webID, int oldHeight, int newHeight){
 		/* Since height makes up part of the key for the TreeSets, changing height
 			poses a foreboding challenge. If the object is a reference/pointer in
 			multiple TreeSets, changing the pointer in one will break retrieval
@@ -331,6 +377,39 @@ public class Links implements Serializable {
 		}
 	}
 	
+	/**
+	 * Gets the routing table for the owner of these links; neighbors and
+	 * surrogate neighbors are indexed by the lowest bit where their webID differs
+	 * from the owner's, inverse surrogate neighbors by that bit plus 32. Only
+	 * entries for bits where the owner and a target differ can be closer to the target
+	 * @param webID the owner's current webID
+	 * @return the routing table (do not modify it)
+	 */
+	protected Node[] getRoutes(int webID){
+		Routes cached = routes;
+		if (cached != null && cached.webID == webID)
+			return cached.table;
+		synchronized (this){
+			Node[] table = new Node[64];
+			for (Node n: neighbors)
+				table[Integer.numberOfTrailingZeros(webID ^ n.getWebId())] = n;
+			for (Node sn: surrogateNeighbors)
+				table[Integer.numberOfTrailingZeros(webID ^ sn.getWebId())] = sn;
+			for (Node isn: inverseSurrogateNeighbors)
+				table[32+Integer.numberOfTrailingZeros(webID ^ isn.getWebId())] = isn;
+			routes = new Routes(webID, table);
+			return table;
+		}
+	}
+	private static class Routes{
+		public final int webID;
+		public final Node[] table;
+		public Routes(int webID, Node[] table){
+			this.webID = webID;
+			this.table = table;
+		}
+	}
+	
 	//SETTERS
 	/**
 	 * Adds a Neighbor to the set of Neighbors
@@ -350,9 +429,16 @@ public class Links implements Serializable {
 	/**
 	 * Removes all neighbors from the node
 	 */
-	protected void removeAllNeighbors(){
-		highest.removeAll(neighbors);
+	protected synchronized void removeAllNeighbors(){
+		Node[] removed = neighbors.toArray(new Node[neighbors.size()]);
 		neighbors.clear();
+		//A node may also be linked as a fold or another neighbor type
+		for (Node n: removed){
+			if (!isReferenced(n))
+				highest.remove(n);
+		}
+		routes = null;
+		Segment.markDirty(UID);
 	}
 	/**
 	 * Adds a Surrogate Neighbor
@@ -385,9 +471,16 @@ public class Links implements Serializable {
 	/**
 	 * Removes all the IS neighbors from the node
 	 */
-	protected void removeAllInverseSurrogateNeighbors(){
-		highest.removeAll(inverseSurrogateNeighbors);
+	protected synchronized void removeAllInverseSurrogateNeighbors(){
+		Node[] removed = inverseSurrogateNeighbors.toArray(new Node[inverseSurrogateNeighbors.size()]);
 		inverseSurrogateNeighbors.clear();
+		//A node may also be linked as a fold or another neighbor type
+		for (Node n: removed){
+			if (!isReferenced(n))
+				highest.remove(n);
+		}
+		routes = null;
+		Segment.markDirty(UID);
 	}
 	/**
 	 * Sets the the fold connection
@@ -419,21 +512,21 @@ public class Links implements Serializable {
 	 * Get a sorted array of all Node links
 	 * @return an array of all connections
 	 */
-	public Node[] getAllLinks(){
+	public synchronized Node[] getAllLinks(){
 		return highest.toArray(new Node[highest.size()]);
 	}
 	/**
 	 * Gets the highest node out of all the connections
 	 * @return a node
 	 */
-	public Node getHighestLink(){
+	public synchronized Node getHighestLink(){
 		return highest.isEmpty() ? null : highest.last();
 	}
 	/**
 	 * Gets the lowest node out of all the connections
 	 * @return a node
 	 */
-	public Node getLowestLink(){
+	public synchronized Node getLowestLink(){
 		return highest.isEmpty() ? null : highest.first();
 	}
 	/**
@@ -461,14 +554,14 @@ public class Links implements Serializable {
 	 * Gets an ordered list (ascending) containing the Neighbors of the Node
 	 * @return
 	 */
-	public Node[] getNeighbors() {
+	public synchronized Node[] getNeighbors() {
 		return neighbors.toArray(new Node[neighbors.size()]);
 	}
 	/**
 	 * Gets the neighbor of greatest height
 	 * @return a neighbor
 	 */
-	public Node getHighestNeighbor(){
+	public synchronized Node getHighestNeighbor(){
 		if (neighbors.isEmpty())
 			return null;
 		return neighbors.last();
@@ -477,7 +570,7 @@ public class Links implements Serializable {
 	 * Gets the neighbor of smallest height
 	 * @return a neighbor
 	 */
-	public Node getLowestNeighbor(){
+	public synchronized Node getLowestNeighbor(){
 		if (neighbors.isEmpty())
 			return null;
 		return neighbors.first();
@@ -486,14 +579,14 @@ public class Links implements Serializable {
 	 * Gets an ordered (ascending) list containing the Surrogate Neighbors of the Node
 	 * @return a list of nodes
 	 */
-	public Node[] getSurrogateNeighbors() {
+	public synchronized Node[] getSurrogateNeighbors() {
 		return surrogateNeighbors.toArray(new Node[surrogateNeighbors.size()]);
 	}		
 	/**
 	 * Gets the last surrogate neighbor of the node
 	 * @return the last surrogate neighbor
 	 */
-	public Node getHighestSurrogateNeighbor(){
+	public synchronized Node getHighestSurrogateNeighbor(){
 		if (surrogateNeighbors.isEmpty())
 			return null;
 		return surrogateNeighbors.last();
@@ -502,7 +595,7 @@ public class Links implements Serializable {
 	 * Gets the first surrogate neighbor of the node
 	 * @return the first surrogate neighbor
 	 */
-	public Node getLowestSurrogateNeighbor(){
+	public synchronized Node getLowestSurrogateNeighbor(){
 		if (surrogateNeighbors.isEmpty())
 			return null;
 		return surrogateNeighbors.first();
@@ -511,14 +604,14 @@ public class Links implements Serializable {
 	 * Gets an ordered (ascending) list of Inverse Surrogate Neighbors of the Node
 	 * @return a list of nodes
 	 */
-	public Node[] getInverseSurrogateNeighbors() {
+	public synchronized Node[] getInverseSurrogateNeighbors() {
 		return inverseSurrogateNeighbors.toArray(new Node[inverseSurrogateNeighbors.size()]);
 	}
 	/**
 	 * Gets the first inverse surrogate neighbor of the node
 	 * @return the first inverse surrogate neighbor
 	 */
-	public Node getHighestInverseSurrogateNeighbor(){
+	public synchronized Node getHighestInverseSurrogateNeighbor(){
 		if (inverseSurrogateNeighbors.isEmpty())
 			return null;
 		return inverseSurrogateNeighbors.last();
@@ -527,7 +620,7 @@ public class Links implements Serializable {
 	 * Gets the smallest isneighbor
 	 * @return 
 	 */
-	public Node getLowestInverseSurrogateNeighbor(){
+	public synchronized Node getLowestInverseSurrogateNeighbor(){
 		if (inverseSurrogateNeighbors.isEmpty())
 			return null;
 		return inverseSurrogateNeighbors.first();
@@ -536,11 +629,13 @@ public class Links implements Serializable {
 	 * Get all proxy nodes
 	 * @return an arraylist of proxy nodes
 	 */
-	public ArrayList<Node> getProxies(){
+	public synchronized ArrayList<Node> getProxies(){
 		RemoteAddress origin = Communicator.getAddress();
 		ArrayList<Node> proxies = new ArrayList();
 		for (Node n: highest){
-			if (!n.getAddress().onSameMachineAs(origin))
+			//Without a Communicator, every node is on this machine
+			RemoteAddress addr = n.getAddress();
+			if (addr != null && origin != null && !addr.onSameMachineAs(origin))
 				proxies.add(n);
 		}
 		return proxies;
@@ -555,7 +650,7 @@ public class Links implements Serializable {
 	public Object readResolve() throws ObjectStreamException {
 		return this;
 	}
-	public LinksImmutable convertToImmutable(){
+	public synchronized LinksImmutable convertToImmutable(){
 		return new LinksImmutable(this);
 	}
 }
@@ -22,9 +22,10 @@ public class LinksImmutable implements Serializable{
 		fold = links.fold;
 		surrogateFold = links.surrogateFold;
 		inverseSurrogateFold = links.inverseSurrogateFold;
-		neighbors = links.neighbors;
-		surrogateNeighbors = links.surrogateNeighbors;
-		inverseSurrogateNeighbors = links.inverseSurrogateNeighbors;
-		highest = links.highest;
+		//Copy the sets; the original Links may still be changed by other threads
+		neighbors = new TreeSet(links.neighbors);
+		surrogateNeighbors = new TreeSet(links.surrogateNeighbors);
+		inverseSurrogateNeighbors = new TreeSet(links.inverseSurrogateNeighbors);
+		highest = new TreeSet(links.highest);
 	}
 }
@@ -14,7 +14,12 @@ public class LinksProxy extends Links{
 
 	@Override
 	protected void update(Node oldNode, Node newNode, Type type){
-		request("update", new String[]{Node.className, Node.className, Type.className}, new Object[]{oldNode, newNode, type}, false);
+		Command command = new Command(
+			"hypeerweb.Links", "update",
+			new String[]{Node.className, Node.className, Type.className},
+			new Object[]{oldNode, newNode, type}
+		).setPriority(Command.Priority.CONTROL);
+		Communicator.request(raddr, command, false);
 	}
 	@Override
 	protected void broadcastNewHeight(Node original, int newHeight){
@@ -20,10 +20,11 @@ public class Node implements Serializable, Comparable<Node>{
 		className = Node.class.getName(),
 		classNameArr = Node[].class.getName();
 	//Serialization
-	public final int UID = Communicator.assignId();
+	public final int UID;
 	public transient boolean writeRealNode = false;
-	//Node Attributes
-	protected int webID, height;
+	//Node Attributes; these are the sort keys for Links, and are read by
+	//other threads without locking (e.g. when routing)
+	protected volatile int webID, height;
 	public Attributes data = new Attributes();
 	//Node's connections
 	public Links L;
@@ -38,7 +39,19 @@ public class Node implements Serializable, Comparable<Node>{
 	 * @param height  the height of the node
 	 */
 	public Node(int id, int height) {
+		this(Communicator.assignId(), id, height);
+	}
+	/**
+	 * Create a Node that keeps the UID it was saved with (see SegmentDB.load),
+	 * so references to it from other machines are still valid
+	 * @param UID the node's UID
+	 * @param id the WebID of the node
+	 * @param height the height of the node
+	 */
+	protected Node(int UID, int id, int height) {
 		assert(id >= 0 && height >= 0);
+		this.UID = UID;
+		Communicator.reserveId(UID);
 		this.webID = id;
 		this.height = height;
 		L = new Links(UID);
@@ -48,6 +61,7 @@ public class Node implements Serializable, Comparable<Node>{
 	 * @param node node to merge data with
 	 */
 	public Node(NodeImmutable node) {
+		UID = Communicator.assignId();
 		foldState = node.foldState;
 		webID = node.webID;
 		height = node.height;
@@ -84,6 +98,8 @@ public class Node implements Serializable, Comparable<Node>{
 		//Setting height is a little funky, in that it has to notify all
 		//remote links to keep things valid. If you remove links, it can't notify them
 		setHeight(childHeight);
+		//The child owns the stored keys whose next bit is 1
+		Segment.moveKeys(this, child_proxy, childWebID, childHeight);
 		
 		//Child has taken all isneighbors
 		L.removeAllInverseSurrogateNeighbors();
@@ -132,7 +148,7 @@ public class Node implements Serializable, Comparable<Node>{
 		Segment host = (Segment) child.getHostSegment();
 		//Host could be null if we're adding a new segment (addSegment)
 		if (host != null)
-			host.nodes.put(child.getWebId(), child);
+			host.indexNode(child, -1);
 		if (listener != null)
 			listener.callback(child);
 	}
@@ -154,10 +170,8 @@ public class Node implements Serializable, Comparable<Node>{
 		webID = remove_proxy.getWebId();
 		//Update the node-map to reflect the new webID
 		Segment host = getHostSegment();
-		if (host != null){
-			host.nodes.remove(oldWebID);
-			host.nodes.put(webID, this);
-		}
+		if (host != null)
+			host.indexNode(this, oldWebID);
 		height = newHeight == -1 ? remove_proxy.getHeight() : newHeight;
 		
 		//TODO, we may want to transfer data over; not sure how 
@@ -209,6 +223,8 @@ public class Node implements Serializable, Comparable<Node>{
 		//Reverse the fold state; we will always have a fold - guaranteed
 		assert(L.getFold() != null);
 		L.getFold().getFoldState().reverseFolds(parent, this);
+		//Our parent takes back the stored keys we owned
+		Segment.moveKeys(this, parent, -1, 0);
 		
 		//Execute callback, returning the new parentHeight
 		listener.callback(this, parentHeight);
@@ -220,6 +236,7 @@ public class Node implements Serializable, Comparable<Node>{
 		//Doing so will result in less network communications
 		//In this case, it doesn't matter much; but we're here anyways, so might as well...
 		zero.setHeight(1);
+		Segment.moveKeys(zero, one_proxy, 1, 1);
 		//We can't set zero's links yet, since "one" might be a proxy
 		one_proxy.executeRemotely(new NodeListener(
 			Node.className, "_ONE_add_one",
@@ -238,7 +255,7 @@ public class Node implements Serializable, Comparable<Node>{
 		//If we're doing an addSegment op, there will be no host
 		Segment host = one.getHostSegment();
 		if (host != null)
-			host.nodes.put(1, one);
+			host.indexNode(one, -1);
 		//Update data for the first node
 		zero_proxy.executeRemotely(new NodeListener(
 			className, "_ONE_add_finalize",
@@ -262,10 +279,8 @@ public class Node implements Serializable, Comparable<Node>{
 		if (oldWebID != 0){
 			tostay.setWebID(0);
 			Segment host = tostay.getHostSegment();
-			if (host != null){
-				host.nodes.remove(oldWebID);
-				host.nodes.put(0, tostay);
-			}
+			if (host != null)
+				host.indexNode(tostay, oldWebID);
 		}
 		tostay.setHeight(0);
 
@@ -279,12 +294,11 @@ public class Node implements Serializable, Comparable<Node>{
 	protected static void _TWO_remove_finalize(Node remove, Node replace_proxy, int oldWebID, NodeListener listener){
 		//The removed node will be on this machine; remove from the node maps
 		//replace_proxy may have replaced it already, in which case we ignore this step
+		Segment.moveKeys(remove, replace_proxy, -1, 0);
 		Segment seg = remove.getHostSegment();
 		int remID = remove.getWebId();
-		if (seg != null && remID != 0){
-			seg.nodes.remove(remID);
-			seg.nodesByUID.remove(remove.UID);
-		}
+		if (seg != null && remID != 0)
+			seg.unregisterNode(remove);
 		if (listener != null)
 			listener.callback(remove, replace_proxy, oldWebID);
 	}
@@ -300,6 +314,23 @@ public class Node implements Serializable, Comparable<Node>{
 			new Object[]{remove_proxy, listener}
 		));
 	}
+	protected static void _MANY_add_point(Node point, Node child_proxy, boolean exact, NodeListener listener){
+		//The host segment knows exactly where the node goes
+		if (exact)
+			point.addChild(child_proxy, listener);
+		else _MANY_add_random(point, child_proxy, listener);
+	}
+	protected static void _MANY_remove_point(Node point, Node remove_proxy, boolean exact, NodeListener listener){
+		//The host segment knows exactly which node to disconnect
+		if (exact){
+			point.disconnectNode(remove_proxy.getWebId(), new NodeListener(
+				className, "_MANY_remove_disconnect",
+				new String[]{Node.className, NodeListener.className},
+				new Object[]{remove_proxy, listener}
+			));
+		}
+		else _MANY_remove_random(point, remove_proxy, listener);
+	}
 	protected static void _MANY_remove_disconnect(Node replacement, int newHeight, Node remove_proxy, NodeListener listener){
 		//Replace the node to be deleted
 		if (!replacement.equals(remove_proxy))
@@ -315,12 +346,14 @@ public class Node implements Serializable, Comparable<Node>{
 		}
 	}
 	protected static void _MANY_remove_finalize(Node removed, Node replace_proxy, int oldWebID, NodeListener listener){
+		//The replacement owns the removed node's stored keys now
+		if (replace_proxy != null)
+			Segment.moveKeys(removed, replace_proxy, -1, 0);
 		//Remove from node-maps
+		//The replacement may have taken over the webID mapping already
 		Segment host = removed.getHostSegment();
-		if (host != null){
-			host.nodes.remove(removed.getWebId());
-			host.nodesByUID.remove(removed.UID);
-		}
+		if (host != null)
+			host.unregisterNode(removed);
 		if (listener != null)
 			listener.callback(removed, replace_proxy, oldWebID);
 	}
@@ -510,6 +543,48 @@ public class Node implements Serializable, Comparable<Node>{
 		//Try to find a link with a webid that is closer to the target
 		//Keep track of highest scoring match; not as greedy, but less network
 		//communications should make up for the slowness
+		Node closest = null;
+		int base = this.scoreWebIdMatch(target), high = base, temp;
+		//Only folds, and links that differ at a bit we need to flip, can be closer
+		Node[] routes = L.getRoutes(webID);
+		for (int bits = webID ^ target; bits != 0; bits &= bits-1){
+			int bit = Integer.numberOfTrailingZeros(bits);
+			for (int i = bit; i < 64; i += 32){
+				Node n = routes[i];
+				if (n != null && (temp = n.scoreWebIdMatch(target)) > high){
+					high = temp;
+					closest = n;
+				}
+			}
+		}
+		Node[] folds = {L.fold, L.surrogateFold, L.inverseSurrogateFold};
+		for (Node f: folds){
+			if (f != null && (temp = f.scoreWebIdMatch(target)) > high){
+				high = temp;
+				closest = f;
+			}
+		}
+		if (closest != null || mustBeCloser)
+			return closest;
+		//If none are closer, get a SNeighbor; one that differs at a bit we don't
+		//need to flip may not be in the table for the bits we do, so check them all
+		for (Node sn: L.getSurrogateNeighbors()){
+			if (sn.scoreWebIdMatch(target) == base)
+				return sn;
+		}
+		//Otherwise, that node doesn't exist
+		return null;
+	}
+	/**
+	 * Get a closer Link to a target WebID, by scoring every link; this
+	 * gives the same result as getCloserNode, without the routing table
+	 * @param target the WebID we're searching for
+	 * @param mustBeCloser if false, it will get surrogate neighbors of equal
+	 * closeness, provided no other link is closer
+	 * @return a Node that is closer to the target WebID; null, if there are
+	 * no closer nodes
+	 */
+	protected Node scanCloserNode(int target, boolean mustBeCloser){
 		Node closest = null;
 		int base = this.scoreWebIdMatch(target), high = base, temp;
 		for (Node n: L.getAllLinks()){
@@ -547,6 +622,17 @@ public class Node implements Serializable, Comparable<Node>{
 	 */
 	public void setData(String key, Object val){
 		data.setAttribute(key, val);
+		Segment.markDirty(UID);
+	}
+	/**
+	 * Removes stored data
+	 * @param key the key for this data
+	 * @return the data that was removed, or null, if there was none
+	 */
+	public Object removeData(String key){
+		Object old = data.removeAttribute(key);
+		Segment.markDirty(UID);
+		return old;
 	}
 	/**
 	 * Sets the WebID of the Node
@@ -554,6 +640,7 @@ public class Node implements Serializable, Comparable<Node>{
 	 */
 	protected void setWebID(int id){
 		webID = id;
+		Segment.markDirty(UID);
 	}
 	/**
 	 * Sets the Height of the Node and updates all pointers
@@ -578,6 +665,7 @@ public class Node implements Serializable, Comparable<Node>{
 	 */
 	protected void resetLinks(){
 		L = new Links(UID);
+		Segment.markDirty(UID);
 	}
 	public void setWriteRealNode(boolean writeRealNode){
 		this.writeRealNode = writeRealNode;
@@ -671,11 +759,7 @@ public class Node implements Serializable, Comparable<Node>{
 	 * @return a Segment containing this node
 	 */
 	public Segment getHostSegment(){
-		for (Segment s: Segment.segmentList){
-			if (s.getSegmentNodeByUID(UID) != null)
-				return s;
-		}
-		return null;
+		return Segment.getHostByUID(UID);
 	}
 	/**
 	 * Executes a callback on the machine this node is on
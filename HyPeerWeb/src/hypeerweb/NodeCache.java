@@ -47,6 +47,24 @@ public class NodeCache implements NodeInterface, Serializable {
 		sn = convertToCached(real.L.getSurrogateNeighbors());
 		isn = convertToCached(real.L.getInverseSurrogateNeighbors());
 	}
+	/**
+	 * Copy constructor; link arrays are immutable, so they are shared
+	 * @param node the cached node to copy
+	 * @param parent the cache the copy belongs to
+	 */
+	public NodeCache(NodeCache node, SegmentCache parent){
+		this.parent = parent;
+		UID = node.UID;
+		networkID = node.networkID;
+		webID = node.webID;
+		height = node.height;
+		f = node.f;
+		sf = node.sf;
+		isf = node.isf;
+		n = node.n;
+		sn = node.sn;
+		isn = node.isn;
+	}
 	public void setParent(SegmentCache parent){
 		this.parent = parent;
 	}
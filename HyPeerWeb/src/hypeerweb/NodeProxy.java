@@ -23,6 +23,11 @@ public class NodeProxy extends Node{
 		L = new LinksProxy(addr.UID);
 		raddr = addr;
 	}
+	public NodeProxy(int webID, int height, RemoteAddress addr){
+		super(webID, height);
+		L = new LinksProxy(addr.UID);
+		raddr = addr;
+	}
 
 	//NODE OPERATIONS
 	@Override
@@ -103,6 +108,10 @@ public class NodeProxy extends Node{
 	public void setData(String key, Object val) {
 		request("setData", new String[] {"java.lang.String", "java.lang.Object"}, new Object[] {key, val}, false);
 	}
+	@Override
+	public Object removeData(String key) {
+		return request("removeData", new String[] {"java.lang.String"}, new Object[] {key}, true);
+	}
 	
 	//NETWORKING
 	@Override
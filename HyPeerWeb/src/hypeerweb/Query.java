@@ -0,0 +1,190 @@
+package hypeerweb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A filter and projection over node attributes (see Segment.query); the query
+ * is sent to every segment, which evaluates it over its own nodes, and sends
+ * back only the matching nodes' projected attributes. Conditions are and-ed
+ * together; a node without the attribute never matches (except for NOT_EXISTS)
+ */
+public class Query implements Serializable{
+	public static final String className = Query.class.getName();
+	public static enum Op{
+		EQUALS, NOT_EQUALS, LESS, LESS_EQUAL, GREATER, GREATER_EQUAL,
+		EXISTS, NOT_EXISTS, STARTS_WITH
+	}
+	private final ArrayList<Condition> conditions = new ArrayList();
+	//Attributes to send back; null, for all of them
+	private String[] projection;
+	//Most results to send back (-1, if unlimited), and how many to send at a time
+	private int limit = -1, batchSize = 64;
+
+	/**
+	 * Adds a condition to the filter
+	 * @param attribute the attribute name (see Node.getData)
+	 * @param op how to compare the attribute's value
+	 * @param value the value to compare with; numbers of any type can be compared,
+	 *	other values must be Comparable and of the same class. Ignored for EXISTS
+	 *	and NOT_EXISTS
+	 * @return this query
+	 */
+	public Query where(String attribute, Op op, Object value){
+		conditions.add(new Condition(attribute, op, value));
+		return this;
+	}
+	/**
+	 * Sets which attributes are sent back for each matching node
+	 * @param attributes the attribute names; none, to send all of them,
+	 *	except the values stored by key (see Segment.put)
+	 * @return this query
+	 */
+	public Query select(String... attributes){
+		projection = attributes.length == 0 ? null : attributes;
+		return this;
+	}
+	/**
+	 * Sets the most nodes the query will return; segments stop
+	 * searching once the limit has been reached
+	 * @param limit the limit; -1, for unlimited
+	 * @return this query
+	 */
+	public Query limit(int limit){
+		this.limit = limit;
+		return this;
+	}
+	/**
+	 * Sets how many results a segment sends back at a time
+	 * @param size the batch size
+	 * @return this query
+	 */
+	public Query batchSize(int size){
+		batchSize = Math.max(size, 1);
+		return this;
+	}
+	public int getLimit(){
+		return limit;
+	}
+	public int getBatchSize(){
+		return batchSize;
+	}
+
+	//EVALUATION
+	/**
+	 * Does a node match every condition?
+	 * @param n the node
+	 * @return true, if it matches
+	 */
+	public boolean matches(Node n){
+		for (Condition c: conditions){
+			if (!c.matches(n.getData(c.attribute)))
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * Gets the result for a matching node
+	 * @param n the node
+	 * @return the node's webID and projected attributes
+	 */
+	protected Result project(Node n){
+		HashMap<String, Object> values;
+		if (projection == null){
+			values = n.getAllData().toMap();
+			//Values stored by key (see Segment.put) aren't node attributes
+			Iterator<String> names = values.keySet().iterator();
+			while (names.hasNext()){
+				if (names.next().startsWith(Segment.KEY_PREFIX))
+					names.remove();
+			}
+		}
+		else{
+			values = new HashMap();
+			for (String attr: projection)
+				values.put(attr, n.getData(attr));
+		}
+		return new Result(n.getWebId(), values);
+	}
+
+	/**
+	 * A single condition of the filter
+	 */
+	private static class Condition implements Serializable{
+		public final String attribute;
+		public final Op op;
+		public final Object value;
+
+		public Condition(String attribute, Op op, Object value){
+			this.attribute = attribute;
+			this.op = op;
+			this.value = value;
+		}
+		public boolean matches(Object actual){
+			if (op == Op.NOT_EXISTS)
+				return actual == null;
+			if (actual == null)
+				return false;
+			switch (op){
+				case EXISTS:
+					return true;
+				case STARTS_WITH:
+					return actual instanceof String && value instanceof String &&
+						((String) actual).startsWith((String) value);
+			}
+			Integer cmp = compare(actual, value);
+			switch (op){
+				case EQUALS:
+					return cmp != null ? cmp == 0 : actual.equals(value);
+				case NOT_EQUALS:
+					return cmp != null ? cmp != 0 : !actual.equals(value);
+			}
+			//Values that can't be ordered don't match
+			if (cmp == null)
+				return false;
+			switch (op){
+				case LESS:
+					return cmp < 0;
+				case LESS_EQUAL:
+					return cmp <= 0;
+				case GREATER:
+					return cmp > 0;
+				default:
+					return cmp >= 0;
+			}
+		}
+		/**
+		 * Compares two values
+		 * @return the comparison, or null if they can't be compared
+		 */
+		private static Integer compare(Object a, Object b){
+			if (a instanceof Number && b instanceof Number){
+				Number x = (Number) a, y = (Number) b;
+				if (x instanceof Double || x instanceof Float || y instanceof Double || y instanceof Float)
+					return Double.compare(x.doubleValue(), y.doubleValue());
+				return Long.compare(x.longValue(), y.longValue());
+			}
+			if (a instanceof Comparable && b != null && a.getClass() == b.getClass())
+				return ((Comparable) a).compareTo(b);
+			return null;
+		}
+	}
+	/**
+	 * A node that matched the query
+	 */
+	public static class Result implements Serializable{
+		public final int webID;
+		public final HashMap<String, Object> attributes;
+
+		public Result(int webID, HashMap<String, Object> attributes){
+			this.webID = webID;
+			this.attributes = attributes;
+		}
+		@Override
+		public String toString(){
+			return webID+"="+attributes;
+		}
+	}
+}
@@ -1,13 +1,37 @@
 package hypeerweb;
 
+import communicator.Command;
 import communicator.Communicator;
 import communicator.NodeListener;
+import communicator.RemoteAddress;
 import hypeerweb.visitors.SendVisitor;
 import hypeerweb.visitors.BroadcastVisitor;
+import hypeerweb.visitors.ReduceVisitor;
+import java.io.IOException;
 import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Great HyPeerWeb
@@ -15,16 +39,85 @@ import java.util.TreeMap;
  */
 public class Segment<T extends Node> extends Node{
 	public static final String className = Segment.class.getName();
-	//HyPeerWebSegment attributes
-	public final TreeMap<Integer, T> nodes, nodesByUID;
+	//HyPeerWebSegment attributes; the node maps can be read without locking,
+	//but all writes are synchronized on nodesByUID (see SEGMENT NODE MAPS)
+	public final ConcurrentSkipListMap<Integer, T> nodes, nodesByUID;
 	public HyPeerWebState
 		state = HyPeerWebState.HAS_NONE,
 		inceptionState = HyPeerWebState.HAS_ONE;
 	private boolean isInceptionWeb = false;
-	//Random number generator for getting random nodes
-	private static final Random rand = new Random();
+	//Random number generator for getting random nodes; one per
+	//thread, so concurrent operations don't contend for it (see resetRandom)
+	private transient ThreadLocal<Random> rand;
+	//How random nodes are picked (see getRandomNode)
+	public SamplingPolicy sampling = SamplingPolicy.LOAD_AWARE;
+	//Which segment new nodes end up on (see PlacementPolicy)
+	public PlacementPolicy placement = PlacementPolicy.LOCAL;
 	//Static list of all HWSegments in this JVM; they may not correspond to the same HyPeerWeb
-	public static final ArrayList<Segment> segmentList = new ArrayList();
+	public static final CopyOnWriteArrayList<Segment> segmentList = new CopyOnWriteArrayList();
+	//Sends bulk link updates to other machines at the same time, and splits
+	//large local updates into chunks of nodes (see rewire and applyLinks)
+	private static final ForkJoinPool rewirePool = new ForkJoinPool();
+	private static final int REWIRE_CHUNK = 1024;
+	//Maps node UID's to the segment that holds them (see Node.getHostSegment)
+	private static final ConcurrentHashMap<Integer, Segment> hostIndex = new ConcurrentHashMap();
+	//Incrementally maintained cache of this segment's nodes; nodes whose links
+	//have changed are marked dirty and refreshed the next time the cache is read
+	private transient SegmentCache cache;
+	private transient HashMap<Integer, NodeCache> cacheByUID;
+	private transient Set<Integer> cacheDirty;
+	private transient int cacheNetworkID;
+	private transient boolean cacheShared;
+	//Where recently looked up remote nodes/segments live (webID -> address with UID),
+	//so repeat lookups go straight to the owning machine; least recently used are evicted
+	private static final int LOCATION_CACHE_SIZE = 1024;
+	private transient LinkedHashMap<Integer, RemoteAddress> nodeLocations, segmentLocations;
+	//Lookups currently in progress, so concurrent identical lookups can share
+	//one traversal; abandoned lookups are retried after the timeout (in ms)
+	private static final int FLIGHT_TIMEOUT = 10000;
+	private transient HashMap<Long, Flight> flights;
+	private transient FutureTask<Segment> nonemptySearch;
+	//Key-value batches waiting for results from the nodes that own their keys
+	//(see KEY-VALUE STORE); values are node attributes named with the key prefix
+	public static final String KEY_PREFIX = "key:";
+	protected static final int KEY_GET = 0, KEY_PUT = 1, KEY_DELETE = 2;
+	//How many times a key can be rerouted before we give up on it
+	protected static final int KEY_ROUNDS = 8;
+	//The result of a key that couldn't reach its owner; its operation wasn't run
+	public static enum KeyResult {FAILED};
+	private static final AtomicLong keyBatchIds = new AtomicLong();
+	private transient HashMap<Long, KeyBatch> keyBatches;
+	//Queries waiting for results from other segments (see QUERIES)
+	private static final AtomicLong queryIds = new AtomicLong();
+	private transient HashMap<Long, QueryState> queries;
+	//Replicated directory of the segments that have nodes, with their sizes;
+	//a segment only republishes its size when it doubles/halves or empties
+	private transient ArrayList<DirectoryEntry> directory;
+	private transient int publishedSize;
+	//The shape of this segment's part of the HyPeerWeb; tracks where the next
+	//node should be added/removed (see getInsertionPoint and getDisconnectPoint)
+	private transient Topology topology;
+	//Add/remove operations waiting to be committed, ordered by when they
+	//began, and those that are still in progress (see COMMIT LOG)
+	private transient TreeSet<Commit> pending;
+	private transient HashMap<Long, Commit> inflight;
+	private transient boolean committing;
+	//Web-wide lock on the edge of the HyPeerWeb (see EDGE LOCK); the segment with
+	//webID 0 holds it, along with the HyPeerWeb's size (-1, if it isn't known)
+	private transient ArrayDeque<NodeListener> edgeWaiting;
+	private transient boolean edgeLocked;
+	private transient int edgeSize;
+	//The HyPeerWeb's size while an operation on this segment holds the edge lock
+	private transient volatile int lockedSize;
+	//Requests for this segment's nodes, and the count/time when the request
+	//rate was last sampled (see getRequestRate)
+	private final AtomicLong requests = new AtomicLong();
+	private transient long rateRequests, rateSampled;
+	//Write-ahead log of changes since the last snapshot (see SegmentDB);
+	//null if this segment isn't persisted
+	protected transient SegmentLog log;
+	//Indexed tables of this segment's nodes (see SegmentDB.store); null if not stored
+	protected transient SegmentSQL sql;
 	//Segment settings
 	public final String dbname;
 	protected final long seed;
@@ -47,24 +140,52 @@ public class Segment<T extends Node> extends Node{
 	 * @param height the node height, if it has one
 	 */
 	protected Segment(String dbname, long seed, int webID, int height){
-		super(webID, height);
+		this(Communicator.assignId(), dbname, seed, webID, height);
+	}
+	/**
+	 * Constructor for a segment that keeps the UID it was saved with (see SegmentDB.load)
+	 * @param UID the segment's UID
+	 * @param dbname filename for the database/node-cache
+	 * @param seed the random seed number for getting random nodes; use -1
+	 *	to get a pseudo-random seed
+	 * @param webID the node webID, if it has one
+	 * @param height the node height, if it has one
+	 */
+	protected Segment(int UID, String dbname, long seed, int webID, int height){
+		super(UID, webID, height);
 		this.dbname = dbname;
-		this.seed = 2;
-		nodes = new TreeMap();
-		nodesByUID = new TreeMap();
-		if (seed != -1)
-			rand.setSeed(seed);
+		this.seed = seed;
+		nodes = new ConcurrentSkipListMap();
+		nodesByUID = new ConcurrentSkipListMap();
+		flights = new HashMap();
+		keyBatches = new HashMap();
+		queries = new HashMap();
+		directory = new ArrayList();
+		topology = new Topology(0);
+		pending = new TreeSet();
+		inflight = new HashMap();
+		resetEdge();
+		resetCache();
+		resetRandom();
 	}
 	
 	//SEGMENT OPS
 	/**
-	 * Creates a new segment
+	 * Creates a new segment; if it has a database, its changes are logged
+	 * from now on (see SegmentDB)
 	 * @param dbname filename for the database/node-cache
 	 * @param seed the random seed number for getting random nodes; use -1
 	 *	to get a pseudo-random seed
 	 */
 	public static <K extends Node> Segment newSegment(String dbname, long seed){
 		Segment<K> seg = new Segment(dbname, seed);
+		if (dbname != null){
+			try{
+				seg.log = new SegmentLog(seg);
+			} catch (IOException e){
+				System.err.println("Segment: could not create the log for "+dbname);
+			}
+		}
 		segmentList.add(seg);
 		return seg;
 	}
@@ -85,13 +206,27 @@ public class Segment<T extends Node> extends Node{
 		inceptionweb.nodesByUID.put(this.UID, this);
 		//Temporarily add it to the segment list (so addNode can resolve the host)
 		
-		//The only extra data we need to initialize is the state
+		//The only extra data we need to initialize is the state and directory
+		DirectoryEntry[] entries = getDirectory();
+		Segment[] segs = new Segment[entries.length];
+		int[] sizes = new int[entries.length];
+		for (int i=0; i<entries.length; i++){
+			segs[i] = entries[i].segment;
+			sizes[i] = entries[i].size;
+		}
 		segment.executeRemotely(new NodeListener(
 			className, "_inheritState",
-			new String[]{HyPeerWebState.className},
-			new Object[]{state}
+			new String[]{HyPeerWebState.className, Segment[].class.getName(), "[I"},
+			new Object[]{state, segs, sizes}
 		));
-		//Now run the add operation
+		//Now run the add operation; the new segment may take some nodes
+		if (placement == PlacementPolicy.LOCALITY){
+			listener = new NodeListener(
+				className, "_segmentAdded",
+				new String[]{className, NodeListener.className},
+				new Object[]{getLargestSegment(), listener}
+			);
+		}
 		inceptionState.addNode(inceptionweb, segment, listener);
 	}
 	/**
@@ -106,7 +241,8 @@ public class Segment<T extends Node> extends Node{
 		inceptionweb.isInceptionWeb = true;
 		inceptionweb.nodes.put(this.webID, this);
 		inceptionweb.nodesByUID.put(this.UID, this);
-		
+		//Other segments shouldn't delegate to us anymore
+		broadcastSize(0);
 		inceptionState.removeNode(inceptionweb, this, listener);
 	}
 	
@@ -118,10 +254,9 @@ public class Segment<T extends Node> extends Node{
 	 * that the removed node is on, unless remote execution is enabled
 	 */
 	public void removeNode(int webid, NodeListener listener){
-		//Execute removeNode on the segment that contains "webid"
-		getNode(webid, false, new NodeListener(
-			className, "_removeNode", listener
-		));
+		//The node is looked up once the commit starts, since
+		//earlier commits may change which node has this webID
+		submit(new Commit(Commit.Type.REMOVE, null, webid, listener));
 	}
 	/**
 	 * Removes the node
@@ -130,10 +265,7 @@ public class Segment<T extends Node> extends Node{
 	 * that the removed node is on, unless remote execution is enabled
 	 */
 	public void removeNode(T node, NodeListener listener){
-		//Get the segment that has this node and execute the method there
-		node.executeRemotely(new NodeListener(
-			className, "_removeNode", listener
-		));
+		submit(new Commit(Commit.Type.REMOVE, node, -1, listener));
 	}
 	protected static void _removeNode(Node n, NodeListener listener){
 		Segment host;
@@ -157,8 +289,9 @@ public class Segment<T extends Node> extends Node{
 		Segment seg = (Segment) n;
 		//Clear node lists
 		seg.state = HyPeerWebState.HAS_NONE;
-		seg.nodes.clear();
-		seg.nodesByUID.clear();
+		seg.clearNodes();
+		//The size changed outside of the edge lock
+		seg.forgetEdgeSize();
 		if (listener != null)
 			listener.callback(n);
 	}
@@ -173,13 +306,711 @@ public class Segment<T extends Node> extends Node{
 	 */
 	public void addNode(T node, NodeListener listener){
 		assert(node.getAddress().equals(Communicator.getAddress()));
-		//Add node to UID list, so proxies can be resolved during the add process
-		nodesByUID.put(node.UID, node);
-		//The HyPeerWeb's state will handle everything else
-		// (e.g. finding a nonempty segment to add from)
-		state.addNode(this, node, listener);
+		submit(new Commit(Commit.Type.ADD, node, -1, listener));
 	}
-	
+
+	//BULK OPERATIONS
+	/**
+	 * Adds many nodes to the HyPeerWeb at once; all new nodes are created on this segment
+	 * @param count the number of nodes to add
+	 * @param listener executed on this segment once all nodes have been added;
+	 *	this segment is passed as the callback node (null, if the add failed)
+	 * @see #addNodes(int, boolean, communicator.NodeListener)
+	 */
+	public void addNodes(int count, NodeListener listener){
+		addNodes(count, false, listener);
+	}
+	/**
+	 * Adds many nodes to the HyPeerWeb at once. The shape of a HyPeerWeb is
+	 * determined by its size, so instead of searching for an insertion point
+	 * for each node, the final links are computed directly (see Topology);
+	 * only the new nodes, their parents, and the nodes linked to them are
+	 * rewired, and every segment rewires its nodes in a single batch
+	 * @param count the number of nodes to add
+	 * @param distribute if true, the new nodes are split evenly across all
+	 *	segments (in contiguous webID ranges); otherwise, they are all created
+	 *	on this segment
+	 * @param listener executed on this segment once all nodes have been added;
+	 *	this segment is passed as the callback node (null, if the add failed)
+	 */
+	public void addNodes(final int count, final boolean distribute, final NodeListener listener){
+		submitBulk(new Runnable(){
+			@Override
+			public void run(){
+				growNodes(count, distribute, listener);
+			}
+		});
+	}
+	private void growNodes(int count, boolean distribute, NodeListener listener){
+		if (state == HyPeerWebState.CORRUPT){
+			System.err.println("CORRUPT HYPEERWEB");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		HashMap<Integer, Segment> where = new HashMap();
+		ArrayList<Segment> segs = gatherShape(where);
+		Topology topo = new Topology(where.keySet());
+		if (!topo.isValid()){
+			System.err.println("Segment.addNodes: HyPeerWeb is missing nodes");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		HashSet<Integer> touched = new HashSet();
+		int[] added = grow(topo, Math.max(count, 0), touched);
+		Node[] all = new Node[topo.getCapacity()];
+		IdentityHashMap<Node, Segment> owners = new IdentityHashMap();
+		//Only the nodes that get rewired, and the nodes they link to, are fetched
+		if (!fetchNodes(all, where, withLinks(topo, touched), owners)){
+			System.err.println("Segment.addNodes: HyPeerWeb is missing nodes");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		//Create the new nodes
+		int next = 0;
+		for (int i=0, left=added.length; i<segs.size() && left > 0; i++){
+			Segment seg = distribute ? segs.get(i) : this;
+			int alloc = distribute ? left/(segs.size()-i) : left;
+			for (Node n: seg.allocateNodes(alloc)){
+				all[added[next++]] = n;
+				owners.put(n, seg);
+			}
+			left -= alloc;
+		}
+		//Link them to the rest of the HyPeerWeb
+		rewire(all, topo, owners, toArray(touched));
+		//The coordinator keeps the new size, so it needn't count the HyPeerWeb again
+		lockedSize = topo.size() == topo.getCapacity() ? topo.size() : -1;
+		HyPeerWebState newState = topo.size() == 0 ? HyPeerWebState.HAS_NONE :
+			topo.size() == 1 ? HyPeerWebState.HAS_ONE : HyPeerWebState.HAS_MANY;
+		if (newState != state)
+			changeState(newState);
+		if (listener != null)
+			listener.callback(this);
+	}
+	/**
+	 * Adds pre-initialized nodes to the HyPeerWeb, many at a time. Nodes are
+	 * added in rounds; each round claims as many insertion points as it can,
+	 * all at the lowest height (see Topology.getInsertionSlots), so no parent
+	 * gets two children in the same round. Only the parents, the new nodes,
+	 * and the nodes linked to them are rewired; their fold states are
+	 * computed from the final shape, instead of replaying each fold transition
+	 * @param added nodes on this machine (see addNode); their webID, height,
+	 *	and Links (L) will be altered
+	 * @param listener executed on this segment once all nodes have been added;
+	 *	this segment is passed as the callback node (null, if the add failed)
+	 */
+	public void addNodes(final T[] added, final NodeListener listener){
+		submitBulk(new Runnable(){
+			@Override
+			public void run(){
+				growNodes(added, listener);
+			}
+		});
+	}
+	private void growNodes(T[] added, NodeListener listener){
+		if (state == HyPeerWebState.CORRUPT){
+			System.err.println("CORRUPT HYPEERWEB");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		HashMap<Integer, Segment> where = new HashMap();
+		gatherShape(where);
+		Topology topo = new Topology(where.keySet());
+		if (!topo.isValid()){
+			System.err.println("Segment.addNodes: HyPeerWeb is missing nodes");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		Node[] all = new Node[topo.getCapacity()];
+		IdentityHashMap<Node, Segment> owners = new IdentityHashMap();
+		for (T n: added){
+			assert(n.getAddress().equals(Communicator.getAddress()));
+			registerNode(n);
+			owners.put(n, this);
+		}
+		for (int next=0; next < added.length;){
+			int first = topo.getNextWebID(),
+				count = Math.min(added.length-next, topo.getInsertionSlots());
+			//Parents change height, so anything linked to them must be re-sorted
+			HashSet<Integer> touched = new HashSet();
+			int[] parents = new int[first == 0 ? 0 : count];
+			for (int i=0; i<parents.length; i++){
+				parents[i] = (first+i) ^ Integer.highestOneBit(first+i);
+				addLinks(topo, parents[i], touched);
+			}
+			int[] children = topo.grow(count);
+			if (all.length < topo.getCapacity())
+				all = Arrays.copyOf(all, topo.getCapacity());
+			for (int i=0; i<count; i++){
+				all[children[i]] = added[next++];
+				addLinks(topo, children[i], touched);
+			}
+			for (int parent: parents)
+				addLinks(topo, parent, touched);
+			//Nodes are fetched as the rounds reach them; the edge lock
+			//keeps them from moving to another segment in the meantime
+			if (!fetchNodes(all, where, withLinks(topo, touched), owners)){
+				System.err.println("Segment.addNodes: HyPeerWeb is missing nodes");
+				if (listener != null)
+					listener.callback(null);
+				return;
+			}
+			rewire(all, topo, owners, toArray(touched));
+		}
+		//The coordinator keeps the new size, so it needn't count the HyPeerWeb again
+		lockedSize = topo.size() == topo.getCapacity() ? topo.size() : -1;
+		HyPeerWebState newState = topo.size() == 0 ? HyPeerWebState.HAS_NONE :
+			topo.size() == 1 ? HyPeerWebState.HAS_ONE : HyPeerWebState.HAS_MANY;
+		if (newState != state)
+			changeState(newState);
+		if (listener != null)
+			listener.callback(this);
+	}
+	/**
+	 * Runs a bulk operation through the commit log; it changes the shape of
+	 * the whole HyPeerWeb, so it waits for every earlier operation to finish,
+	 * and every later one waits for it
+	 * @param op the operation
+	 */
+	private void submitBulk(Runnable op){
+		Commit c = new Commit(Commit.Type.BULK, null, -1, null);
+		c.bulk = op;
+		submit(c);
+	}
+	/**
+	 * Grows a HyPeerWeb's shape one node at a time, in the same order
+	 * they would be added one at a time (see Topology.grow)
+	 * @param topo the shape of the HyPeerWeb
+	 * @param count the number of nodes to add
+	 * @param touched filled with the webID's of every node whose links change
+	 * @return the webID's of the new nodes
+	 */
+	private static int[] grow(Topology topo, int count, HashSet<Integer> touched){
+		int[] added = new int[count];
+		for (int i=0; i<count; i++){
+			int child = topo.getNextWebID(),
+				parent = child ^ Integer.highestOneBit(child);
+			//The parent changes height, so anything linked to it must be re-sorted
+			if (child != 0)
+				addLinks(topo, parent, touched);
+			added[i] = topo.grow(1)[0];
+			addLinks(topo, child, touched);
+			if (child != 0)
+				addLinks(topo, parent, touched);
+		}
+		return added;
+	}
+	/**
+	 * Shrinks a HyPeerWeb's shape one node at a time, always taking the
+	 * disconnect point (see Topology.shrink)
+	 * @param topo the shape of the HyPeerWeb
+	 * @param count the number of nodes to remove
+	 * @param touched filled with the webID's of every node whose links change,
+	 *	including the removed ones
+	 * @return the removed webID's
+	 */
+	private static int[] shrink(Topology topo, int count, HashSet<Integer> touched){
+		int[] removed = new int[Math.min(count, topo.size())];
+		for (int i=0; i<removed.length; i++){
+			int child = topo.getDisconnectPoint(),
+				parent = child ^ Integer.highestOneBit(child);
+			addLinks(topo, child, touched);
+			if (child != 0)
+				addLinks(topo, parent, touched);
+			removed[i] = topo.shrink(1)[0];
+			if (child != 0)
+				addLinks(topo, parent, touched);
+		}
+		return removed;
+	}
+	private static int[] toArray(HashSet<Integer> webIDs){
+		int[] arr = new int[webIDs.size()];
+		int i = 0;
+		for (int id: webIDs)
+			arr[i++] = id;
+		return arr;
+	}
+	/**
+	 * Collects a node's webID and the webID's of all its links
+	 * @param topo the shape of the HyPeerWeb
+	 * @param webID the node's webID
+	 * @param into where to put the webID's
+	 */
+	private static void addLinks(Topology topo, int webID, HashSet<Integer> into){
+		into.add(webID);
+		for (int[] ids: new int[][]{
+			topo.getNeighbors(webID), topo.getSurrogateNeighbors(webID), topo.getInverseSurrogateNeighbors(webID),
+			{topo.getFold(webID), topo.getSurrogateFold(webID), topo.getInverseSurrogateFold(webID)}
+		}){
+			for (int id: ids){
+				if (id != -1)
+					into.add(id);
+			}
+		}
+	}
+	/**
+	 * Removes many nodes from the HyPeerWeb at once; the final shape is computed
+	 * once, and surviving nodes are moved into the vacated webID's. Only the
+	 * moved nodes and the survivors linked to a removed, moved, or vacated webID
+	 * are rewired, and every segment rewires its nodes in a single batch
+	 * @param webIDs the webID's of the nodes to remove; webID's that don't
+	 *	exist are ignored
+	 * @param listener executed on this segment once all nodes have been removed;
+	 *	this segment is passed as the callback node (null, if the remove failed)
+	 */
+	public void removeNodes(final int[] webIDs, final NodeListener listener){
+		submitBulk(new Runnable(){
+			@Override
+			public void run(){
+				shrinkNodes(webIDs, listener);
+			}
+		});
+	}
+	private void shrinkNodes(int[] webIDs, NodeListener listener){
+		if (state == HyPeerWebState.CORRUPT){
+			System.err.println("CORRUPT HYPEERWEB");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		HashMap<Integer, Segment> where = new HashMap();
+		gatherShape(where);
+		Topology topo = new Topology(where.keySet());
+		if (!topo.isValid()){
+			System.err.println("Segment.removeNodes: HyPeerWeb is missing nodes");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		int capacity = topo.getCapacity();
+		HashSet<Integer> remove = new HashSet();
+		for (int id: webIDs){
+			if (topo.contains(id))
+				remove.add(id);
+		}
+		//Survivors outside the final shape fill the holes the removed nodes left
+		HashSet<Integer> touched = new HashSet();
+		int[] cut = shrink(topo, remove.size(), touched);
+		ArrayList<Integer> holes = new ArrayList();
+		for (int id: remove){
+			if (topo.contains(id))
+				holes.add(id);
+		}
+		int[] moves = new int[cut.length];
+		for (int i=0; i<cut.length; i++){
+			moves[i] = remove.contains(cut[i]) ? -1 : holes.remove(holes.size()-1);
+			//Anything linked to the hole must link to the moved node instead
+			if (moves[i] != -1)
+				addLinks(topo, moves[i], touched);
+		}
+		//The shape is known; only now are the nodes it changes fetched
+		Node[] all = new Node[capacity];
+		IdentityHashMap<Node, Segment> owners = new IdentityHashMap();
+		HashSet<Integer> needed = withLinks(topo, touched);
+		needed.addAll(remove);
+		for (int id: cut)
+			needed.add(id);
+		if (!fetchNodes(all, where, needed, owners)){
+			System.err.println("Segment.removeNodes: HyPeerWeb is missing nodes");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		//Detach the removed nodes, then move the survivors into the holes
+		HashMap<String, Object> orphans = releaseNodes(all, remove, owners);
+		for (int i=0; i<cut.length; i++){
+			if (moves[i] != -1)
+				all[moves[i]] = all[cut[i]];
+			all[cut[i]] = null;
+		}
+		finishRemove(all, topo, owners, touched, orphans, listener);
+	}
+	/**
+	 * Shrinks the HyPeerWeb to a specific size, removing the nodes with the
+	 * highest webID's; no nodes need to be moved for this
+	 * @param size the number of nodes to keep
+	 * @param listener executed on this segment once all nodes have been removed;
+	 *	this segment is passed as the callback node (null, if the remove failed)
+	 */
+	public void truncate(final int size, final NodeListener listener){
+		submitBulk(new Runnable(){
+			@Override
+			public void run(){
+				truncateNodes(size, listener);
+			}
+		});
+	}
+	private void truncateNodes(int size, NodeListener listener){
+		if (state == HyPeerWebState.CORRUPT){
+			System.err.println("CORRUPT HYPEERWEB");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		HashMap<Integer, Segment> where = new HashMap();
+		gatherShape(where);
+		Topology topo = new Topology(where.keySet());
+		if (!topo.isValid()){
+			System.err.println("Segment.truncate: HyPeerWeb is missing nodes");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		Node[] all = new Node[topo.getCapacity()];
+		HashSet<Integer> remove = new HashSet(), touched = new HashSet();
+		for (int id: shrink(topo, topo.size()-Math.max(size, 0), touched))
+			remove.add(id);
+		IdentityHashMap<Node, Segment> owners = new IdentityHashMap();
+		HashSet<Integer> needed = withLinks(topo, touched);
+		needed.addAll(remove);
+		if (!fetchNodes(all, where, needed, owners)){
+			System.err.println("Segment.truncate: HyPeerWeb is missing nodes");
+			if (listener != null)
+				listener.callback(null);
+			return;
+		}
+		HashMap<String, Object> orphans = releaseNodes(all, remove, owners);
+		for (int id: remove)
+			all[id] = null;
+		finishRemove(all, topo, owners, touched, orphans, listener);
+	}
+	private void finishRemove(
+		Node[] all, Topology topo, IdentityHashMap<Node, Segment> owners,
+		HashSet<Integer> touched, HashMap<String, Object> orphans, NodeListener listener
+	){
+		//Removed webID's were only needed to find the nodes linked to them
+		HashSet<Integer> survivors = new HashSet();
+		for (int id: touched){
+			if (topo.contains(id))
+				survivors.add(id);
+		}
+		rewire(all, topo, owners, toArray(survivors));
+		//The removed nodes' stored keys go to their new owners
+		if (!orphans.isEmpty())
+			putAll(orphans, null);
+		//The coordinator keeps the new size, so it needn't count the HyPeerWeb again
+		lockedSize = topo.size() == topo.getCapacity() ? topo.size() : -1;
+		HyPeerWebState newState = topo.size() == 0 ? HyPeerWebState.HAS_NONE :
+			topo.size() == 1 ? HyPeerWebState.HAS_ONE : HyPeerWebState.HAS_MANY;
+		if (newState != state)
+			changeState(newState);
+		if (listener != null)
+			listener.callback(this);
+	}
+	/**
+	 * Removes nodes from their segments, one request per segment
+	 * @param all all nodes in the HyPeerWeb, indexed by webID
+	 * @param remove the webID's to remove
+	 * @param owners the segment that holds each node
+	 * @return the keys the removed nodes stored, and their values
+	 */
+	private HashMap<String, Object> releaseNodes(Node[] all, HashSet<Integer> remove, IdentityHashMap<Node, Segment> owners){
+		HashMap<Segment, ArrayList<Node>> groups = new HashMap();
+		for (int id: remove){
+			Segment seg = owners.get(all[id]);
+			ArrayList<Node> group = groups.get(seg);
+			if (group == null){
+				group = new ArrayList();
+				groups.put(seg, group);
+			}
+			group.add(all[id]);
+		}
+		HashMap<String, Object> orphans = new HashMap();
+		for (Map.Entry<Segment, ArrayList<Node>> group: groups.entrySet()){
+			ArrayList<Node> list = group.getValue();
+			orphans.putAll(group.getKey().releaseNodes(list.toArray(new Node[list.size()])));
+		}
+		return orphans;
+	}
+	/**
+	 * Gathers the shape of the HyPeerWeb: every webID, along with the segment
+	 * that holds it. Only webID's are sent, so the shape can be computed
+	 * before any node is fetched (see fetchNodes)
+	 * @param where filled with the segment that holds each webID
+	 * @return a list of all segments
+	 */
+	private ArrayList<Segment> gatherShape(HashMap<Integer, Segment> where){
+		ArrayList<Segment> segs = getAllSegments();
+		for (Segment seg: segs){
+			for (int id: seg.getSegmentWebIds())
+				where.put(id, seg);
+		}
+		return segs;
+	}
+	/**
+	 * Fetches the nodes with the given webID's, one request per segment;
+	 * Node.equals compares webID's, which may change, so owners are mapped by identity
+	 * @param all filled with the fetched nodes, indexed by webID
+	 * @param where the segment that holds each webID (see gatherShape)
+	 * @param webIDs the webID's to fetch; ones that have already been
+	 *	fetched, or weren't in the HyPeerWeb, are skipped
+	 * @param owners filled with the segment that holds each node
+	 * @return false, if a segment no longer has one of the nodes
+	 */
+	private static boolean fetchNodes(Node[] all, HashMap<Integer, Segment> where, Set<Integer> webIDs, IdentityHashMap<Node, Segment> owners){
+		HashMap<Segment, ArrayList<Integer>> groups = new HashMap();
+		for (int id: webIDs){
+			Segment seg = where.get(id);
+			if (seg == null || id >= all.length || all[id] != null)
+				continue;
+			ArrayList<Integer> ids = groups.get(seg);
+			if (ids == null){
+				ids = new ArrayList();
+				groups.put(seg, ids);
+			}
+			ids.add(id);
+		}
+		for (Map.Entry<Segment, ArrayList<Integer>> group: groups.entrySet()){
+			ArrayList<Integer> ids = group.getValue();
+			int[] fetch = new int[ids.size()];
+			for (int i=0; i<fetch.length; i++)
+				fetch[i] = ids.get(i);
+			Node[] found = group.getKey().getSegmentNodes(fetch);
+			for (int i=0; i<fetch.length; i++){
+				if (found[i] == null)
+					return false;
+				all[fetch[i]] = found[i];
+				owners.put(found[i], group.getKey());
+			}
+		}
+		return true;
+	}
+	/**
+	 * Collects the webID's that are still in the HyPeerWeb, and all of their links
+	 * @param topo the shape of the HyPeerWeb
+	 * @param webIDs the webID's
+	 * @return the webID's, and the webID's they link to
+	 */
+	private static HashSet<Integer> withLinks(Topology topo, HashSet<Integer> webIDs){
+		HashSet<Integer> linked = new HashSet();
+		for (int id: webIDs){
+			if (topo.contains(id))
+				addLinks(topo, id, linked);
+		}
+		return linked;
+	}
+	/**
+	 * Links together a list of nodes, so they form a HyPeerWeb; segments
+	 * on other machines rewire their nodes at the same time
+	 * @param all all the nodes in the HyPeerWeb, indexed by their new webID
+	 * @param topo the shape of the HyPeerWeb
+	 * @param owners the segment that holds each node
+	 * @param webIDs the nodes to rewire; any node linked to one whose
+	 *	webID or height changes must be rewired as well
+	 */
+	private void rewire(Node[] all, Topology topo, IdentityHashMap<Node, Segment> owners, int[] webIDs){
+		int[] oldIDs = new int[all.length];
+		//Links are sorted by webID and height; these must be set before
+		//we add any links (this updates the cached values on proxies as well)
+		for (int id: webIDs){
+			oldIDs[id] = all[id].webID;
+			all[id].webID = id;
+			all[id].height = topo.getHeight(id);
+		}
+		//Group the nodes by segment, so each segment can rewire its nodes in one request
+		HashMap<Segment, ArrayList<Integer>> groups = new HashMap();
+		for (int id: webIDs){
+			Segment seg = owners.get(all[id]);
+			ArrayList<Integer> ids = groups.get(seg);
+			if (ids == null){
+				ids = new ArrayList();
+				groups.put(seg, ids);
+			}
+			ids.add(id);
+		}
+		ArrayList<ForkJoinTask> remote = new ArrayList();
+		HashMap<Segment, Node[]> rewired = new HashMap();
+		for (Map.Entry<Segment, ArrayList<Integer>> group: groups.entrySet()){
+			ArrayList<Integer> ids = group.getValue();
+			final int size = ids.size();
+			final Node[] targets = new Node[size],
+				folds = new Node[size], sfolds = new Node[size], isfolds = new Node[size];
+			final Node[][] n = new Node[size][], sn = new Node[size][], isn = new Node[size][];
+			final int[] prevIDs = new int[size], newIDs = new int[size], heights = new int[size];
+			for (int i=0; i<size; i++){
+				int id = ids.get(i);
+				targets[i] = all[id];
+				prevIDs[i] = oldIDs[id];
+				newIDs[i] = id;
+				heights[i] = all[id].height;
+				folds[i] = lookup(all, topo.getFold(id));
+				sfolds[i] = lookup(all, topo.getSurrogateFold(id));
+				isfolds[i] = lookup(all, topo.getInverseSurrogateFold(id));
+				n[i] = lookup(all, topo.getNeighbors(id));
+				sn[i] = lookup(all, topo.getSurrogateNeighbors(id));
+				isn[i] = lookup(all, topo.getInverseSurrogateNeighbors(id));
+			}
+			final Segment seg = group.getKey();
+			rewired.put(seg, targets);
+			Runnable apply = new Runnable(){
+				@Override
+				public void run(){
+					seg.applyLinks(targets, prevIDs, newIDs, heights, folds, sfolds, isfolds, n, sn, isn);
+				}
+			};
+			if (seg instanceof SegmentProxy)
+				remote.add(rewirePool.submit(apply));
+			else apply.run();
+		}
+		for (ForkJoinTask task: remote)
+			task.join();
+		//Once every segment is rewired, keys can be routed to their new owners
+		for (Map.Entry<Segment, Node[]> group: rewired.entrySet())
+			group.getKey().rehashNodes(group.getValue());
+	}
+	private static Node lookup(Node[] all, int webID){
+		return webID == -1 ? null : all[webID];
+	}
+	private static Node[] lookup(Node[] all, int[] webIDs){
+		Node[] found = new Node[webIDs.length];
+		for (int i=0; i<webIDs.length; i++)
+			found[i] = all[webIDs[i]];
+		return found;
+	}
+	/**
+	 * Finds all segments in this HyPeerWeb, by searching the segment links
+	 * @return a list of segments, starting with this one
+	 */
+	private ArrayList<Segment> getAllSegments(){
+		ArrayList<Segment> segs = new ArrayList();
+		HashSet<Integer> visited = new HashSet();
+		segs.add(this);
+		visited.add(webID);
+		for (int i=0; i<segs.size(); i++){
+			for (Node link: segs.get(i).L.getAllLinks()){
+				if (visited.add(link.getWebId()))
+					segs.add((Segment) link);
+			}
+		}
+		return segs;
+	}
+	/**
+	 * Gets all nodes in this segment
+	 * @return a list of nodes, ordered by webID
+	 */
+	public Node[] getSegmentNodes(){
+		return nodes.values().toArray(new Node[nodes.size()]);
+	}
+	/**
+	 * Gets some of the nodes in this segment
+	 * @param webIDs the webID's of the nodes
+	 * @return the node for each webID; null, if this segment doesn't have it
+	 */
+	public Node[] getSegmentNodes(int[] webIDs){
+		Node[] found = new Node[webIDs.length];
+		for (int i=0; i<webIDs.length; i++)
+			found[i] = nodes.get(webIDs[i]);
+		return found;
+	}
+	/**
+	 * Gets the webID's of every node in this segment
+	 * @return a list of webID's, in order
+	 */
+	public int[] getSegmentWebIds(){
+		Integer[] ids = nodes.keySet().toArray(new Integer[0]);
+		int[] webIDs = new int[ids.length];
+		for (int i=0; i<ids.length; i++)
+			webIDs[i] = ids[i];
+		return webIDs;
+	}
+	/**
+	 * Creates and registers new nodes with this segment; they will not
+	 * be part of the HyPeerWeb until they have been linked and indexed
+	 * @param count the number of nodes to create
+	 * @return a list of the new nodes
+	 */
+	protected Node[] allocateNodes(int count){
+		Node[] created = new Node[count];
+		for (int i=0; i<count; i++){
+			created[i] = new Node(0, 0);
+			registerNode(created[i]);
+		}
+		return created;
+	}
+	/**
+	 * Removes nodes from this segment and clears their links
+	 * @param removed the nodes to remove (all must belong to this segment)
+	 * @return the keys the nodes stored, and their values (see KEY-VALUE STORE)
+	 */
+	protected HashMap<String, Object> releaseNodes(Node[] removed){
+		HashMap<String, Object> orphans = new HashMap();
+		for (Node n: removed){
+			orphans.putAll(takeKeys(n, -1, 0));
+			unregisterNode(n);
+			n.resetLinks();
+		}
+		return orphans;
+	}
+	/**
+	 * Replaces the links of this segment's nodes; the lists are all parallel,
+	 * one entry for each node that is getting rewired. Each node only changes
+	 * its own links, so large batches are split into chunks that are linked
+	 * on separate threads; the nodes are indexed once they're all linked
+	 * @param targets the nodes to rewire (all must belong to this segment)
+	 * @param oldWebIDs the webID each node was indexed under (proxies to
+	 *	these nodes may already have the new webID)
+	 * @param webIDs the new webID for each node
+	 * @param heights the new height for each node
+	 * @param folds each node's fold, or null if it has none
+	 * @param sfolds each node's surrogate fold, or null
+	 * @param isfolds each node's inverse surrogate fold, or null
+	 * @param n each node's neighbors
+	 * @param sn each node's surrogate neighbors
+	 * @param isn each node's inverse surrogate neighbors
+	 */
+	protected void applyLinks(
+		final Node[] targets, int[] oldWebIDs, int[] webIDs, int[] heights,
+		final Node[] folds, final Node[] sfolds, final Node[] isfolds,
+		final Node[][] n, final Node[][] sn, final Node[][] isn
+	){
+		//Set all webID's and heights first, since they are the keys for the links
+		for (int i=0; i<targets.length; i++){
+			Node t = targets[i];
+			t.webID = webIDs[i];
+			t.height = heights[i];
+		}
+		ArrayList<ForkJoinTask> chunks = new ArrayList();
+		for (int from=0; from<targets.length; from+=REWIRE_CHUNK){
+			final int start = from, end = Math.min(from+REWIRE_CHUNK, targets.length);
+			Runnable link = new Runnable(){
+				@Override
+				public void run(){
+					for (int i=start; i<end; i++)
+						linkNode(targets[i], folds[i], sfolds[i], isfolds[i], n[i], sn[i], isn[i]);
+				}
+			};
+			//The last chunk runs on this thread
+			if (end == targets.length)
+				link.run();
+			else chunks.add(rewirePool.submit(link));
+		}
+		for (ForkJoinTask chunk: chunks)
+			chunk.join();
+		for (int i=0; i<targets.length; i++)
+			indexNode(targets[i], oldWebIDs[i]);
+	}
+	private static void linkNode(Node t, Node fold, Node sfold, Node isfold, Node[] n, Node[] sn, Node[] isn){
+		t.resetLinks();
+		for (Node x: n)
+			t.L.addNeighbor(x);
+		for (Node x: sn)
+			t.L.addSurrogateNeighbor(x);
+		for (Node x: isn)
+			t.L.addInverseSurrogateNeighbor(x);
+		if (fold != null)
+			t.L.setFold(fold);
+		if (sfold != null)
+			t.L.setSurrogateFold(sfold);
+		if (isfold != null)
+			t.L.setInverseSurrogateFold(isfold);
+		t.foldState = isfold == null ? FoldState.STABLE : FoldState.UNSTABLE;
+	}
+
 	//HYPEERWEB STATE
 	/**
 	 * Holds the state of the entire HyPeerWeb, not just
@@ -197,7 +1028,7 @@ public class Segment<T extends Node> extends Node{
 				n.resetLinks();
 				n.setWebID(0);
 				n.setHeight(0);
-				web.nodes.put(0, n);
+				web.indexNode(n, -1);
 				//callback
 				if (listener != null)
 					listener.callback(n);
@@ -208,7 +1039,7 @@ public class Segment<T extends Node> extends Node{
 				web.changeState(CORRUPT);
 				//callback
 				if (listener != null)
-					listener.callback(null);
+					listener.callback(null, null, -1);
 			}
 		},
 		//Only one node
@@ -228,8 +1059,7 @@ public class Segment<T extends Node> extends Node{
 				//broadcast state change to HAS_NONE
 				web.changeState(HAS_NONE);
 				//only node left; both n and web will be on this machine
-				web.nodes.clear();
-				web.nodesByUID.clear();
+				web.clearNodes();
 				//callback
 				if (listener != null)
 					listener.callback(n, null, -1);
@@ -239,11 +1069,11 @@ public class Segment<T extends Node> extends Node{
 		HAS_MANY {
 			@Override
 			public void addNode(Segment web, Node n, NodeListener listener){
-				//Find a random node to start insertion search from
-				web.getRandomNode(new NodeListener(
-					Node.className, "_MANY_add_random",
-					new String[]{Node.className, NodeListener.className},
-					new Object[]{n, listener}
+				//Start the insertion search from the insertion point
+				web.getInsertionPoint(new NodeListener(
+					Node.className, "_MANY_add_point",
+					new String[]{Node.className, "boolean", NodeListener.className},
+					new Object[]{n, web.isTrackerExact(), listener}
 				));
 			}
 			@Override
@@ -261,11 +1091,11 @@ public class Segment<T extends Node> extends Node{
 					//Always execute this last, to avoid network communication if at all possible
 					(size == 1 && last.L.getHighestLink().getWebId() > 1))
 				{
-					//Get a random node to start a disconnect search from
-					web.getRandomNode(new NodeListener(
-						Node.className, "_MANY_remove_random",
-						new String[]{Node.className, NodeListener.className},
-						new Object[]{n, listener}
+					//Start the disconnect search from the disconnect point
+					web.getDisconnectPoint(new NodeListener(
+						Node.className, "_MANY_remove_point",
+						new String[]{Node.className, "boolean", NodeListener.className},
+						new Object[]{n, web.isTrackerExact(), listener}
 					));
 				}
 				//If the entire HyPeerWeb has only two nodes
@@ -281,15 +1111,21 @@ public class Segment<T extends Node> extends Node{
 				}		
 			}
 		},
-		//Network is corrupt; a segment failed to perform an operation
+		//Network is corrupt; a segment failed to perform an operation.
+		//The operation fails, but the listener is still called, so
+		//the commit log can start the operations waiting behind it
 		CORRUPT {
 			@Override
 			public void addNode(Segment web, Node n, NodeListener listener){
 				System.err.println("CORRUPT HYPEERWEB");
+				if (listener != null)
+					listener.callback(null);
 			}
 			@Override
 			public void removeNode(Segment web, Node n, NodeListener listener){
 				System.err.println("CORRUPT HYPEERWEB");
+				if (listener != null)
+					listener.callback(null, null, -1);
 			}
 		};
 
@@ -314,11 +1150,13 @@ public class Segment<T extends Node> extends Node{
 	 * @param state the new state
 	 */
 	protected void changeState(final HyPeerWebState state){
-		(new BroadcastVisitor(new NodeListener(
+		NodeListener listener = new NodeListener(
 			className, "_changeState",
 			new String[]{HyPeerWebState.className},
 			new Object[]{state}
-		))).visit(this);
+		);
+		listener.setPriority(Command.Priority.CONTROL);
+		(new BroadcastVisitor(listener)).visit(this);
 	}
 	protected static void _changeState(Node n, HyPeerWebState state){
 		Segment seg = (Segment) n;
@@ -337,10 +1175,97 @@ public class Segment<T extends Node> extends Node{
 	protected static void _changeInceptionState(Node n, HyPeerWebState state){
 		((Segment) n).inceptionState = state;
 	}
-	protected static void _inheritState(Node n, HyPeerWebState state){
+	protected static void _inheritState(Node n, HyPeerWebState state, Segment[] segs, int[] sizes){
 		Segment seg = (Segment) n;
 		seg.state = state;
 		seg.inceptionState = HyPeerWebState.HAS_MANY;
+		for (int i=0; i<segs.length; i++)
+			seg.updateDirectory(segs[i], sizes[i]);
+	}
+	
+	//RANDOM SAMPLING
+	//How many remote lookups LOAD_AWARE sampling can try before giving up
+	private static final int SAMPLE_TRIES = 8;
+	public enum SamplingPolicy{
+		//Pick a random node in this segment; no network hops, unless the segment is empty.
+		//This is only uniform for the whole HyPeerWeb if the segments are evenly sized
+		LOCAL_FIRST {
+			@Override
+			public void sample(Segment web, int tries, NodeListener listener){
+				Node n = web.getRandomSegmentNode();
+				if (n != null)
+					listener.callback(n);
+				else web.getNode(((Random) web.rand.get()).nextInt(Integer.MAX_VALUE), true, listener);
+			}
+		},
+		//Pick a random webID from the entire HyPeerWeb, retrying if nobody has it;
+		//every node is equally likely, and we only go over the network when the
+		//webID belongs to another segment (proportional to how many nodes are remote)
+		LOAD_AWARE {
+			@Override
+			public void sample(Segment web, int tries, NodeListener listener){
+				Node last = web.getLastSegmentNode();
+				//Nothing to go on (or out of tries); route to a random point instead
+				if (last == null || tries <= 0){
+					web.getNode(((Random) web.rand.get()).nextInt(Integer.MAX_VALUE), true, listener);
+					return;
+				}
+				//All webID's are less than 2^dimension; the highest node/link we
+				//know of tells us the dimension, since heights only differ by one
+				Node link = last.L.getHighestLink();
+				int bound = Math.max(last.getWebId(), link == null ? 0 : link.getWebId());
+				int capacity = Math.max(1 << last.getHeight(), Integer.highestOneBit(bound) << 1);
+				Random r = (Random) web.rand.get();
+				while (true){
+					int id = r.nextInt(capacity);
+					Node n = (Node) web.nodes.get(id);
+					if (n != null){
+						listener.callback(n);
+						return;
+					}
+					//This segment has all the nodes; the webID doesn't exist
+					if (web.inceptionState == HyPeerWebState.HAS_ONE)
+						continue;
+					web.getNode(id, false, new NodeListener(
+						Segment.className, "_sample",
+						new String[]{Segment.className, "int", NodeListener.className},
+						new Object[]{web, tries-1, listener}
+					));
+					return;
+				}
+			}
+		};
+		
+		/**
+		 * Retrieve a random node
+		 * @param web the Segment to sample from
+		 * @param tries how many more remote lookups we can try
+		 * @param listener retrieval callback
+		 */
+		public abstract void sample(Segment web, int tries, NodeListener listener);
+	}
+	protected static void _sample(Node n, Segment origin, int tries, NodeListener listener){
+		//The webID we picked didn't exist; try another one
+		if (n == null)
+			origin.sampleNode(tries, listener);
+		else listener.callback(n);
+	}
+	/**
+	 * Creates the random number generators. Each thread's generator is seeded
+	 * from the segment's seed and the order the thread first sampled in; the
+	 * first thread uses the seed itself, so a run is repeatable as long as
+	 * its threads start sampling in the same order
+	 */
+	private void resetRandom(){
+		final AtomicLong threads = new AtomicLong();
+		rand = new ThreadLocal<Random>(){
+			@Override
+			protected Random initialValue(){
+				if (seed == -1)
+					return new Random();
+				return new Random(seed + threads.getAndIncrement()*0x9E3779B97F4A7C15L);
+			}
+		};
 	}
 	
 	//SEGMENT GETTERS
@@ -382,6 +1307,84 @@ public class Segment<T extends Node> extends Node{
 	public T getSegmentNodeByUID(int UID) {
 		return (T) nodesByUID.get(UID);
 	}
+	/**
+	 * Looks up the segment that holds the node with this UID
+	 * @param UID the UID of a node on this machine
+	 * @return the host segment; null, if no segment holds this node
+	 */
+	protected static Segment getHostByUID(int UID){
+		return hostIndex.get(UID);
+	}
+	
+	//SEGMENT NODE MAPS
+	/**
+	 * Registers a node with this segment, so it can be resolved by UID;
+	 * the node won't be retrievable by webID until it is indexed
+	 * @param n a node on this machine
+	 */
+	protected void registerNode(Node n){
+		synchronized (nodesByUID){
+			nodesByUID.put(n.UID, (T) n);
+			if (!isInceptionWeb)
+				hostIndex.put(n.UID, this);
+			changed(n.UID);
+		}
+	}
+	/**
+	 * Puts a registered node in the webID map, under its current webID
+	 * @param n a node on this machine
+	 * @param oldWebID the webID the node was previously mapped to; use -1
+	 *	if the node has not been mapped yet
+	 */
+	protected void indexNode(Node n, int oldWebID){
+		synchronized (nodesByUID){
+			if (oldWebID != -1 && nodes.get(oldWebID) == n){
+				nodes.remove(oldWebID);
+				topology.remove(oldWebID);
+			}
+			nodes.put(n.getWebId(), (T) n);
+			topology.add(n.getWebId());
+			changed(n.UID);
+		}
+		publishSize();
+		if (oldWebID != -1)
+			forgetLocations(oldWebID);
+		forgetLocations(n.getWebId());
+	}
+	/**
+	 * Removes a node from both node maps; the webID mapping is only
+	 * removed if it still refers to this node (a replacement may have taken it)
+	 * @param n a node on this machine
+	 */
+	protected void unregisterNode(Node n){
+		int id = n.getWebId();
+		synchronized (nodesByUID){
+			//Node.equals compares webID's, so check the identity ourselves
+			if (nodes.get(id) == n){
+				nodes.remove(id);
+				topology.remove(id);
+			}
+			nodesByUID.remove(n.UID);
+			hostIndex.remove(n.UID, this);
+			changed(n.UID);
+		}
+		forgetLocations(id);
+		publishSize();
+	}
+	/**
+	 * Removes all nodes from this segment's node maps
+	 */
+	protected void clearNodes(){
+		synchronized (nodesByUID){
+			for (Integer uid: nodesByUID.keySet())
+				hostIndex.remove(uid, this);
+			nodes.clear();
+			nodesByUID.clear();
+			topology = new Topology(0);
+			resetCache();
+		}
+		publishSize();
+	}
 	
 	//HYPEERWEB GETTERS
 	/**
@@ -389,7 +1392,35 @@ public class Segment<T extends Node> extends Node{
 	 * @param listener retrieval callback
 	 */
 	public void getRandomNode(NodeListener listener){
-		getNode(rand.nextInt(Integer.MAX_VALUE), true, listener);
+		sampleNode(SAMPLE_TRIES, listener);
+	}
+	/**
+	 * Retrieves a random node in the HyPeerWeb, using the sampling policy
+	 * @param tries how many more remote lookups we can try (see SamplingPolicy)
+	 * @param listener retrieval callback
+	 */
+	protected void sampleNode(int tries, NodeListener listener){
+		sampling.sample(this, tries, listener);
+	}
+	/**
+	 * Retrieves a random node in this segment; all nodes are equally likely
+	 * @return a random node; null, if the segment is empty
+	 */
+	public T getRandomSegmentNode(){
+		if (isSegmentEmpty()) return null;
+		Random r = rand.get();
+		int first = nodes.firstKey(), span = nodes.lastKey()-first+1;
+		//Pick random webID's in range until we find one that exists
+		for (int i=0; i<SAMPLE_TRIES*4; i++){
+			T n = nodes.get(first + r.nextInt(span));
+			if (n != null) return n;
+		}
+		//The segment's webID's are too sparse; walk to a random one instead
+		int skip = r.nextInt(nodes.size());
+		for (T n: nodes.values()){
+			if (skip-- == 0) return n;
+		}
+		return null;
 	}
 	/**
 	 * Retrieve a node with the specified webid
@@ -408,15 +1439,31 @@ public class Segment<T extends Node> extends Node{
 		else{
 			Node n = nodes.get(webId);
 			//If this segment has this node
-			if (n != null)
+			if (n != null){
+				recordRequest();
 				listener.callback(n);
-			//Otherwise, use send-visitor to get the node
+			}
+			//Otherwise, go get it; if someone is already looking
+			//for this node, wait for their result instead
 			else{
-				SendVisitor visitor = new SendVisitor(webId, approximate, listener);
-				visitor.visit(getFirstSegmentNode());
+				long key = (long) webId << 1 | (approximate ? 1 : 0);
+				if (joinFlight(key, listener))
+					lookupNode(webId, approximate, new NodeListener(
+						className, "_landFlight",
+						new String[]{Segment.className, "long", NodeListener.className},
+						new Object[]{this, key, listener}
+					));
 			}
 		}
 	}
+	private void lookupNode(int webId, boolean approximate, NodeListener listener){
+		//Use send-visitor to get the node; if we've looked
+		//it up before, we can go straight to its machine
+		if (approximate || !locate(false, webId, listener)){
+			SendVisitor visitor = new SendVisitor(webId, approximate, remember(false, approximate, listener));
+			visitor.visit(getFirstSegmentNode());
+		}
+	}
 	/**
 	 * Retrieves the segment with the specified webid
 	 * @param webId the id of the segment to retrieve
@@ -427,8 +1474,8 @@ public class Segment<T extends Node> extends Node{
 	public void getSegment(int webId, boolean approximate, NodeListener listener){
 		if (this.webID == webId)
 			listener.callback(this);
-		else{
-			SendVisitor visitor = new SendVisitor(webId, approximate, listener);
+		else if (approximate || !locate(true, webId, listener)){
+			SendVisitor visitor = new SendVisitor(webId, approximate, remember(true, approximate, listener));
 			visitor.visit(this);
 		}
 	}
@@ -439,12 +1486,41 @@ public class Segment<T extends Node> extends Node{
 	public Segment getNonemptySegment(){
 		//There are no non-empty segments
 		if (isEmpty()) return null;
-		else{
-			//Recursively look through all neighbors, searching for a node
-			//that is not empty; this is terribly inefficient, but we don't
-			//know a better way to do it (at least not yet)
-			//findValidNode will always check current node first
-			return (Segment) findValidNode(Criteria.Type.NONEMPTY, -1, false);
+		if (!isSegmentEmpty()) return this;
+		//Check the directory first
+		Segment found = pickFromDirectory();
+		if (found != null) return found;
+		//We haven't heard about any segments yet; concurrent searches share the same search
+		FutureTask<Segment> search;
+		boolean leader = false;
+		synchronized (flights){
+			search = nonemptySearch;
+			if (search == null){
+				search = nonemptySearch = new FutureTask(new Callable<Segment>(){
+					@Override
+					public Segment call(){
+						//Recursively look through all neighbors, searching for a node
+						//that is not empty; this is terribly inefficient, but we don't
+						//know a better way to do it (at least not yet)
+						//findValidNode will always check current node first
+						return (Segment) findValidNode(Criteria.Type.NONEMPTY, -1, false);
+					}
+				});
+				leader = true;
+			}
+		}
+		if (leader){
+			search.run();
+			synchronized (flights){
+				nonemptySearch = null;
+			}
+		}
+		try{
+			return search.get();
+		} catch (InterruptedException | ExecutionException e){
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			return null;
 		}
 	}
 	/**
@@ -455,42 +1531,1818 @@ public class Segment<T extends Node> extends Node{
 		return state == HyPeerWebState.HAS_NONE;
 	}
 	
-	//CACHE & DATABASE
+	//INSERTION & DISCONNECT POINTS
 	/**
-	 * Get a cached version of this HyPeerWeb segment
-	 * @param networkID the ID for the new cache
-	 * @return a node cache object
+	 * Retrieves the node that the next node should be added to; if this segment
+	 * has all the nodes, or knows the HyPeerWeb's size, this is exact (see
+	 * isTrackerExact), otherwise it is a nearby node to start the insertion search from
+	 * @param listener retrieval callback
 	 */
-	public SegmentCache getCache(){
-		SegmentCache c = new SegmentCache();
-		for (Node n: nodes.values())
-			c.addNode(n, false);
-		return c;
+	protected void getInsertionPoint(NodeListener listener){
+		int point, size = lockedSize;
+		//The next webID is the size; its parent drops the highest bit
+		if (size > 0)
+			point = size ^ Integer.highestOneBit(size);
+		else{
+			synchronized (nodesByUID){
+				point = topology.getInsertionPoint();
+			}
+		}
+		getTrackedNode(point, listener);
 	}
 	/**
-	 * Fetch a list of cached nodes
-	 * @param fetch the list of webID's to cache
-	 * @return a list of cached nodes
+	 * Retrieves the node that should replace the next removed node; if this
+	 * segment has all the nodes, or knows the HyPeerWeb's size, this is exact
+	 * (see isTrackerExact), otherwise it is a nearby node to start the disconnect search from
+	 * @param listener retrieval callback
 	 */
-	public NodeCache[] getCache(int[] fetch){
-		SegmentCache temp = new SegmentCache();
-		for (int id: fetch){
-			Node n = nodes.get(id);
-			if (n != null)
-				temp.addNode(n, false);
+	protected void getDisconnectPoint(NodeListener listener){
+		int point, size = lockedSize;
+		if (size > 0)
+			point = size-1;
+		else{
+			synchronized (nodesByUID){
+				point = topology.getDisconnectPoint();
+			}
 		}
-		return temp.nodes.values().toArray(new NodeCache[temp.nodes.size()]);
+		getTrackedNode(point, listener);
 	}
-	
-	//CLASS OVERRIDES
-	public void setWriteRealSegment(boolean writeRealNode) {
-		setWriteRealNode(writeRealNode);
-		for(Node n : nodes.values()){
-			n.setWriteRealNode(writeRealNode);
-		}
+	/**
+	 * Are the insertion and disconnect points exact? This is the case if this
+	 * segment has every node in the HyPeerWeb, or if it holds the edge lock
+	 * (see EDGE LOCK): the coordinator keeps the HyPeerWeb's size, and the
+	 * edge follows from the size, so the points are found with one lookup
+	 * (at most one hop to the segment that has them). Otherwise, adds and
+	 * removes start at the tracked point, but run the findInsertionNode/
+	 * findDisconnectNode walks from there
+	 * @return true, if the points can be used without searching
+	 */
+	protected boolean isTrackerExact(){
+		if (lockedSize > 0)
+			return true;
+		//The temporary web used to add/remove segments only has one of the segments
+		return inceptionState == HyPeerWebState.HAS_ONE && !isInceptionWeb;
 	}
-	@Override
-	public Object writeReplace() throws ObjectStreamException {
+	private void getTrackedNode(int webId, NodeListener listener){
+		//We don't know about any nodes
+		if (webId == -1)
+			getRandomNode(listener);
+		else getNode(webId, false, new NodeListener(
+			className, "_getTrackedNode",
+			new String[]{Segment.className, NodeListener.className},
+			new Object[]{this, listener}
+		));
+	}
+	protected static void _getTrackedNode(Node n, Segment origin, NodeListener listener){
+		//Another segment removed the node; start from a random node instead
+		if (n == null)
+			origin.getRandomNode(listener);
+		else listener.callback(n);
+	}
+	
+	//SEGMENT DIRECTORY
+	/**
+	 * Tells every segment this segment's new size, if it has changed enough
+	 * to matter (it emptied, got its first nodes, or doubled/halved in size)
+	 */
+	protected void publishSize(){
+		int size = nodes.size();
+		if (isInceptionWeb || size == publishedSize ||
+			(size != 0 && publishedSize != 0 && size < publishedSize*2 && size*2 > publishedSize))
+			return;
+		broadcastSize(size);
+	}
+	private void broadcastSize(int size){
+		publishedSize = size;
+		new BroadcastVisitor(new NodeListener(
+			className, "_updateDirectory",
+			new String[]{Segment.className, "int"},
+			new Object[]{this, size}
+		)).visit(this);
+	}
+	protected static void _updateDirectory(Node n, Segment seg, int size){
+		((Segment) n).updateDirectory(seg, size);
+	}
+	/**
+	 * Updates a segment's directory entry
+	 * @param seg the segment
+	 * @param size the segment's size; if zero, the segment is removed from the directory
+	 */
+	protected void updateDirectory(Segment seg, int size){
+		RemoteAddress addr = getDirectoryAddress(seg);
+		synchronized (directory){
+			for (int i=0; i<directory.size(); i++){
+				DirectoryEntry entry = directory.get(i);
+				if (entry.segment == seg || (addr != null && addr.equals(entry.address))){
+					directory.remove(i);
+					break;
+				}
+			}
+			if (size > 0)
+				directory.add(new DirectoryEntry(seg, addr, size));
+		}
+	}
+	/**
+	 * Get a copy of the segment directory
+	 * @return all the segments known to have nodes, with their sizes
+	 */
+	public DirectoryEntry[] getDirectory(){
+		synchronized (directory){
+			return directory.toArray(new DirectoryEntry[directory.size()]);
+		}
+	}
+	/**
+	 * Picks a non-empty segment from the directory; larger segments are
+	 * more likely to be picked
+	 * @return a segment other than this one; null, if the directory has none
+	 */
+	private Segment pickFromDirectory(){
+		synchronized (directory){
+			int total = 0;
+			for (DirectoryEntry entry: directory){
+				if (entry.segment != this)
+					total += entry.size;
+			}
+			if (total == 0)
+				return null;
+			int pick = rand.get().nextInt(total);
+			for (DirectoryEntry entry: directory){
+				if (entry.segment != this && (pick -= entry.size) < 0)
+					return entry.segment;
+			}
+			return null;
+		}
+	}
+	/**
+	 * Identifies a segment across machines; proxies will have
+	 * different UID's than the segment they refer to
+	 * @param seg a segment or segment proxy
+	 * @return the segment's address, including its UID; null, if we aren't networked
+	 */
+	private static RemoteAddress getDirectoryAddress(Segment seg){
+		RemoteAddress addr = seg.getAddress();
+		if (addr == null || seg instanceof SegmentProxy)
+			return addr;
+		return new RemoteAddress(addr, seg.UID);
+	}
+	/**
+	 * A segment that has nodes, and how many it had when it was last published
+	 */
+	public static class DirectoryEntry implements Serializable{
+		public final Segment segment;
+		public final RemoteAddress address;
+		public final int size;
+		public DirectoryEntry(Segment segment, RemoteAddress address, int size){
+			this.segment = segment;
+			this.address = address;
+			this.size = size;
+		}
+	}
+	
+	//LOAD BALANCING
+	//Segments within this factor of the least loaded segment are left alone
+	private static final double IMBALANCE = 1.25;
+	//Most nodes one segment moves to another per rebalance
+	private static final int MIGRATE_BATCH = 64;
+	/**
+	 * Counts a request for one of this segment's nodes (see getRequestRate)
+	 */
+	public void recordRequest(){
+		requests.incrementAndGet();
+	}
+	/**
+	 * Get the number of requests per second this segment's nodes have
+	 * received, since the last time the rate was sampled
+	 * @return the request rate; zero, the first time this is called
+	 */
+	public double getRequestRate(){
+		long now = System.nanoTime(), count = requests.get();
+		synchronized (requests){
+			double rate = rateSampled == 0 ? 0 :
+				(count-rateRequests)*1e9/Math.max(now-rateSampled, 1);
+			rateRequests = count;
+			rateSampled = now;
+			return rate;
+		}
+	}
+	/**
+	 * Evens out the load between segments, by moving nodes from the busiest
+	 * segments to the least busy ones (see migrateNodes). A segment's load
+	 * counts its share of the nodes and its share of the requests equally
+	 * @param listener executed on this segment once the moves have been
+	 *	submitted; this segment is passed as the callback node
+	 */
+	public void rebalance(NodeListener listener){
+		ArrayList<Segment> segs = getAllSegments();
+		int count = segs.size();
+		int[] sizes = new int[count];
+		double[] rates = new double[count], loads = new double[count];
+		double totalSize = 0, totalRate = 0;
+		for (int i=0; i<count; i++){
+			sizes[i] = segs.get(i).getSegmentSize();
+			rates[i] = segs.get(i).getRequestRate();
+			totalSize += sizes[i];
+			totalRate += rates[i];
+		}
+		for (int i=0; i<count && totalSize > 0; i++){
+			loads[i] = sizes[i]/totalSize +
+				(totalRate > 0 ? rates[i]/totalRate : sizes[i]/totalSize);
+		}
+		//Each round moves nodes from the busiest segment to the least busy one
+		for (int round=0; round<count && totalSize > 0; round++){
+			int hi = 0, lo = 0;
+			for (int i=1; i<count; i++){
+				if (loads[i] > loads[hi]) hi = i;
+				if (loads[i] < loads[lo]) lo = i;
+			}
+			if (sizes[hi] == 0 || loads[hi] <= loads[lo]*IMBALANCE)
+				break;
+			//Assume every node on the busy segment carries the same load
+			double perNode = loads[hi]/sizes[hi];
+			int moves = Math.min((int) ((loads[hi]-loads[lo])/2/perNode), Math.min(MIGRATE_BATCH, sizes[hi]));
+			if (moves == 0)
+				break;
+			segs.get(hi).migrateNodes(segs.get(lo), moves, null);
+			sizes[hi] -= moves;
+			sizes[lo] += moves;
+			loads[hi] -= moves*perNode;
+			loads[lo] += moves*perNode;
+		}
+		if (listener != null)
+			listener.callback(this);
+	}
+	/**
+	 * Moves nodes from this segment to another one, while the HyPeerWeb is in
+	 * use; each node's webID, height, links, fold state, and attributes are
+	 * copied to a new node on the other segment, and every link to it is
+	 * replaced (see Links._replaceLinks). Nodes with the most links to the other
+	 * segment are moved first. Only plain Nodes are moved, not subclasses
+	 * @param to the segment to move the nodes to
+	 * @param count how many nodes to move
+	 * @param listener executed on this segment once the nodes have been
+	 *	moved; this segment is passed as the callback node
+	 */
+	public void migrateNodes(Segment to, int count, NodeListener listener){
+		migrateNodes(pickMigrants(to, count), to, listener);
+	}
+	/**
+	 * Moves specific nodes from this segment to another one
+	 * @param moving plain Nodes on this segment
+	 * @param to the segment to move the nodes to
+	 * @param listener executed on this segment once the nodes have been
+	 *	moved; this segment is passed as the callback node
+	 * @see #migrateNodes(hypeerweb.Segment, int, communicator.NodeListener)
+	 */
+	protected void migrateNodes(Node[] moving, Segment to, NodeListener listener){
+		if (moving.length == 0 || to == this){
+			if (listener != null)
+				listener.callback(this);
+			return;
+		}
+		Commit c = new Commit(Commit.Type.MIGRATE, null, -1, listener);
+		c.moving = moving;
+		c.destination = to;
+		submit(c);
+	}
+	/**
+	 * Picks the nodes to move to another segment; the more links a
+	 * node has to that segment, the fewer proxies moving it creates
+	 * @param to the segment the nodes will move to
+	 * @param count how many nodes to pick
+	 * @return the nodes to move
+	 */
+	private Node[] pickMigrants(Segment to, int count){
+		RemoteAddress addr = to instanceof SegmentProxy ? to.getAddress() : null;
+		final IdentityHashMap<Node, Integer> scores = new IdentityHashMap();
+		ArrayList<Node> candidates = new ArrayList();
+		for (Node n: nodes.values()){
+			if (n.getClass() != Node.class)
+				continue;
+			int score = 0;
+			for (Node link: n.L.getAllLinks()){
+				if (addr != null ? link instanceof NodeProxy && addr.onSameMachineAs(link.getAddress()) :
+					getHostByUID(link.UID) == to)
+					score++;
+			}
+			scores.put(n, score);
+			candidates.add(n);
+		}
+		Collections.sort(candidates, new Comparator<Node>(){
+			@Override
+			public int compare(Node a, Node b){
+				return scores.get(b) - scores.get(a);
+			}
+		});
+		int size = Math.min(Math.max(count, 0), candidates.size());
+		return candidates.subList(0, size).toArray(new Node[size]);
+	}
+	/**
+	 * Moves nodes to another segment; runs from the commit log, so no other
+	 * operation on this segment is changing the nodes or their links
+	 * @param c the migration
+	 */
+	private void migrate(Commit c){
+		//Some of the nodes may have been removed while we were waiting
+		ArrayList<Node> found = new ArrayList();
+		for (Node n: c.moving){
+			if (nodesByUID.get(n.UID) == n && nodes.get(n.getWebId()) == n)
+				found.add(n);
+		}
+		Node[] olds = found.toArray(new Node[found.size()]);
+		NodeImmutable[] snapshots = new NodeImmutable[olds.length];
+		for (int i=0; i<olds.length; i++)
+			snapshots[i] = new NodeImmutable(olds[i]);
+		if (olds.length > 0){
+			Node[] copies = c.destination.adoptNodes(snapshots);
+			replaceLinks(olds, copies, snapshots);
+			//Nothing links to the old nodes anymore; any requests already
+			//on their way will still find their old links, until they're collected
+			for (Node n: olds)
+				unregisterNode(n);
+		}
+		if (c.listener != null)
+			c.listener.callback(this);
+		finishCommit(c.seq, 0);
+	}
+	/**
+	 * Creates copies of nodes that are moving to this segment
+	 * @param snapshots the nodes to copy
+	 * @return the new nodes; they are already part of this segment
+	 */
+	protected Node[] adoptNodes(NodeImmutable[] snapshots){
+		Node[] adopted = new Node[snapshots.length];
+		for (int i=0; i<snapshots.length; i++){
+			adopted[i] = new Node(snapshots[i]);
+			registerNode(adopted[i]);
+			indexNode(adopted[i], -1);
+		}
+		return adopted;
+	}
+	/**
+	 * Points every link of the moved nodes to the copies; links that are on
+	 * the same machine are updated in one request, and all machines are
+	 * updated at the same time
+	 * @param olds the nodes that moved
+	 * @param copies the new node for each one
+	 * @param snapshots the links of each node when it moved
+	 */
+	private static void replaceLinks(Node[] olds, Node[] copies, NodeImmutable[] snapshots){
+		//Moved nodes may be linked to each other; those links have moved too
+		IdentityHashMap<Node, Node> moved = new IdentityHashMap();
+		for (int i=0; i<olds.length; i++)
+			moved.put(olds[i], copies[i]);
+		RemoteAddress hostAddr = Communicator.getAddress();
+		HashMap<RemoteAddress, ReplaceGroup> groups = new HashMap();
+		ReplaceGroup here = new ReplaceGroup();
+		for (int i=0; i<olds.length; i++){
+			LinksImmutable l = snapshots[i].L;
+			//NOTE: we reverse surrogate/inverse-surrogate connection types
+			Node[][] links = {
+				{l.fold}, {l.surrogateFold}, {l.inverseSurrogateFold},
+				l.neighbors.toArray(new Node[0]),
+				l.surrogateNeighbors.toArray(new Node[0]),
+				l.inverseSurrogateNeighbors.toArray(new Node[0])
+			};
+			Links.Type[] types = {
+				Links.Type.FOLD, Links.Type.ISFOLD, Links.Type.SFOLD,
+				Links.Type.NEIGHBOR, Links.Type.ISNEIGHBOR, Links.Type.SNEIGHBOR
+			};
+			for (int t=0; t<types.length; t++){
+				for (Node link: links[t]){
+					if (link == null)
+						continue;
+					Node target = moved.containsKey(link) ? moved.get(link) : link;
+					RemoteAddress laddr = target.getAddress();
+					ReplaceGroup group = here;
+					if (laddr != null && !laddr.onSameMachineAs(hostAddr)){
+						RemoteAddress generic = new RemoteAddress(laddr);
+						group = groups.get(generic);
+						if (group == null){
+							group = new ReplaceGroup();
+							groups.put(generic, group);
+						}
+					}
+					group.add(target.L, olds[i], copies[i], types[t]);
+				}
+			}
+		}
+		ArrayList<ForkJoinTask> remote = new ArrayList();
+		for (final Map.Entry<RemoteAddress, ReplaceGroup> group: groups.entrySet()){
+			remote.add(rewirePool.submit(new Runnable(){
+				@Override
+				public void run(){
+					Communicator.request(group.getKey(), group.getValue().toCommand(), true);
+				}
+			}));
+		}
+		here.apply();
+		for (ForkJoinTask task: remote)
+			task.join();
+	}
+	/**
+	 * Link replacements for one machine (see Links._replaceLinks)
+	 */
+	private static class ReplaceGroup{
+		private final ArrayList<Links> links = new ArrayList();
+		private final ArrayList<Node> olds = new ArrayList(), news = new ArrayList();
+		private final ArrayList<Links.Type> types = new ArrayList();
+		public void add(Links l, Node oldPointer, Node newPointer, Links.Type type){
+			links.add(l);
+			olds.add(oldPointer);
+			news.add(newPointer);
+			types.add(type);
+		}
+		public void apply(){
+			Links._replaceLinks(
+				links.toArray(new Links[links.size()]),
+				olds.toArray(new Node[olds.size()]),
+				news.toArray(new Node[news.size()]),
+				types.toArray(new Links.Type[types.size()])
+			);
+		}
+		public Command toCommand(){
+			return new Command(
+				Links.className, "_replaceLinks",
+				new String[]{Links.classNameArr, Node.classNameArr, Node.classNameArr, Links.Type[].class.getName()},
+				new Object[]{
+					links.toArray(new Links[links.size()]),
+					olds.toArray(new Node[olds.size()]),
+					news.toArray(new Node[news.size()]),
+					types.toArray(new Links.Type[types.size()])
+				}
+			).setPriority(Command.Priority.CONTROL);
+		}
+	}
+	
+	//PLACEMENT
+	public enum PlacementPolicy{
+		//Nodes stay on the segment that added them
+		LOCAL,
+		//A new node is created on its parent's segment (the listener gets that
+		//node), and a new segment takes a sub-cube from the largest segment.
+		//A child's webID only adds a bit above its parent's height, so
+		//nodes that share their lowest webID bits form a sub-cube that keeps
+		//growing on the same segment; most of their links stay local
+		LOCALITY
+	}
+	/**
+	 * Should a new node be created on its parent's segment?
+	 * @param n the node being added
+	 * @return true, if the parent is found before the node is created
+	 */
+	private boolean placesNearParent(Node n){
+		//Segments, and the first two nodes, are added by the HyPeerWeb's state
+		return placement == PlacementPolicy.LOCALITY &&
+			state == HyPeerWebState.HAS_MANY && n.getClass() == Node.class;
+	}
+	/**
+	 * Adds a node on the segment its parent is on
+	 * @param c the add operation; its node isn't registered yet
+	 */
+	private void placeNode(Commit c){
+		getInsertionPoint(new NodeListener(
+			className, "_placeNode",
+			new String[]{NodeImmutable.class.getName(), "boolean", className, "long", NodeListener.className},
+			new Object[]{new NodeImmutable(c.node), isTrackerExact(), this, c.seq, c.listener}
+		));
+	}
+	protected static void _placeNode(Node point, NodeImmutable child, boolean exact, Segment origin, long seq, NodeListener listener){
+		Node parent = exact ? point : point.findInsertionNode();
+		//Create the child on the parent's machine
+		parent.executeRemotely(new NodeListener(
+			className, "_placeChild",
+			new String[]{NodeImmutable.class.getName(), className, "long", NodeListener.className},
+			new Object[]{child, origin, seq, listener}
+		));
+	}
+	protected static void _placeChild(Node parent, NodeImmutable snapshot, Segment origin, long seq, NodeListener listener){
+		Segment host = parent.getHostSegment();
+		//The node that was passed to addNode can be used, if it is already there
+		Node child = host == origin ? origin.getCommitNode(seq) : new Node(snapshot);
+		host.registerNode(child);
+		parent.addChild(child, new NodeListener(
+			className, "_addCommitted",
+			new String[]{className, "long", NodeListener.className},
+			new Object[]{origin, seq, listener}
+		));
+	}
+	/**
+	 * Picks the largest segment we know of, to give nodes to a new segment
+	 * @return a segment; this one, if we don't know of any others with nodes
+	 */
+	private Segment getLargestSegment(){
+		Segment largest = this;
+		int size = getSegmentSize();
+		for (DirectoryEntry entry: getDirectory()){
+			if (entry.size > size){
+				largest = entry.segment;
+				size = entry.size;
+			}
+		}
+		return largest;
+	}
+	protected static void _segmentAdded(Node n, Segment donor, NodeListener listener){
+		donor.migrateSubcube((Segment) n, new NodeListener(
+			className, "_subcubeMoved",
+			new String[]{className, NodeListener.className},
+			new Object[]{n, listener}
+		));
+	}
+	protected static void _subcubeMoved(Node n, Segment added, NodeListener listener){
+		if (listener != null)
+			added.executeRemotely(listener);
+	}
+	/**
+	 * Moves about half of this segment's nodes to another segment, picking
+	 * nodes that form a sub-cube: all those whose lowest k webID bits are the
+	 * same (for the k that splits the segment most evenly)
+	 * @param to the segment to move the nodes to
+	 * @param listener executed on this segment once the nodes have been
+	 *	moved; this segment is passed as the callback node
+	 */
+	public void migrateSubcube(Segment to, NodeListener listener){
+		Node[] all = getSegmentNodes();
+		int half = all.length/2, bestBits = 0, bestSuffix = 0, bestCount = 0;
+		for (int bits=1; bits<31 && 1 << (bits-1) <= all.length; bits++){
+			int mask = (1 << bits)-1;
+			HashMap<Integer, Integer> counts = new HashMap();
+			for (Node n: all){
+				Integer count = counts.get(n.getWebId() & mask);
+				counts.put(n.getWebId() & mask, count == null ? 1 : count+1);
+			}
+			for (Map.Entry<Integer, Integer> entry: counts.entrySet()){
+				if (Math.abs(entry.getValue()-half) < Math.abs(bestCount-half)){
+					bestBits = bits;
+					bestSuffix = entry.getKey();
+					bestCount = entry.getValue();
+				}
+			}
+		}
+		ArrayList<Node> moving = new ArrayList();
+		int mask = (1 << bestBits)-1;
+		for (Node n: all){
+			if (bestBits > 0 && (n.getWebId() & mask) == bestSuffix && n.getClass() == Node.class)
+				moving.add(n);
+		}
+		migrateNodes(moving.toArray(new Node[moving.size()]), to, listener);
+	}
+	/**
+	 * Get the fraction of this segment's links that point to a node on
+	 * another segment; each of those links is a proxy (see Links.getProxies)
+	 * or a link to another segment on this machine, and changing it may
+	 * need a network request
+	 * @return the ratio of remote links to all links; zero, if there are no links
+	 */
+	public double getProxyRatio(){
+		long links = 0, remote = 0;
+		for (Node n: nodes.values()){
+			Node[] all = n.L.getAllLinks();
+			links += all.length;
+			remote += n.L.getProxies().size();
+			for (Node link: all){
+				Segment host;
+				if (!(link instanceof NodeProxy) && (host = getHostByUID(link.UID)) != null && host != this)
+					remote++;
+			}
+		}
+		return links == 0 ? 0 : (double) remote/links;
+	}
+	
+	//LOCATION CACHE
+	private LinkedHashMap<Integer, RemoteAddress> newLocationCache(){
+		return new LinkedHashMap<Integer, RemoteAddress>(16, .75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, RemoteAddress> eldest){
+				return size() > LOCATION_CACHE_SIZE;
+			}
+		};
+	}
+	private LinkedHashMap<Integer, RemoteAddress> getLocations(boolean segment){
+		return segment ? segmentLocations : nodeLocations;
+	}
+	/**
+	 * Sends a lookup directly to the machine a node/segment was last found on
+	 * @param segment is this a segment lookup (see getSegment), or a node lookup
+	 * @param webId the webID to look up
+	 * @param listener retrieval callback
+	 * @return false, if we don't know where this webID is
+	 */
+	private boolean locate(boolean segment, int webId, NodeListener listener){
+		LinkedHashMap<Integer, RemoteAddress> locations = getLocations(segment);
+		RemoteAddress loc;
+		synchronized (locations){
+			loc = locations.get(webId);
+		}
+		if (loc == null)
+			return false;
+		Communicator.request(loc, new Command(
+			className, "_locate",
+			new String[]{"int", "int", "boolean", RemoteAddress.className, NodeListener.className},
+			new Object[]{loc.UID, webId, segment, new RemoteAddress(UID), listener}
+		), false);
+		return true;
+	}
+	/**
+	 * Wraps a lookup callback, so the found node reports its location back to us
+	 * @param segment is this a segment lookup, or a node lookup
+	 * @param approximate approximate lookups aren't cached
+	 * @param listener retrieval callback
+	 * @return the wrapped listener
+	 */
+	private NodeListener remember(boolean segment, boolean approximate, NodeListener listener){
+		//Nothing to remember if we aren't networked
+		if (approximate || Communicator.getAddress() == null)
+			return listener;
+		return new NodeListener(
+			className, "_remember",
+			new String[]{"boolean", RemoteAddress.className, NodeListener.className},
+			new Object[]{segment, new RemoteAddress(UID), listener}
+		);
+	}
+	protected static void _remember(Node n, boolean segment, RemoteAddress origin, NodeListener listener){
+		//Nodes on the origin's machine can be found without the cache
+		if (n != null && !origin.onSameMachineAs(Communicator.getAddress())){
+			Communicator.request(origin, new Command(
+				className, "_rememberLocation",
+				new String[]{"int", "boolean", "int", RemoteAddress.className},
+				new Object[]{origin.UID, segment, n.getWebId(), new RemoteAddress(n.UID)}
+			), false);
+		}
+		listener.callback(n);
+	}
+	protected static void _locate(int UID, int webId, boolean segment, RemoteAddress origin, NodeListener listener){
+		Node n;
+		if (segment)
+			n = (Segment) Communicator.resolveId(Segment.class, UID);
+		else{
+			Segment host = getHostByUID(UID);
+			n = host == null ? null : host.getSegmentNodeByUID(UID);
+			//A replacement may have taken over this webID
+			if (n != null && host.nodes.get(webId) != n)
+				n = null;
+		}
+		if (n != null && n.getWebId() == webId)
+			listener.callback(n);
+		//The node was removed or replaced; route to it normally instead
+		else{
+			Communicator.request(origin, new Command(
+				className, "_relocate",
+				new String[]{"int", "boolean", "int", NodeListener.className},
+				new Object[]{origin.UID, segment, webId, listener}
+			), false);
+		}
+	}
+	/**
+	 * Caches the location of a remote node/segment
+	 * @param segment is this a segment's location, or a node's location
+	 * @param webId the webID of the node/segment
+	 * @param loc the address of the node/segment, with its UID
+	 */
+	protected void rememberLocation(boolean segment, int webId, RemoteAddress loc){
+		LinkedHashMap<Integer, RemoteAddress> locations = getLocations(segment);
+		synchronized (locations){
+			locations.put(webId, loc);
+		}
+	}
+	/**
+	 * Removes a cached location, if there is one
+	 * @param segment is this a segment's location, or a node's location
+	 * @param webId the webID of the node/segment
+	 */
+	protected void forgetLocation(boolean segment, int webId){
+		LinkedHashMap<Integer, RemoteAddress> locations = getLocations(segment);
+		synchronized (locations){
+			locations.remove(webId);
+		}
+	}
+	protected static void _rememberLocation(int originUID, boolean segment, int webId, RemoteAddress loc){
+		Segment origin = (Segment) Communicator.resolveId(Segment.class, originUID);
+		if (origin != null)
+			origin.rememberLocation(segment, webId, loc);
+	}
+	protected static void _relocate(int originUID, boolean segment, int webId, NodeListener listener){
+		Segment origin = (Segment) Communicator.resolveId(Segment.class, originUID);
+		//The origin segment is gone; nothing we can do
+		if (origin == null)
+			listener.callback(null);
+		//The cached location was stale; forget it and look up the node again
+		else{
+			origin.forgetLocation(segment, webId);
+			if (segment)
+				origin.getSegment(webId, false, listener);
+			else origin.lookupNode(webId, false, listener);
+		}
+	}
+	/**
+	 * A node on this machine has taken or given up a webID; any location
+	 * this machine's segments had cached for that webID is now wrong
+	 * @param webId the webID that changed owners
+	 */
+	protected static void forgetLocations(int webId){
+		for (Segment s: segmentList)
+			s.forgetLocation(false, webId);
+	}
+	
+	//REQUEST COALESCING
+	/**
+	 * Waits for a lookup that is already in progress, or starts a new one
+	 * @param key identifies the lookup
+	 * @param listener retrieval callback
+	 * @return true, if the caller should perform the lookup (see _landFlight);
+	 *	false, if the listener will get the in-progress lookup's result
+	 */
+	private boolean joinFlight(long key, NodeListener listener){
+		long now = System.currentTimeMillis();
+		synchronized (flights){
+			Flight flight = flights.get(key);
+			if (flight == null){
+				flights.put(key, new Flight(now));
+				return true;
+			}
+			//The lookup may have been lost (e.g. a dropped connection); retry it
+			if (now - flight.started > FLIGHT_TIMEOUT){
+				flight.started = now;
+				return true;
+			}
+			flight.waiting.add(listener);
+			return false;
+		}
+	}
+	/**
+	 * Finishes an in-progress lookup
+	 * @param key identifies the lookup
+	 * @return the listeners that were waiting on the result
+	 */
+	protected NodeListener[] landFlight(long key){
+		synchronized (flights){
+			Flight flight = flights.remove(key);
+			if (flight == null)
+				return new NodeListener[0];
+			return flight.waiting.toArray(new NodeListener[flight.waiting.size()]);
+		}
+	}
+	protected static void _landFlight(Node n, Segment origin, long key, NodeListener listener){
+		NodeListener[] waiting = origin.landFlight(key);
+		listener.callback(n);
+		for (NodeListener l: waiting)
+			l.callback(n);
+	}
+	private static class Flight{
+		public long started;
+		public final ArrayList<NodeListener> waiting = new ArrayList();
+		public Flight(long started){
+			this.started = started;
+		}
+	}
+	
+	//COMMIT LOG
+	/**
+	 * Queues an add/remove operation; it is started once it no longer
+	 * conflicts with any earlier or in progress operation
+	 * @param c the operation to commit
+	 */
+	private void submit(Commit c){
+		synchronized (pending){
+			pending.add(c);
+		}
+		commit();
+	}
+	/**
+	 * Starts every pending operation that doesn't conflict; only one thread
+	 * does this at a time, the others just leave their operations in the log
+	 */
+	private void commit(){
+		synchronized (pending){
+			if (committing)
+				return;
+			committing = true;
+		}
+		while (true){
+			ArrayList<Commit> ready;
+			synchronized (pending){
+				ready = nextCommits();
+				if (ready.isEmpty()){
+					committing = false;
+					return;
+				}
+			}
+			//Operations that finish right away will call finishCommit
+			//on this thread; we'll pick up anything they unblocked next loop
+			for (Commit c: ready)
+				startCommit(c);
+		}
+	}
+	/**
+	 * Picks the pending operations that can start now, in timestamp order;
+	 * an operation can only start if it doesn't conflict with one that is in
+	 * progress, or with an earlier one that is still waiting. An add that is
+	 * directly followed by a remove is merged into one commit: the new node
+	 * just replaces the removed one, which is what the disconnect step would
+	 * have done anyway, so the shape of the HyPeerWeb never changes. A remove
+	 * of the node being added can't be merged; it has to wait for the add
+	 * @return the operations to start; they have been moved to inflight
+	 */
+	private ArrayList<Commit> nextCommits(){
+		ArrayList<Commit> ready = new ArrayList(), blocked = new ArrayList();
+		Commit[] queue = pending.toArray(new Commit[pending.size()]);
+		for (int i=0; i<queue.length; i++){
+			Commit c = queue[i];
+			if (c.type == Commit.Type.ADD && c.fused == null && i+1 < queue.length &&
+				queue[i+1].type == Commit.Type.REMOVE && !removesAdded(c, queue[i+1]) &&
+				state != HyPeerWebState.HAS_NONE && state != HyPeerWebState.CORRUPT)
+			{
+				c.fused = queue[++i];
+				pending.remove(c.fused);
+			}
+			c.footprint = getFootprint(c);
+			if (c.conflicts(inflight.values()) || c.conflicts(blocked))
+				blocked.add(c);
+			else{
+				pending.remove(c);
+				inflight.put(c.seq, c);
+				ready.add(c);
+			}
+		}
+		return ready;
+	}
+	/**
+	 * Does a remove target the node an add is adding?
+	 * @param add the add operation
+	 * @param remove the remove operation
+	 * @return true, if they are for the same node
+	 */
+	private static boolean removesAdded(Commit add, Commit remove){
+		return remove.node != null && remove.node.UID == add.node.UID;
+	}
+	/**
+	 * Gets the webID's an operation will modify; adds and removes always move
+	 * the edge of the HyPeerWeb, so we can't know which nodes they'll touch
+	 * until they run. A merged add/remove only touches the removed node and its links
+	 * @param c the operation
+	 * @return the webID's, or null if it could touch any node
+	 */
+	private HashSet<Integer> getFootprint(Commit c){
+		HashSet<Integer> footprint = new HashSet();
+		//A migration touches the nodes it moves and their links
+		if (c.type == Commit.Type.MIGRATE){
+			for (Node n: c.moving){
+				if (!addFootprint(n, footprint))
+					return null;
+			}
+			return footprint;
+		}
+		if (c.fused == null)
+			return null;
+		Node target = c.fused.node != null ? c.fused.node : nodes.get(c.fused.webId);
+		return addFootprint(target, footprint) ? footprint : null;
+	}
+	private boolean addFootprint(Node target, HashSet<Integer> footprint){
+		//Remote nodes' links would require a network request
+		if (target == null || target instanceof NodeProxy || nodesByUID.get(target.UID) != target)
+			return false;
+		footprint.add(target.getWebId());
+		for (Node link: target.L.getAllLinks())
+			footprint.add(link.getWebId());
+		return true;
+	}
+	/**
+	 * Starts an operation that has been moved to inflight, once it has
+	 * the edge lock
+	 * @param c the operation
+	 */
+	private void startCommit(Commit c){
+		try{
+			lockEdge(c);
+		} catch (RuntimeException e){
+			failCommit(c, e);
+		}
+	}
+	/**
+	 * Finishes an operation that threw an exception; a failed
+	 * operation can't block the ones waiting behind it
+	 * @param c the operation
+	 * @param e what it threw
+	 */
+	private void failCommit(Commit c, RuntimeException e){
+		System.err.println("Segment: commit "+c.seq+" failed");
+		e.printStackTrace();
+		finishCommit(c.seq, 0);
+	}
+	/**
+	 * Runs an operation
+	 * @param c the operation
+	 */
+	private void runCommit(Commit c){
+		if (c.type == Commit.Type.MIGRATE)
+			migrate(c);
+		else if (c.type == Commit.Type.BULK){
+			//Bulk operations find the edge themselves, and set the
+			//size they leave the HyPeerWeb with; if they fail, the
+			//coordinator counts the HyPeerWeb again
+			lockedSize = -1;
+			try{
+				c.bulk.run();
+			} finally{
+				finishCommit(c.seq, 0);
+			}
+		}
+		else if (c.type == Commit.Type.ADD){
+			//The node is created on its parent's segment; see placeNode
+			if (c.fused == null && placesNearParent(c.node)){
+				placeNode(c);
+				return;
+			}
+			//Add node to UID list, so proxies can be resolved during the add process
+			registerNode(c.node);
+			if (c.fused != null){
+				NodeListener replace = new NodeListener(
+					className, "_replaceCommit",
+					new String[]{Node.className, className, "long"},
+					new Object[]{c.node, this, c.seq}
+				);
+				if (c.fused.node != null)
+					c.fused.node.executeRemotely(replace);
+				else getNode(c.fused.webId, false, replace);
+			}
+			//The HyPeerWeb's state will handle everything else
+			// (e.g. finding a nonempty segment to add from)
+			else state.addNode(this, c.node, new NodeListener(
+				className, "_addCommitted",
+				new String[]{className, "long", NodeListener.className},
+				new Object[]{this, c.seq, c.listener}
+			));
+		}
+		else{
+			NodeListener removed = new NodeListener(
+				className, "_removeCommitted",
+				new String[]{className, "long", NodeListener.className},
+				new Object[]{this, c.seq, c.listener}
+			), remove;
+			//We know where the edge is, so the node can be disconnected
+			//there, instead of searching from the node's segment
+			int size = lockedSize;
+			if (size > 2 && state == HyPeerWebState.HAS_MANY){
+				remove = new NodeListener(
+					className, "_removeAtEdge",
+					new String[]{className, "int", NodeListener.className},
+					new Object[]{this, size-1, removed}
+				);
+			}
+			//Get the segment that has this node and execute the method there
+			else remove = new NodeListener(className, "_removeNode", removed);
+			if (c.node != null)
+				c.node.executeRemotely(remove);
+			//Execute removeNode on the segment that contains "webid"
+			else getNode(c.webId, false, remove);
+		}
+	}
+	protected static void _removeAtEdge(Node n, Segment origin, int point, NodeListener listener){
+		//This node doesn't exist or isn't attached to a Segment
+		if (n == null || n.getHostSegment() == null)
+			listener.callback(null, null, -1);
+		else origin.getNode(point, false, new NodeListener(
+			Node.className, "_MANY_remove_point",
+			new String[]{Node.className, "boolean", NodeListener.className},
+			new Object[]{n, true, listener}
+		));
+	}
+	protected static void _replaceCommit(Node target, Node child, Segment origin, long seq){
+		//The new node is on the origin's machine
+		child.executeRemotely(new NodeListener(
+			className, "_replaceCommitLocal",
+			new String[]{Node.className, className, "long"},
+			new Object[]{target, origin, seq}
+		));
+	}
+	protected static void _replaceCommitLocal(Node child, Node target, Segment origin, long seq){
+		origin.replaceCommit(seq, child, target);
+	}
+	/**
+	 * Finishes a merged add/remove, once the node to remove has been found
+	 * @param seq the commit's sequence number
+	 * @param child the node being added
+	 * @param target the node being removed (null, if it wasn't found)
+	 */
+	private void replaceCommit(long seq, Node child, Node target){
+		Commit c;
+		synchronized (pending){
+			c = inflight.get(seq);
+			//The web emptied, or the remove doesn't have a node to replace yet (e.g.
+			//it targets the node we're adding); run the two operations separately
+			if (target == null || target.UID == child.UID ||
+				state == HyPeerWebState.HAS_NONE || state == HyPeerWebState.CORRUPT)
+			{
+				pending.add(c.fused);
+				c.fused = null;
+				c.footprint = null;
+			}
+		}
+		if (c.fused == null){
+			if (placesNearParent(child)){
+				unregisterNode(child);
+				placeNode(c);
+				return;
+			}
+			state.addNode(this, child, new NodeListener(
+				className, "_addCommitted",
+				new String[]{className, "long", NodeListener.className},
+				new Object[]{this, seq, c.listener}
+			));
+			return;
+		}
+		//The new node never had a webID of its own
+		child.setWebID(-1);
+		child.replaceNode(target, -1, new NodeListener(
+			className, "_replaceCommitted",
+			new String[]{className, "long", NodeListener.className, NodeListener.className},
+			new Object[]{this, seq, c.listener, c.fused.listener}
+		));
+	}
+	protected static void _addCommitted(Node n, Segment origin, long seq, NodeListener listener){
+		try{
+			if (listener != null)
+				listener.callback(n);
+		} finally{
+			origin.finishCommit(seq, n != null ? 1 : 0);
+		}
+	}
+	/**
+	 * Gets the node of an add operation that has been moved to inflight
+	 * @param seq the commit's sequence number
+	 * @return the node being added
+	 */
+	private Node getCommitNode(long seq){
+		synchronized (pending){
+			return inflight.get(seq).node;
+		}
+	}
+	protected static void _removeCommitted(Node n, Node replacement, int oldWebID, Segment origin, long seq, NodeListener listener){
+		try{
+			if (listener != null)
+				listener.callback(n, replacement, oldWebID);
+		} finally{
+			origin.finishCommit(seq, n != null ? -1 : 0);
+		}
+	}
+	protected static void _replaceCommitted(
+		Node removed, Node replacement, int oldWebID, Segment origin, long seq,
+		NodeListener addListener, NodeListener removeListener
+	){
+		try{
+			if (addListener != null)
+				replacement.executeRemotely(addListener);
+			if (removeListener != null)
+				removeListener.callback(removed, replacement, oldWebID);
+		} finally{
+			origin.finishCommit(seq, 0);
+		}
+	}
+	/**
+	 * Marks an operation as finished, and starts any it was blocking
+	 * @param seq the commit's sequence number
+	 */
+	protected void finishCommit(long seq){
+		finishCommit(seq, 0);
+	}
+	/**
+	 * Marks an operation as finished, releasing the edge lock if it held it
+	 * @param seq the commit's sequence number
+	 * @param grown how many nodes the operation added (negative, if it removed them)
+	 */
+	protected void finishCommit(long seq, int grown){
+		Commit c;
+		synchronized (pending){
+			c = inflight.remove(seq);
+		}
+		if (c != null && c.coordinator != null){
+			int size = lockedSize;
+			lockedSize = -1;
+			c.coordinator.unlockEdge(size == -1 ? -1 : size+grown);
+		}
+		commit();
+	}
+	
+	//EDGE LOCK
+	/**
+	 * Adds, removes, and bulk operations all move the edge of the HyPeerWeb,
+	 * so only one can run at a time, even if they start on different segments.
+	 * Migrations take the lock as well, since bulk operations find nodes by
+	 * the segment that held them when the operation started (see gatherShape),
+	 * and so do merged add/removes: they keep the shape, but a remove from
+	 * another segment could move the edge node into the spot they replace.
+	 * An operation waits for the edge lock, which the segment with webID 0
+	 * (the coordinator) hands out in the order it was asked for. The coordinator
+	 * also keeps the HyPeerWeb's size, so the operation knows exactly where
+	 * the edge is (see getInsertionPoint and getDisconnectPoint)
+	 * @param c the operation; it is started once it has the lock
+	 */
+	private void lockEdge(Commit c){
+		NodeListener granted = new NodeListener(
+			className, "_edgeLocked",
+			new String[]{className, "long"},
+			new Object[]{this, c.seq}
+		);
+		//The operation is started on this machine
+		granted.setRemote(true);
+		new SendVisitor(0, new NodeListener(
+			className, "_lockEdge",
+			new String[]{NodeListener.className},
+			new Object[]{granted}
+		)).visit(this);
+	}
+	protected static void _lockEdge(Node coordinator, NodeListener granted){
+		//The inception web is broken; run the operation without the lock
+		if (coordinator == null){
+			System.err.println("Segment: couldn't find the edge lock");
+			granted.callback(null, -1);
+		}
+		else ((Segment) coordinator).queueEdge(granted);
+	}
+	/**
+	 * Grants the edge lock, or queues the request if it is taken
+	 * @param granted called with this segment and the HyPeerWeb's size, once
+	 *	the lock has been granted
+	 */
+	private void queueEdge(NodeListener granted){
+		int size;
+		synchronized (edgeWaiting){
+			if (edgeLocked){
+				edgeWaiting.add(granted);
+				return;
+			}
+			edgeLocked = true;
+			size = edgeSize;
+		}
+		granted.callback(this, size);
+	}
+	/**
+	 * Releases the edge lock, and grants it to the next operation waiting for it
+	 * @param size the HyPeerWeb's size after the operation; -1, if it isn't known
+	 */
+	protected void unlockEdge(int size){
+		NodeListener next;
+		synchronized (edgeWaiting){
+			edgeSize = size;
+			next = edgeWaiting.poll();
+			if (next == null){
+				edgeLocked = false;
+				return;
+			}
+		}
+		next.callback(this, size);
+	}
+	protected static void _edgeLocked(Node coordinator, int size, Segment origin, long seq){
+		origin.startLocked((Segment) coordinator, size, seq);
+	}
+	/**
+	 * Runs an operation once it has the edge lock
+	 * @param coordinator the segment that granted the lock; null, if there wasn't one
+	 * @param size the HyPeerWeb's size; -1, if the coordinator doesn't know it
+	 * @param seq the commit's sequence number
+	 */
+	private void startLocked(Segment coordinator, int size, long seq){
+		Commit c;
+		synchronized (pending){
+			c = inflight.get(seq);
+		}
+		c.coordinator = coordinator;
+		try{
+			//The coordinator was just created, loaded, or took over for another one
+			lockedSize = size == -1 && coordinator != null ? measureWeb() : size;
+			runCommit(c);
+		} catch (RuntimeException e){
+			failCommit(c, e);
+		}
+	}
+	/**
+	 * Counts the nodes in the HyPeerWeb, by asking every segment
+	 * @return the size; -1, if the webID's aren't 0 through size-1,
+	 *	since the edge can't be found from the size alone
+	 */
+	private int measureWeb(){
+		int size = 0, capacity = 0;
+		for (Segment seg: getAllSegments()){
+			int[] shape = seg.getSegmentShape();
+			size += shape[0];
+			capacity = Math.max(capacity, shape[1]);
+		}
+		return size == capacity ? size : -1;
+	}
+	/**
+	 * Get the number of nodes on this segment, and one more than its highest webID
+	 * @return the size and capacity of this segment's topology
+	 */
+	protected int[] getSegmentShape(){
+		synchronized (nodesByUID){
+			return new int[]{topology.size(), topology.getCapacity()};
+		}
+	}
+	/**
+	 * Forgets the HyPeerWeb's size, if this segment is the coordinator; it
+	 * is counted again when the next operation takes the edge lock
+	 */
+	private void forgetEdgeSize(){
+		synchronized (edgeWaiting){
+			edgeSize = -1;
+		}
+	}
+	private void resetEdge(){
+		edgeWaiting = new ArrayDeque();
+		edgeLocked = false;
+		edgeSize = -1;
+		lockedSize = -1;
+	}
+	/**
+	 * An add, remove, migrate, or bulk operation in the commit log
+	 */
+	private static class Commit implements Comparable<Commit>{
+		private static final AtomicLong counter = new AtomicLong();
+		public enum Type {ADD, REMOVE, MIGRATE, BULK};
+		public final Type type;
+		//When the operation began; the sequence number breaks ties
+		public final long stamp = System.nanoTime(), seq = counter.incrementAndGet();
+		//The node to add/remove; removes can give a webID instead
+		public final Node node;
+		public final int webId;
+		public final NodeListener listener;
+		//A remove merged into this add, and the webID's it will modify
+		public Commit fused;
+		public HashSet<Integer> footprint;
+		//Nodes to move, and the segment to move them to (see migrateNodes)
+		public Node[] moving;
+		public Segment destination;
+		//A bulk operation (see BULK OPERATIONS); it conflicts with everything
+		public Runnable bulk;
+		//The segment that granted the edge lock (see EDGE LOCK); null, if not locked
+		public Segment coordinator;
+		
+		public Commit(Type type, Node node, int webId, NodeListener listener){
+			this.type = type;
+			this.node = node;
+			this.webId = webId;
+			this.listener = listener;
+		}
+		/**
+		 * Does this operation modify any of the nodes the others do?
+		 * @param others other operations
+		 * @return true, if they can't run at the same time
+		 */
+		public boolean conflicts(Iterable<Commit> others){
+			for (Commit o: others){
+				if (footprint == null || o.footprint == null)
+					return true;
+				for (int id: footprint){
+					if (o.footprint.contains(id))
+						return true;
+				}
+			}
+			return false;
+		}
+		@Override
+		public int compareTo(Commit c){
+			if (stamp != c.stamp)
+				return stamp < c.stamp ? -1 : 1;
+			return seq < c.seq ? -1 : seq == c.seq ? 0 : 1;
+		}
+	}
+	
+	//KEY-VALUE STORE
+	/**
+	 * Stores a value in the HyPeerWeb, on the node that owns its key (see ownsKey)
+	 * @param key the key
+	 * @param value the value; it must be Serializable
+	 * @param listener receives the key's previous value, with this segment as
+	 *	the callback node (see NodeListener.callback(Node, Object)); may be null.
+	 *	If the key couldn't reach its owner (the web kept changing), it gets
+	 *	KeyResult.FAILED instead, and the value wasn't stored
+	 */
+	public void put(String key, Object value, NodeListener listener){
+		sendKeys(KEY_PUT, new String[]{key}, new Object[]{value}, key, listener);
+	}
+	/**
+	 * Retrieves a value stored in the HyPeerWeb
+	 * @param key the key
+	 * @param listener receives the value, or null if there is none, with
+	 *	this segment as the callback node; KeyResult.FAILED, if the key
+	 *	couldn't reach its owner
+	 */
+	public void get(String key, NodeListener listener){
+		sendKeys(KEY_GET, new String[]{key}, null, key, listener);
+	}
+	/**
+	 * Removes a value stored in the HyPeerWeb
+	 * @param key the key
+	 * @param listener receives the removed value, with this segment as the
+	 *	callback node; KeyResult.FAILED, if the key couldn't reach its owner
+	 *	and wasn't removed. May be null
+	 */
+	public void delete(String key, NodeListener listener){
+		sendKeys(KEY_DELETE, new String[]{key}, null, key, listener);
+	}
+	/**
+	 * Stores many values at once; keys are grouped by the node that owns
+	 * them, so each group is routed once
+	 * @param entries the keys and values to store
+	 * @param listener receives a HashMap of the previous value of each key,
+	 *	with this segment as the callback node; keys that couldn't be routed
+	 *	get KeyResult.FAILED. May be null
+	 */
+	public void putAll(Map<String, ?> entries, NodeListener listener){
+		String[] keys = entries.keySet().toArray(new String[entries.size()]);
+		Object[] values = new Object[keys.length];
+		for (int i=0; i<keys.length; i++)
+			values[i] = entries.get(keys[i]);
+		sendKeys(KEY_PUT, keys, values, null, listener);
+	}
+	/**
+	 * Retrieves many values at once
+	 * @param keys the keys
+	 * @param listener receives a HashMap of the value of each key (null,
+	 *	if there is none), with this segment as the callback node; keys
+	 *	that couldn't be routed get KeyResult.FAILED
+	 */
+	public void getAll(String[] keys, NodeListener listener){
+		sendKeys(KEY_GET, keys, null, null, listener);
+	}
+	/**
+	 * Removes many values at once
+	 * @param keys the keys
+	 * @param listener receives a HashMap of the removed value of each key,
+	 *	with this segment as the callback node; keys that couldn't be routed
+	 *	get KeyResult.FAILED. May be null
+	 */
+	public void deleteAll(String[] keys, NodeListener listener){
+		sendKeys(KEY_DELETE, keys, null, null, listener);
+	}
+	/**
+	 * Hashes a key to a 31 bit value; a node owns every key whose
+	 * hash ends with its webID (see ownsKey)
+	 * @param key the key
+	 * @return the key's hash
+	 */
+	public static int hashKey(String key){
+		//Mix the bits, since only the low bits pick the node
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & Integer.MAX_VALUE;
+	}
+	/**
+	 * Does a node own a key? Node webID's are a complete set of suffixes, so
+	 * every hash ends with exactly one node's webID (at that node's height); when
+	 * a node gets a child, the child takes the keys whose next bit is 1
+	 * @param webID the node's webID
+	 * @param height the node's height
+	 * @param hash the key's hash (see hashKey)
+	 * @return true, if the node owns the key
+	 */
+	public static boolean ownsKey(int webID, int height, int hash){
+		return (hash & keyMask(height)) == webID;
+	}
+	private static int keyMask(int bits){
+		return bits >= 31 ? Integer.MAX_VALUE : (1 << bits)-1;
+	}
+	/**
+	 * Routes keys to the nodes that own them
+	 * @param op the operation to run on each key's owner
+	 * @param keys the keys
+	 * @param values the value for each key, or null
+	 * @param single if not null, the listener gets this key's result instead of a HashMap
+	 * @param listener receives the results; may be null
+	 */
+	private void sendKeys(int op, String[] keys, Object[] values, String single, NodeListener listener){
+		if (keys.length == 0 || isEmpty()){
+			if (listener != null)
+				listener.callback(this, single != null ? null : new HashMap());
+			return;
+		}
+		NodeListener done = null;
+		if (listener != null){
+			long id = keyBatchIds.incrementAndGet();
+			synchronized (keyBatches){
+				keyBatches.put(id, new KeyBatch(keys.length, single, listener));
+			}
+			//Results are sent back to this machine
+			done = new NodeListener(
+				className, "_keysDone",
+				new String[]{className, "long"},
+				new Object[]{this, id}
+			);
+			done.setRemote(true);
+			done.setPriority(Command.Priority.DATA);
+		}
+		NodeListener route = routeKeys(op, keys, values, -1, -1, 0, done);
+		Node start = getRandomSegmentNode();
+		if (start != null)
+			route.callback(start);
+		else getNode(0, true, route);
+	}
+	private static NodeListener routeKeys(
+		int op, String[] keys, Object[] values, int target, int bits, int rounds, NodeListener done
+	){
+		NodeListener route = new NodeListener(
+			className, "_routeKeys",
+			new String[]{"int", "[Ljava.lang.String;", "[Ljava.lang.Object;", "int", "int", "int", NodeListener.className},
+			new Object[]{op, keys, values, target, bits, rounds, done}
+		);
+		//Key traffic shouldn't hold up the commands that keep the web consistent
+		route.setPriority(Command.Priority.DATA);
+		return route;
+	}
+	/**
+	 * Runs the operation on the keys this node owns, and routes the rest
+	 * closer to their owners. We don't know the web's size, but heights only
+	 * differ by one; we start by guessing one bit more than this node's height.
+	 * If the target exists but has more bits, we use its height; if it doesn't
+	 * exist (routing stopped at another node), we use one bit less. If we run out
+	 * of bits (the web changed size on the way), we start guessing again from here.
+	 * Keys that are still bouncing around after KEY_ROUNDS are reported as failed
+	 * @param target the webID we were routing to; -1, if this is the first node
+	 * @param bits the number of hash bits the target was picked with
+	 * @param rounds how many times these keys have been routed
+	 * @param done receives the results, on the machine that sent the keys; may be null
+	 */
+	protected static void _routeKeys(
+		Node n, int op, String[] keys, Object[] values, int target, int bits, int rounds, NodeListener done
+	){
+		int nextBits = target == -1 ? n.getHeight()+1 :
+			n.getWebId() == target ? n.getHeight() : bits-1;
+		if (nextBits < 0)
+			nextBits = n.getHeight()+1;
+		HashMap<String, Object> results = new HashMap();
+		//Keys that were run, or failed; a batch may repeat a key
+		int finished = 0;
+		//Keys that belong to other nodes, by the next webID to try
+		HashMap<Integer, ArrayList<Integer>> next = new HashMap();
+		for (int i=0; i<keys.length; i++){
+			int hash = hashKey(keys[i]);
+			if (ownsKey(n.getWebId(), n.getHeight(), hash)){
+				String name = KEY_PREFIX+keys[i];
+				Object old = n.getData(name);
+				if (op == KEY_PUT)
+					n.setData(name, values[i]);
+				else if (op == KEY_DELETE && old != null)
+					n.removeData(name);
+				results.put(keys[i], old);
+				finished++;
+			}
+			//Give up on keys that keep bouncing around (e.g. the web is changing)
+			else if (rounds >= KEY_ROUNDS){
+				results.put(keys[i], KeyResult.FAILED);
+				finished++;
+			}
+			else{
+				int id = hash & keyMask(nextBits);
+				ArrayList<Integer> group = next.get(id);
+				if (group == null){
+					group = new ArrayList();
+					next.put(id, group);
+				}
+				group.add(i);
+			}
+		}
+		if (done != null && finished > 0)
+			done.clone().callback(n, new Object[]{results, finished});
+		for (Map.Entry<Integer, ArrayList<Integer>> group: next.entrySet()){
+			ArrayList<Integer> idx = group.getValue();
+			String[] k = new String[idx.size()];
+			Object[] v = values == null ? null : new Object[k.length];
+			for (int i=0; i<k.length; i++){
+				k[i] = keys[idx.get(i)];
+				if (v != null)
+					v[i] = values[idx.get(i)];
+			}
+			int id = group.getKey();
+			new SendVisitor(id, true, routeKeys(op, k, v, id, nextBits, rounds+1, done)).visit(n);
+		}
+	}
+	protected static void _keysDone(Node n, Object results, Segment origin, long id){
+		Object[] r = (Object[]) results;
+		origin.finishKeys(id, (HashMap) r[0], (Integer) r[1]);
+	}
+	private void finishKeys(long id, HashMap<String, Object> results, int finished){
+		KeyBatch batch;
+		synchronized (keyBatches){
+			batch = keyBatches.get(id);
+			if (batch == null)
+				return;
+			batch.results.putAll(results);
+			batch.remaining -= finished;
+			if (batch.remaining > 0)
+				return;
+			keyBatches.remove(id);
+		}
+		batch.listener.callback(this, batch.single != null ? batch.results.get(batch.single) : batch.results);
+	}
+	/**
+	 * Removes the keys a node no longer owns
+	 * @param n the node
+	 * @param webID the webID of the node that takes the keys; -1 to take all of them
+	 * @param height the height of the node that takes the keys
+	 * @return the keys taken, and their values
+	 */
+	protected static HashMap<String, Object> takeKeys(Node n, int webID, int height){
+		HashMap<String, Object> taken = new HashMap();
+		for (Map.Entry<String, Object> attr: n.getAllData().toMap().entrySet()){
+			String name = attr.getKey();
+			if (!name.startsWith(KEY_PREFIX))
+				continue;
+			String key = name.substring(KEY_PREFIX.length());
+			if (webID == -1 || ownsKey(webID, height, hashKey(key))){
+				n.removeData(name);
+				taken.put(key, attr.getValue());
+			}
+		}
+		return taken;
+	}
+	/**
+	 * Gives keys to the node that now owns them
+	 * @param from the node that had the keys
+	 * @param to the node that takes them
+	 * @param webID the webID of the node that takes the keys; -1 to give all of them
+	 * @param height the height of the node that takes the keys
+	 */
+	protected static void moveKeys(Node from, Node to, int webID, int height){
+		HashMap<String, Object> taken = takeKeys(from, webID, height);
+		//This is part of the add/remove, so it stays on the control lane;
+		//a get that arrives before it would miss the keys
+		if (!taken.isEmpty()){
+			to.executeRemotely(new NodeListener(
+				className, "_storeKeys",
+				new String[]{"java.util.HashMap"},
+				new Object[]{taken}
+			));
+		}
+	}
+	protected static void _storeKeys(Node n, HashMap<String, Object> entries){
+		for (Map.Entry<String, Object> entry: entries.entrySet())
+			n.setData(KEY_PREFIX+entry.getKey(), entry.getValue());
+	}
+	/**
+	 * Sends keys to their owners, after a bulk operation changed the
+	 * nodes' webID's and heights
+	 * @param targets the nodes that changed (all must belong to this segment)
+	 */
+	protected void rehashNodes(Node[] targets){
+		HashMap<String, Object> moved = new HashMap();
+		for (Node t: targets){
+			for (Map.Entry<String, Object> attr: t.getAllData().toMap().entrySet()){
+				String name = attr.getKey();
+				if (name.startsWith(KEY_PREFIX)){
+					String key = name.substring(KEY_PREFIX.length());
+					if (!ownsKey(t.getWebId(), t.getHeight(), hashKey(key))){
+						t.removeData(name);
+						moved.put(key, attr.getValue());
+					}
+				}
+			}
+		}
+		if (!moved.isEmpty())
+			putAll(moved, null);
+	}
+	/**
+	 * The results of a batch of keys, waiting for the rest
+	 */
+	private static class KeyBatch{
+		public int remaining;
+		public final String single;
+		public final NodeListener listener;
+		public final HashMap<String, Object> results = new HashMap();
+		public KeyBatch(int remaining, String single, NodeListener listener){
+			this.remaining = remaining;
+			this.single = single;
+			this.listener = listener;
+		}
+	}
+	
+	//QUERIES
+	/**
+	 * Finds the nodes whose attributes match a query. The query is pushed
+	 * down to every segment (by a ReduceVisitor over the segments), which
+	 * filters its own nodes and streams the projected results back in batches.
+	 * Once the limit is reached, segments are told to stop searching as they
+	 * send their next batch. This blocks until every segment has finished
+	 * @param q the filter and projection
+	 * @param listener receives each batch of results, as an ArrayList of Query.Result
+	 *	(see NodeListener.callback(Node, Object)), then null once the query has
+	 *	finished; this segment is the callback node
+	 */
+	public void query(Query q, NodeListener listener){
+		long id = queryIds.incrementAndGet();
+		synchronized (queries){
+			queries.put(id, new QueryState(q.getLimit(), listener));
+		}
+		//Queries and their results are data traffic; commands sent while
+		//these run (e.g. result batches) get the same priority
+		NodeListener finished = new NodeListener(className, "_queryFinished", new String[]{"long"}, new Object[]{id});
+		finished.setPriority(Command.Priority.DATA);
+		new ReduceVisitor(
+			new Command(className, "_queryNodes", new String[]{Query.className, className, "long"}, new Object[]{q, this, id})
+				.setPriority(Command.Priority.DATA),
+			new Command(ReduceVisitor.className, "_add").setPriority(Command.Priority.DATA),
+			finished
+		).visit(this);
+	}
+	/**
+	 * Evaluates a query over this segment's nodes
+	 * @param n the segment
+	 * @param origin the segment that sent the query; results are sent back to it
+	 * @param id the query's id on the origin segment
+	 * @return how many results were sent back
+	 */
+	protected static Object _queryNodes(Node n, Query q, Segment origin, long id){
+		Segment seg = (Segment) n;
+		int limit = q.getLimit(), batchSize = q.getBatchSize(), sent = 0;
+		ArrayList<Query.Result> batch = new ArrayList();
+		for (Object o: seg.nodes.values()){
+			Node node = (Node) o;
+			if (!q.matches(node))
+				continue;
+			batch.add(q.project(node));
+			//No segment needs to send more than the limit
+			boolean last = limit >= 0 && sent+batch.size() >= limit;
+			if (batch.size() >= batchSize || last){
+				sent += batch.size();
+				if (!origin.queryResults(id, batch) || last)
+					return sent;
+				batch = new ArrayList();
+			}
+		}
+		if (!batch.isEmpty()){
+			sent += batch.size();
+			origin.queryResults(id, batch);
+		}
+		return sent;
+	}
+	/**
+	 * Gives a batch of query results to the query's listener
+	 * @param id the query's id
+	 * @param results the results
+	 * @return false, if the query doesn't need any more results
+	 */
+	protected boolean queryResults(long id, ArrayList<Query.Result> results){
+		QueryState query;
+		synchronized (queries){
+			query = queries.get(id);
+		}
+		if (query == null)
+			return false;
+		//Batches from different segments are delivered one at a time
+		synchronized (query){
+			if (query.limit >= 0){
+				int room = query.limit-query.received;
+				if (room <= 0)
+					return false;
+				if (results.size() > room)
+					results = new ArrayList(results.subList(0, room));
+			}
+			query.received += results.size();
+			query.listener.callback(this, results);
+			return query.limit < 0 || query.received < query.limit;
+		}
+	}
+	protected static void _queryFinished(Node n, Object sent, long id){
+		Segment seg = (Segment) n;
+		QueryState query;
+		synchronized (seg.queries){
+			query = (QueryState) seg.queries.remove(id);
+		}
+		if (query != null){
+			synchronized (query){
+				query.listener.callback(seg, null);
+			}
+		}
+	}
+	/**
+	 * A query waiting for results
+	 */
+	private static class QueryState{
+		public final int limit;
+		public final NodeListener listener;
+		public int received;
+		public QueryState(int limit, NodeListener listener){
+			this.limit = limit;
+			this.listener = listener;
+		}
+	}
+	
+	//CACHE & DATABASE
+	/**
+	 * Get a cached version of this HyPeerWeb segment; the cache is maintained
+	 * incrementally, so this only refreshes nodes that have changed since the
+	 * last call. The returned cache is a shared, read-only snapshot; the segment
+	 * copies it the next time a node changes (copy on write). Use
+	 * SegmentCache.copy, or merge it into another cache, before changing it.
+	 * The copy is O(N): cached nodes find their links through the cache they
+	 * belong to, so none can be shared. With 65536 nodes, a flush after a
+	 * snapshot was taken costs about 21ms, against 0.6ms without one; callers
+	 * polling for changes should use getCache(int[]) instead
+	 * @return a node cache object
+	 */
+	public SegmentCache getCache(){
+		synchronized (nodesByUID){
+			flushCache();
+			cacheShared = true;
+			return cache;
+		}
+	}
+	/**
+	 * Fetch a list of cached nodes
+	 * @param fetch the list of webID's to cache
+	 * @return a list of cached nodes
+	 */
+	public NodeCache[] getCache(int[] fetch){
+		ArrayList<NodeCache> found = new ArrayList();
+		synchronized (nodesByUID){
+			flushCache();
+			for (int id: fetch){
+				NodeCache n = cache.nodes.get(id);
+				//Detach from the segment's cache; the receiver will set its own parent
+				if (n != null)
+					found.add(new NodeCache(n, null));
+			}
+		}
+		return found.toArray(new NodeCache[found.size()]);
+	}
+	/**
+	 * Notify the host segment that a node's links, webID, height, or data have changed
+	 * @param UID the UID of the node that changed
+	 */
+	protected static void markDirty(int UID){
+		Segment host = hostIndex.get(UID);
+		if (host != null)
+			host.changed(UID);
+	}
+	private void changed(int UID){
+		cacheDirty.add(UID);
+		SegmentLog l = log;
+		if (l != null)
+			l.mark(UID);
+		SegmentSQL s = sql;
+		if (s != null)
+			s.mark(UID);
+	}
+	private void resetCache(){
+		cache = new SegmentCache();
+		cacheByUID = new HashMap();
+		cacheDirty = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		cacheNetworkID = webID;
+		cacheShared = false;
+		nodeLocations = newLocationCache();
+		segmentLocations = newLocationCache();
+	}
+	private void flushCache(){
+		//Segment changed its webID; every cached node has a new network ID
+		if (cacheNetworkID != webID){
+			cacheNetworkID = webID;
+			cacheDirty.addAll(nodesByUID.keySet());
+			cacheDirty.addAll(cacheByUID.keySet());
+		}
+		if (cacheDirty.isEmpty())
+			return;
+		//Someone is holding a snapshot; copy it before we write to it. Every
+		//entry is copied, since a NodeCache resolves its links by its parent
+		if (cacheShared){
+			cache = cache.copy();
+			cacheByUID = new HashMap();
+			for (NodeCache n: cache.nodes.values())
+				cacheByUID.put(n.UID, n);
+			cacheShared = false;
+		}
+		//Remove all stale entries first, since a dirty node may have
+		//taken the webID of another dirty node (e.g. replaceNode)
+		//Links can change on other threads while we flush; anything
+		//marked dirty after this snapshot is left for the next flush
+		Integer[] dirty = cacheDirty.toArray(new Integer[0]);
+		cacheDirty.removeAll(Arrays.asList(dirty));
+		for (Integer uid: dirty){
+			NodeCache old = cacheByUID.remove(uid);
+			if (old != null)
+				cache.removeNode(old, false);
+		}
+		//Only nodes that are mapped by webID are part of the segment
+		for (Integer uid: dirty){
+			T n = nodesByUID.get(uid);
+			if (n != null && nodes.get(n.getWebId()) == n){
+				NodeCache c = new NodeCache(n, cache);
+				cacheByUID.put(uid, c);
+				cache.addNode(c, false);
+			}
+		}
+	}
+	
+	//CLASS OVERRIDES
+	public void setWriteRealSegment(boolean writeRealNode) {
+		setWriteRealNode(writeRealNode);
+		for(Node n : nodes.values()){
+			n.setWriteRealNode(writeRealNode);
+		}
+	}
+	@Override
+	public Object writeReplace() throws ObjectStreamException {
 		if(writeRealNode){
 			setWriteRealNode(false);
 			return this;
@@ -499,6 +3351,21 @@ public class Segment<T extends Node> extends Node{
 	}
 	@Override
 	public Object readResolve() throws ObjectStreamException {
+		//Transient cache data isn't saved; rebuild the host index and cache
+		flights = new HashMap();
+		keyBatches = new HashMap();
+		queries = new HashMap();
+		directory = new ArrayList();
+		topology = new Topology(nodes.keySet());
+		pending = new TreeSet();
+		inflight = new HashMap();
+		resetEdge();
+		resetCache();
+		resetRandom();
+		for (T n: nodesByUID.values()){
+			hostIndex.put(n.UID, this);
+			cacheDirty.add(n.UID);
+		}
 		return this;
 	}
 
@@ -7,7 +7,6 @@ import hypeerweb.validator.HyPeerWebInterface;
 import hypeerweb.validator.NodeInterface;
 import java.io.ObjectStreamException;
 import java.util.HashMap;
-import java.util.Map.Entry;
 
 /**
  * Lightweight cache of a HyPeerWeb's nodes
@@ -24,24 +23,21 @@ public class SegmentCache implements HyPeerWebInterface, Serializable{
 	
 	/**
 	 * Merge a cache with this cache; the merging cache will
-	 * overwrite any data of the same networkID
+	 * overwrite any data of the same networkID. Its nodes are copied,
+	 * so the merging cache is left as it was (e.g. Segment.getCache)
 	 * @param cache the cache to merge with
 	 */
 	public void merge(SegmentCache cache){
 		//Overwrite data with same network ID
 		for (Integer netID: cache.segments.keySet()){
-			HashSet<NodeCache> refs = segments.get(netID);
+			HashSet<NodeCache> refs = segments.remove(netID);
 			if (refs != null){
 				for (NodeCache n: refs)
 					nodes.remove(n.webID);
 			}
 		}
-		for (Entry<Integer, NodeCache> entry: cache.nodes.entrySet()){
-			NodeCache n = entry.getValue();
-			n.parent = this;
-			nodes.put(entry.getKey(), n);
-		}
-		segments.putAll(cache.segments);
+		for (NodeCache n: cache.nodes.values())
+			addNode(new NodeCache(n, this), false);
 	}
 	
 	/**
@@ -241,6 +237,17 @@ public class SegmentCache implements HyPeerWebInterface, Serializable{
 			newSeg.add(n);
 		}			
 	}
+	/**
+	 * Creates a copy of this cache; cached nodes are copied as well, since
+	 * they reference the cache they belong to
+	 * @return a new cache with the same nodes
+	 */
+	public SegmentCache copy(){
+		SegmentCache c = new SegmentCache();
+		for (NodeCache n: nodes.values())
+			c.addNode(new NodeCache(n, c), false);
+		return c;
+	}
 	//Helper method for creating a cached node; should not be run with proxy nodes
 	protected NodeCache createCachedNode(hypeerweb.Node real){
 		return new NodeCache(real, this);
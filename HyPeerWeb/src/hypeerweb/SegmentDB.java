@@ -9,14 +9,18 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.HashSet;
 
 /**
  *
  * @author Gangsta
- * Every database segment has a database. It only saves to the database when the
- * InceptionWeb shuts down.
+ * Every database segment has a database. It saves a snapshot to the database when the
+ * InceptionWeb shuts down; changes made in between are logged (see SegmentLog).
+ * A segment can also be stored in indexed SQLite tables, for queries (see SegmentSQL).
  */
 public class SegmentDB implements Serializable {
 	private HashSet<Node> proxies;
@@ -68,29 +72,123 @@ public class SegmentDB implements Serializable {
 		//Transfer map to segment
 		for (NodeCache n: cache.nodes.values()){
 			Node real = node_map.get(n.webID);
-			segment.nodes.put(n.webID, real);
-			segment.nodesByUID.put(real.UID, real);
+			segment.registerNode(real);
+			segment.indexNode(real, -1);
 			RemoteAddress addr = new RemoteAddress(oldAddress, n.UID);
 			real.L.broadcastReplacement(new NodeProxy(n, addr), real);
 		}
 	}
 	
+	/**
+	 * Saves the segment; if the segment is logged, its log is checkpointed
+	 * and the checkpoints are compacted (see SegmentLog); otherwise, the
+	 * whole segment is written to its database file
+	 * @param segment the segment to save
+	 */
 	public static void save(Segment segment){
 		try{
-			ObjectOutputStream stream = new ObjectOutputStream(new FileOutputStream(segment.dbname));
-			segment.setWriteRealSegment(true);
-			stream.writeObject(segment);
-			stream.close();
+			if (segment.log != null)
+				segment.log.checkpoint(true);
+			else writeSnapshot(segment);
+			if (segment.sql != null)
+				segment.sql.sync();
 		}
 		catch(Exception e){
 			e.printStackTrace();
 		}
 	}
+	/**
+	 * Blocks until all of the segment's changes are on disk; this returns
+	 * immediately if the segment isn't logged or stored
+	 * @param segment the segment
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IOException if the segment's log couldn't be written
+	 * @throws SQLException if the segment's rows couldn't be written
+	 */
+	public static void sync(Segment segment) throws InterruptedException, IOException, SQLException{
+		if (segment.log != null)
+			segment.log.sync();
+		if (segment.sql != null)
+			segment.sql.sync();
+	}
+	/**
+	 * Stores the segment in a SQLite database; its nodes are written now, and
+	 * rewritten as they change. Segments can share a database
+	 * @param segment the segment to store; its rows are kept under its dbname
+	 * @param file the SQLite database file
+	 * @return the store, for queries
+	 * @throws SQLException if the database couldn't be opened or written
+	 * @throws IllegalArgumentException if the segment has no dbname
+	 */
+	public static SegmentSQL store(Segment segment, String file) throws SQLException{
+		//Rows need a name that stays the same when the segment is loaded again
+		if (segment.dbname == null)
+			throw new IllegalArgumentException("Segment "+segment.UID+" needs a dbname to be stored");
+		if (segment.sql == null)
+			segment.sql = new SegmentSQL(segment, file);
+		return segment.sql;
+	}
+	/**
+	 * Writes the segment to its database file; the file is replaced
+	 * only once the new snapshot is safely on disk
+	 * @param segment the segment to save
+	 * @throws IOException if the snapshot couldn't be written
+	 */
+	private static void writeSnapshot(Segment segment) throws IOException{
+		File temp = new File(segment.dbname+".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		ObjectOutputStream stream = new ObjectOutputStream(file);
+		segment.setWriteRealSegment(true);
+		stream.writeObject(segment);
+		stream.flush();
+		file.getFD().sync();
+		stream.close();
+		Files.move(temp.toPath(), new File(segment.dbname).toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	/**
+	 * Loads a segment from its checkpoints and log; if it has none, the
+	 * segment is read from its database file. Either way, the loaded
+	 * segment is logged from now on
+	 * @param file the segment's database file
+	 * @return the loaded segment
+	 * @throws IOException if there is nothing to load, or it couldn't be read
+	 * @throws ClassNotFoundException if the database file couldn't be read
+	 */
 	public static Segment load(String file) throws IOException, ClassNotFoundException{
-		ObjectInputStream stream = new ObjectInputStream(new FileInputStream(new File(file)));
-		Segment segment = (Segment) stream.readObject();
+		Segment segment;
+		SegmentLog.Replay replay = SegmentLog.recover(file);
+		if (replay != null)
+			segment = replay.apply(file);
+		else{
+			ObjectInputStream stream = new ObjectInputStream(new FileInputStream(new File(file)));
+			segment = (Segment) stream.readObject();
+			stream.close();
+			//The segment's own links are saved as a proxy; ChatServer restores them
+			if (segment.L == null)
+				segment.L = new Links(segment.UID);
+		}
 		Segment.segmentList.add(segment);
-		stream.close();
+		segment.log = new SegmentLog(segment);
+		return segment;
+	}
+	/**
+	 * Loads a segment from a SQLite database; the loaded segment is
+	 * logged and stored from now on
+	 * @param file the SQLite database file
+	 * @param dbname the segment's database name
+	 * @return the loaded segment
+	 * @throws IOException if the segment isn't in the database, or couldn't be rebuilt
+	 * @throws ClassNotFoundException if a node's data couldn't be read
+	 * @throws SQLException if the database couldn't be read
+	 */
+	public static Segment load(String file, String dbname) throws IOException, ClassNotFoundException, SQLException{
+		Segment segment = SegmentSQL.load(file, dbname);
+		if (segment == null)
+			throw new IOException("No segment "+dbname+" in "+file);
+		Segment.segmentList.add(segment);
+		segment.log = new SegmentLog(segment);
+		segment.sql = new SegmentSQL(segment, file);
 		return segment;
 	}
-}
+}
\ No newline at end of file
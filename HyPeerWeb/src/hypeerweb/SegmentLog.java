@@ -0,0 +1,764 @@
+package hypeerweb;
+
+import communicator.Communicator;
+import communicator.RemoteAddress;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the changes made to a segment's nodes since its last
+ * checkpoint. Nodes are marked as they change (added, removed, replaced, new
+ * height, new links or folds); a background thread writes the current state of
+ * every marked node, then fsyncs once for the whole batch. Changes are durable
+ * within GROUP_COMMIT milliseconds, or when sync returns.
+ *
+ * Every CHECKPOINT_INTERVAL, the log is sealed and a new one is started; the
+ * sealed log is rewritten in the background as a delta checkpoint, with only the
+ * last record of each node that changed. Once there are COMPACT_AFTER deltas,
+ * they are merged into a new base checkpoint (see SegmentMap). Mutations only
+ * mark nodes, so they never wait for a checkpoint. Files, for a segment database "db":
+ *	db.wal			the current log
+ *	db.[epoch].wal		a sealed log, waiting to become a delta
+ *	db.[epoch].delta	the nodes that changed during that log's epoch
+ *	db.[epoch].base		every node, as of the end of that epoch
+ *
+ * Each record is [length][CRC32][type, UID, node state]; a torn record at the
+ * end of a log (from a crash) is ignored when the log is replayed
+ */
+public class SegmentLog extends Thread{
+	//Record types
+	private static final byte PUT = 1, DELETE = 2, STATE = 3;
+	//Link encodings
+	private static final byte NO_LINK = 0, LOCAL_LINK = 1, REMOTE_LINK = 2;
+	//File types
+	private static final String SEALED = "wal", DELTA = "delta", BASE = "base";
+	private static final String[] TYPES = {SEALED, DELTA, BASE};
+	//Every file starts with its epoch
+	private static final int HEADER = 8;
+	//How long (in ms) the writer waits to gather changes into one batch
+	private static final int GROUP_COMMIT = 20;
+	//How often (in ms) the log is checkpointed, and how many deltas are kept before compacting
+	private static final int CHECKPOINT_INTERVAL = 10000, COMPACT_AFTER = 8;
+	private final Segment segment;
+	private final File file;
+	private FileChannel channel;
+	private long epoch;
+	//UID's of nodes that changed, but haven't been written yet
+	private final Set<Integer> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	//Segment state, as of the last record we wrote
+	private byte[] loggedState;
+	//Sync requests, and how many have been committed (see sync)
+	private long requested, committed;
+	//The last batch that failed, and why; sync callers waiting on it get the error
+	private long failed;
+	private IOException failure;
+	private boolean closed;
+	//Checkpoints run one at a time, off the writer thread
+	private final Object checkpointing = new Object();
+	private final Timer checkpointer;
+
+	/**
+	 * Starts logging a segment; a base checkpoint of the segment's current
+	 * nodes is written, and all of its older checkpoints and logs are deleted
+	 * @param segment the segment to log; its dbname names the files
+	 * @throws IOException if the checkpoint or log couldn't be created
+	 */
+	protected SegmentLog(Segment segment) throws IOException{
+		super("segment-log-"+segment.dbname);
+		this.segment = segment;
+		file = getFile(segment.dbname);
+		//Start after every old file, so they can't be mistaken for newer ones
+		long last = readEpoch(file);
+		ArrayList<File> old = new ArrayList();
+		for (String type: TYPES){
+			TreeMap<Long, File> files = listFiles(segment.dbname, type);
+			if (!files.isEmpty())
+				last = Math.max(last, files.lastKey());
+			old.addAll(files.values());
+		}
+		epoch = last+1;
+		Replay base = new Replay();
+		for (Object n: segment.nodes.values())
+			base.add(encodeNode(((Node) n).UID));
+		loggedState = encodeState();
+		base.add(loggedState);
+		SegmentMap.write(getFile(segment.dbname, epoch, BASE), epoch, base);
+		for (File f: old)
+			f.delete();
+		epoch++;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writeHeader();
+		checkpointer = new Timer("segment-checkpoint-"+segment.dbname, true);
+		checkpointer.schedule(new TimerTask(){
+			@Override
+			public void run(){
+				try{
+					checkpoint(false);
+				} catch (IOException e){
+					System.err.println("SegmentLog: checkpoint failed for "+file);
+					e.printStackTrace();
+				}
+			}
+		}, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL);
+		setDaemon(true);
+		start();
+	}
+	/**
+	 * Get the current log file for a segment
+	 * @param dbname the segment's database name
+	 * @return the log file
+	 */
+	protected static File getFile(String dbname){
+		return new File(dbname+".wal");
+	}
+	private static File getFile(String dbname, long epoch, String type){
+		return new File(dbname+"."+epoch+"."+type);
+	}
+	/**
+	 * Finds a segment's sealed logs or checkpoints
+	 * @param dbname the segment's database name
+	 * @param type the type of file to find
+	 * @return the files, by epoch
+	 */
+	private static TreeMap<Long, File> listFiles(String dbname, String type){
+		TreeMap<Long, File> found = new TreeMap();
+		File db = new File(dbname).getAbsoluteFile();
+		String prefix = db.getName()+".", suffix = "."+type;
+		File[] files = db.getParentFile().listFiles();
+		if (files == null)
+			return found;
+		for (File f: files){
+			String name = f.getName();
+			if (!name.startsWith(prefix) || !name.endsWith(suffix) || name.length() <= prefix.length()+suffix.length())
+				continue;
+			try{
+				found.put(Long.parseLong(name.substring(prefix.length(), name.length()-suffix.length())), f);
+			} catch (NumberFormatException e){
+				//Not one of ours
+			}
+		}
+		return found;
+	}
+
+	//LOGGING
+	/**
+	 * Marks a node as changed; its state will be written with the next batch
+	 * @param UID the node's UID
+	 */
+	protected void mark(int UID){
+		dirty.add(UID);
+	}
+	/**
+	 * Blocks until every change made before this call has been written and
+	 * fsynced; concurrent callers share the same batch and fsync
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws IOException if the batch couldn't be written; the changes
+	 *	are tried again with the next batch
+	 */
+	public synchronized void sync() throws InterruptedException, IOException{
+		long ticket = ++requested;
+		notifyAll();
+		while (committed < ticket && !closed){
+			if (failed >= ticket)
+				throw failure;
+			wait();
+		}
+	}
+	/**
+	 * Writes the remaining changes and closes the log file; checkpoints stop
+	 */
+	public void close(){
+		checkpointer.cancel();
+		synchronized (this){
+			closed = true;
+			notifyAll();
+		}
+		try{
+			join();
+			synchronized (checkpointing){
+				flush();
+				channel.close();
+			}
+		} catch (Exception e){
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void run(){
+		while (true){
+			long ticket;
+			synchronized (this){
+				//Wait for the batch to fill, unless someone is waiting on it;
+				//a batch that failed is retried once the wait is over
+				if ((requested == committed || requested == failed) && !closed){
+					try{
+						wait(GROUP_COMMIT);
+					} catch (InterruptedException e){
+						return;
+					}
+				}
+				if (closed)
+					return;
+				ticket = requested;
+				//The writer thread has to outlive a failed batch, or sync would never return
+				try{
+					flush();
+					committed = ticket;
+				} catch (IOException | RuntimeException e){
+					System.err.println("SegmentLog: failed to write "+file);
+					e.printStackTrace();
+					failed = ticket;
+					failure = e instanceof IOException ? (IOException) e : new IOException(e);
+				}
+				notifyAll();
+			}
+		}
+	}
+	/**
+	 * Writes the state of every marked node, then fsyncs the log
+	 * @throws IOException if the log couldn't be written; the
+	 *	nodes stay marked, so they're tried again with the next batch
+	 */
+	private synchronized void flush() throws IOException{
+		Integer[] batch = dirty.toArray(new Integer[0]);
+		byte[] state = encodeState();
+		boolean stateChanged = !Arrays.equals(state, loggedState);
+		if (batch.length == 0 && !stateChanged)
+			return;
+		//Anything marked after this is left for the next batch
+		dirty.removeAll(Arrays.asList(batch));
+		long end = -1;
+		try{
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			for (Integer uid: batch)
+				writeRecord(buffer, encodeNode(uid));
+			if (stateChanged)
+				writeRecord(buffer, state);
+			ByteBuffer data = ByteBuffer.wrap(buffer.toByteArray());
+			end = channel.size();
+			channel.position(end);
+			while (data.hasRemaining())
+				channel.write(data);
+			channel.force(false);
+			if (stateChanged)
+				loggedState = state;
+		} catch (IOException | RuntimeException e){
+			dirty.addAll(Arrays.asList(batch));
+			//Only a torn record at the end of the log is ignored on replay,
+			//so drop the partial batch before the next one is appended
+			if (end != -1){
+				try{
+					channel.truncate(end);
+				} catch (IOException e2){
+					e.addSuppressed(e2);
+				}
+			}
+			throw e;
+		}
+	}
+	private void writeHeader() throws IOException{
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putLong(epoch).flip();
+		channel.write(header, 0);
+		channel.force(true);
+	}
+	/**
+	 * Writes a file, replacing the old one only once the new one is safely on disk
+	 * @param file the file to write
+	 * @param data the file's contents
+	 * @throws IOException if the file couldn't be written
+	 */
+	static void writeFile(File file, ByteBuffer data) throws IOException{
+		File temp = new File(file.getPath()+".tmp");
+		try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			while (data.hasRemaining())
+				out.write(data);
+			out.force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	private static void writeRecord(ByteArrayOutputStream buffer, byte[] payload) throws IOException{
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(payload.length);
+		out.writeInt((int) crc.getValue());
+		out.write(payload);
+	}
+
+	//CHECKPOINTS
+	/**
+	 * Seals the current log and starts a new one, then rewrites the sealed
+	 * log as a delta checkpoint; only sealing holds up the writer
+	 * @param compact if true, merge all the checkpoints into a new base afterwards;
+	 *	otherwise, they're only merged once there are COMPACT_AFTER deltas
+	 * @throws IOException if a checkpoint couldn't be written
+	 */
+	protected void checkpoint(boolean compact) throws IOException{
+		synchronized (checkpointing){
+			File sealed = null;
+			long sealedEpoch;
+			synchronized (this){
+				if (closed)
+					return;
+				flush();
+				sealedEpoch = epoch;
+				if (channel.size() > HEADER){
+					channel.close();
+					sealed = getFile(segment.dbname, sealedEpoch, SEALED);
+					Files.move(file.toPath(), sealed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					epoch++;
+					channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+					writeHeader();
+				}
+			}
+			if (sealed != null){
+				Replay delta = new Replay();
+				delta.read(sealed);
+				delta.write(getFile(segment.dbname, sealedEpoch, DELTA), sealedEpoch);
+				sealed.delete();
+			}
+			if (compact || listFiles(segment.dbname, DELTA).size() >= COMPACT_AFTER)
+				compact();
+		}
+	}
+	/**
+	 * Merges the base and delta checkpoints into a new base
+	 * @throws IOException if the new base couldn't be written
+	 */
+	private void compact() throws IOException{
+		TreeMap<Long, File> deltas = listFiles(segment.dbname, DELTA);
+		Map.Entry<Long, File> base = listFiles(segment.dbname, BASE).lastEntry();
+		if (deltas.isEmpty())
+			return;
+		Replay merged = new Replay();
+		if (base != null){
+			SegmentMap.read(base.getValue(), merged);
+			deltas = new TreeMap(deltas.tailMap(base.getKey(), false));
+		}
+		for (File f: deltas.values())
+			merged.read(f);
+		long last = deltas.lastKey();
+		File compacted = getFile(segment.dbname, last, BASE);
+		SegmentMap.write(compacted, last, merged);
+		//The new base covers every older file
+		for (String type: TYPES){
+			for (File f: listFiles(segment.dbname, type).headMap(last, true).values()){
+				if (!f.equals(compacted))
+					f.delete();
+			}
+		}
+	}
+	/**
+	 * Reads a segment's latest base checkpoint, and every delta and log after it
+	 * @param dbname the segment's database name
+	 * @return the segment's nodes and state, or null if it has no checkpoints or logs
+	 * @throws IOException if a checkpoint or log couldn't be read
+	 */
+	protected static Replay recover(String dbname) throws IOException{
+		TreeMap<Long, File> deltas = listFiles(dbname, DELTA);
+		Map.Entry<Long, File> base = listFiles(dbname, BASE).lastEntry();
+		File wal = getFile(dbname);
+		long walEpoch = readEpoch(wal);
+		//Logs that were sealed, but never made it into a delta
+		for (Map.Entry<Long, File> sealed: listFiles(dbname, SEALED).entrySet()){
+			if (!deltas.containsKey(sealed.getKey()))
+				deltas.put(sealed.getKey(), sealed.getValue());
+		}
+		if (base == null && deltas.isEmpty() && walEpoch == -1)
+			return null;
+		long from = -1;
+		Replay replay = new Replay();
+		if (base != null){
+			from = base.getKey();
+			replay.base = base.getValue();
+		}
+		for (File f: deltas.tailMap(from, false).values())
+			replay.read(f);
+		if (walEpoch > from && !deltas.containsKey(walEpoch))
+			replay.read(wal);
+		return replay;
+	}
+	private static long readEpoch(File f) throws IOException{
+		if (!f.exists() || f.length() < HEADER)
+			return -1;
+		try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)){
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining() && in.read(header) != -1);
+			header.flip();
+			return header.getLong();
+		}
+	}
+
+	//ENCODING
+	private byte[] encodeState() throws IOException{
+		return encodeState(new int[]{
+			segment.state.ordinal(), segment.inceptionState.ordinal(),
+			segment.getWebId(), segment.getHeight(), segment.UID
+		});
+	}
+	/**
+	 * Encodes a state record (see Replay.state)
+	 * @param fields the segment's state, inception state, webID, height and UID
+	 * @return the record's payload
+	 * @throws IOException if the record couldn't be written
+	 */
+	static byte[] encodeState(int[] fields) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(STATE);
+		for (int field: fields)
+			out.writeInt(field);
+		return bytes.toByteArray();
+	}
+	private byte[] encodeNode(int UID) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Node n = (Node) segment.nodesByUID.get(UID);
+		//Only nodes that are mapped by webID are part of the segment
+		if (n == null || segment.nodes.get(n.getWebId()) != n){
+			out.writeByte(DELETE);
+			out.writeInt(UID);
+			return bytes.toByteArray();
+		}
+		out.writeByte(PUT);
+		out.writeInt(UID);
+		out.writeInt(n.getWebId());
+		out.writeInt(n.getHeight());
+		writeLink(out, n.L.getFold());
+		writeLink(out, n.L.getSurrogateFold());
+		writeLink(out, n.L.getInverseSurrogateFold());
+		writeLinks(out, n.L.getNeighbors());
+		writeLinks(out, n.L.getSurrogateNeighbors());
+		writeLinks(out, n.L.getInverseSurrogateNeighbors());
+		byte[] data = n.data.toBytes();
+		out.writeInt(data.length);
+		out.write(data);
+		return bytes.toByteArray();
+	}
+	private void writeLinks(DataOutputStream out, Node[] links) throws IOException{
+		out.writeInt(links.length);
+		for (Node link: links)
+			writeLink(out, link);
+	}
+	private void writeLink(DataOutputStream out, Node link) throws IOException{
+		if (link == null){
+			out.writeByte(NO_LINK);
+			return;
+		}
+		//Links to this segment are resolved by webID when replayed; all
+		//others need the address of the machine they're on
+		RemoteAddress addr = null;
+		if (link instanceof NodeProxy)
+			addr = link.getAddress();
+		else if (link.getHostSegment() != segment && Communicator.getAddress() != null)
+			addr = new RemoteAddress(Communicator.getAddress(), link.UID);
+		out.writeByte(addr == null ? LOCAL_LINK : REMOTE_LINK);
+		out.writeInt(link.getWebId());
+		out.writeInt(link.getHeight());
+		if (addr != null){
+			byte[] ip = addr.ip.getAddress();
+			out.writeByte(ip.length);
+			out.write(ip);
+			out.writeInt(addr.port);
+			out.writeInt(addr.UID);
+		}
+	}
+
+	//REPLAY
+	/**
+	 * The last record of each node, read from any number of logs and
+	 * checkpoints (in order); used to recover a segment, and to write checkpoints
+	 */
+	protected static class Replay{
+		final LinkedHashMap<Integer, Record> records = new LinkedHashMap();
+		byte[] state;
+		//Base checkpoint to load before applying the records, if any
+		File base;
+
+		/**
+		 * Reads a log or checkpoint; records after a torn or corrupt record are ignored
+		 * @param file the file to read
+		 * @throws IOException if the file couldn't be read
+		 */
+		private void read(File file) throws IOException{
+			if (!file.exists())
+				return;
+			ByteBuffer log;
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+				log = ByteBuffer.allocate((int) in.size());
+				while (log.hasRemaining() && in.read(log) != -1);
+				log.flip();
+			}
+			if (log.remaining() < HEADER)
+				return;
+			log.position(HEADER);
+			CRC32 crc = new CRC32();
+			while (log.remaining() >= 8){
+				int length = log.getInt(), check = log.getInt();
+				if (length < 0 || length > log.remaining())
+					break;
+				byte[] payload = new byte[length];
+				log.get(payload);
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != check)
+					break;
+				add(payload);
+			}
+		}
+		void add(byte[] payload) throws IOException{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			byte type = in.readByte();
+			if (type == STATE){
+				state = payload;
+				return;
+			}
+			add(new Record(type, in.readInt(), payload));
+		}
+		void add(Record r){
+			//Only the last record for each node matters
+			records.remove(r.UID);
+			records.put(r.UID, r);
+		}
+		/**
+		 * Writes the records to a delta checkpoint
+		 * @param file the checkpoint file
+		 * @param epoch the checkpoint's epoch
+		 * @throws IOException if the checkpoint couldn't be written
+		 */
+		private void write(File file, long epoch) throws IOException{
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			new DataOutputStream(buffer).writeLong(epoch);
+			for (Record r: records.values())
+				writeRecord(buffer, r.payload);
+			if (state != null)
+				writeRecord(buffer, state);
+			writeFile(file, ByteBuffer.wrap(buffer.toByteArray()));
+		}
+		/**
+		 * Rebuilds a segment from the base checkpoint and the records after it;
+		 * the segment and its nodes keep the UID's they were logged with, so
+		 * references to them from other machines are still valid
+		 * @param dbname the segment's database name
+		 * @return the rebuilt segment
+		 * @throws IOException if a record couldn't be read
+		 * @throws ClassNotFoundException if a node's data couldn't be read
+		 */
+		protected Segment apply(String dbname) throws IOException, ClassNotFoundException{
+			Segment segment = newSegment(dbname, state != null ? state : base != null ? SegmentMap.readState(base) : null);
+			//Nodes by the UID they were saved with
+			HashMap<Integer, Node> byUID = base == null ? new HashMap() : SegmentMap.load(base, segment);
+			if (state != null)
+				applyState(segment, state);
+			//Remove nodes first, since their webID's may have been reused
+			ArrayList<Record> puts = new ArrayList();
+			for (Record r: records.values()){
+				if (r.type == PUT){
+					r.parse();
+					puts.add(r);
+				}
+				else{
+					Node n = byUID.remove(r.UID);
+					if (n != null)
+						segment.unregisterNode(n);
+				}
+			}
+			//WebID's of the nodes after replay; changed nodes get their logged webID
+			HashMap<Integer, Node> byWebID = new HashMap();
+			for (Map.Entry<Integer, Node> entry: byUID.entrySet()){
+				if (!records.containsKey(entry.getKey()))
+					byWebID.put(entry.getValue().getWebId(), entry.getValue());
+			}
+			int size = puts.size();
+			Node[] targets = new Node[size];
+			int[] oldWebIDs = new int[size], webIDs = new int[size], heights = new int[size];
+			for (int i=0; i<size; i++){
+				Record r = puts.get(i);
+				targets[i] = byUID.get(r.UID);
+				if (targets[i] != null)
+					oldWebIDs[i] = targets[i].getWebId();
+				else{
+					targets[i] = new Node(r.UID, r.webID, r.height);
+					segment.registerNode(targets[i]);
+					oldWebIDs[i] = -1;
+				}
+				webIDs[i] = r.webID;
+				heights[i] = r.height;
+				byWebID.put(r.webID, targets[i]);
+			}
+			Node[] folds = new Node[size], sfolds = new Node[size], isfolds = new Node[size];
+			Node[][] n = new Node[size][], sn = new Node[size][], isn = new Node[size][];
+			HashMap<RemoteAddress, Node> proxies = new HashMap();
+			for (int i=0; i<size; i++){
+				Record r = puts.get(i);
+				folds[i] = resolve(r.f, byWebID, proxies);
+				sfolds[i] = resolve(r.sf, byWebID, proxies);
+				isfolds[i] = resolve(r.isf, byWebID, proxies);
+				n[i] = resolve(r.n, byWebID, proxies);
+				sn[i] = resolve(r.sn, byWebID, proxies);
+				isn[i] = resolve(r.isn, byWebID, proxies);
+				if (r.data.hasRemaining())
+					targets[i].data = new Attributes(r.data);
+			}
+			segment.applyLinks(targets, oldWebIDs, webIDs, heights, folds, sfolds, isfolds, n, sn, isn);
+			return segment;
+		}
+		/**
+		 * Creates an empty segment, with the UID from its state record
+		 * @param dbname the segment's database name
+		 * @param state the state record's payload; null, if there is none
+		 * @return the segment
+		 * @throws IOException if the record couldn't be read
+		 */
+		static Segment newSegment(String dbname, byte[] state) throws IOException{
+			if (state == null)
+				return new Segment(dbname, -1);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+			//Skip the type, states, webID and height
+			in.skipBytes(17);
+			return new Segment(in.readInt(), dbname, -1, 0, 0);
+		}
+		/**
+		 * Restores the segment's state from a state record
+		 * @param segment the segment
+		 * @param state the state record's payload
+		 * @throws IOException if the record couldn't be read
+		 */
+		static void applyState(Segment segment, byte[] state) throws IOException{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+			in.readByte();
+			segment.state = Segment.HyPeerWebState.values()[in.readInt()];
+			segment.inceptionState = Segment.HyPeerWebState.values()[in.readInt()];
+			segment.webID = in.readInt();
+			segment.height = in.readInt();
+		}
+		private static Node[] resolve(Link[] links, HashMap<Integer, Node> byWebID, HashMap<RemoteAddress, Node> proxies){
+			ArrayList<Node> resolved = new ArrayList();
+			for (Link link: links){
+				Node n = resolve(link, byWebID, proxies);
+				if (n != null)
+					resolved.add(n);
+			}
+			return resolved.toArray(new Node[resolved.size()]);
+		}
+		private static Node resolve(Link link, HashMap<Integer, Node> byWebID, HashMap<RemoteAddress, Node> proxies){
+			if (link == null)
+				return null;
+			if (link.addr == null){
+				Node n = byWebID.get(link.webID);
+				if (n == null)
+					System.err.println("SegmentLog: no node with webID "+link.webID+" to link to");
+				return n;
+			}
+			Node proxy = proxies.get(link.addr);
+			if (proxy == null){
+				proxy = new NodeProxy(link.webID, link.height, link.addr);
+				proxies.put(link.addr, proxy);
+			}
+			return proxy;
+		}
+	}
+	/**
+	 * A node's logged state; the payload is only parsed when it's replayed.
+	 * Records read from a base checkpoint are already parsed, and have no payload
+	 */
+	static class Record{
+		final byte type;
+		final int UID;
+		private final byte[] payload;
+		int webID, height;
+		Link f, sf, isf;
+		Link[] n, sn, isn;
+		//A slice of the payload, or of the mapped base checkpoint
+		ByteBuffer data;
+
+		Record(int UID){
+			this(PUT, UID, null);
+		}
+		private Record(byte type, int UID, byte[] payload){
+			this.type = type;
+			this.UID = UID;
+			this.payload = payload;
+		}
+		boolean isPut(){
+			return type == PUT;
+		}
+		void parse() throws IOException{
+			if (payload == null)
+				return;
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			//Skip the type and UID
+			in.skipBytes(5);
+			webID = in.readInt();
+			height = in.readInt();
+			f = readLink(in);
+			sf = readLink(in);
+			isf = readLink(in);
+			n = readLinks(in);
+			sn = readLinks(in);
+			isn = readLinks(in);
+			int length = in.readInt();
+			data = ByteBuffer.wrap(payload, payload.length-in.available(), length).slice();
+		}
+		private static Link[] readLinks(DataInputStream in) throws IOException{
+			Link[] links = new Link[in.readInt()];
+			for (int i=0; i<links.length; i++)
+				links[i] = readLink(in);
+			return links;
+		}
+		private static Link readLink(DataInputStream in) throws IOException{
+			byte type = in.readByte();
+			if (type == NO_LINK)
+				return null;
+			Link link = new Link(in.readInt(), in.readInt());
+			if (type == REMOTE_LINK){
+				byte[] ip = new byte[in.readByte()];
+				in.readFully(ip);
+				String host = InetAddress.getByAddress(ip).getHostAddress();
+				int port = in.readInt(), UID = in.readInt();
+				try{
+					link.addr = new RemoteAddress(host, port, UID);
+				} catch (Exception e){
+					throw new IOException(e);
+				}
+			}
+			return link;
+		}
+	}
+	/**
+	 * A logged link; the address is null for nodes on the logged segment
+	 */
+	static class Link{
+		final int webID, height;
+		RemoteAddress addr;
+
+		Link(int webID, int height){
+			this.webID = webID;
+			this.height = height;
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package hypeerweb;
+
+import communicator.RemoteAddress;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Compact, fixed-layout base checkpoint of a segment's nodes (see SegmentLog).
+ * The file is memory-mapped when it's loaded; nodes are built straight from
+ * the tables, and a node's data is only deserialized when it's first accessed.
+ * Links are indexes into the node table, or (below NO_LINK) into the remote table;
+ * neighbor lists are ranges of the adjacency table. Layout:
+ *	header		magic, version, epoch, segment state, and the size of each table
+ *	nodes		[UID, webID, height, f, sf, isf, n, #n, sn, #sn, isn, #isn, data, #data]
+ *				for each node, in webID order
+ *	remotes		[webID, height, port, UID, #ip, ip (16 bytes)] for each remote link
+ *	adjacency	[link] for each neighbor, surrogate and inverse surrogate neighbor
+ *	data		serialized Attributes
+ */
+public class SegmentMap {
+	private static final int MAGIC = 0x4850574D, VERSION = 1;
+	//Bytes reserved for the segment state record
+	private static final int STATE = 32;
+	//Size of the header, a node, and a remote link, in bytes
+	private static final int HEADER = 4+4+8+4+STATE+4*4, NODE = 14*4, REMOTE = 5*4+16;
+	private static final int NO_LINK = -1;
+
+	/**
+	 * Writes the nodes in a replay as a base checkpoint; removed nodes are left out
+	 * @param file the checkpoint file
+	 * @param epoch the checkpoint's epoch
+	 * @param replay the nodes to write
+	 * @throws IOException if the checkpoint couldn't be written
+	 */
+	protected static void write(File file, long epoch, SegmentLog.Replay replay) throws IOException{
+		ArrayList<SegmentLog.Record> nodes = new ArrayList();
+		for (SegmentLog.Record r: replay.records.values()){
+			if (r.isPut()){
+				r.parse();
+				nodes.add(r);
+			}
+		}
+		Collections.sort(nodes, new Comparator<SegmentLog.Record>(){
+			@Override
+			public int compare(SegmentLog.Record a, SegmentLog.Record b){
+				return Integer.compare(a.webID, b.webID);
+			}
+		});
+		HashMap<Integer, Integer> index = new HashMap();
+		for (int i=0; i<nodes.size(); i++)
+			index.put(nodes.get(i).webID, i);
+		//Size the tables first, so they can be streamed to the file in order
+		Tables t = new Tables(index);
+		int adjacency = 0, data = 0;
+		for (SegmentLog.Record r: nodes){
+			t.link(r.f);
+			t.link(r.sf);
+			t.link(r.isf);
+			adjacency += t.count(r.n) + t.count(r.sn) + t.count(r.isn);
+			data += r.data.remaining();
+		}
+		File temp = new File(file.getPath()+".tmp");
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			Output out = new Output(channel);
+			out.putInt(MAGIC).putInt(VERSION).putLong(epoch);
+			byte[] state = replay.state == null ? new byte[0] : replay.state;
+			out.putInt(state.length).put(Arrays.copyOf(state, STATE));
+			out.putInt(nodes.size()).putInt(t.remotes.size()).putInt(adjacency).putInt(data);
+			adjacency = data = 0;
+			for (SegmentLog.Record r: nodes){
+				out.putInt(r.UID).putInt(r.webID).putInt(r.height);
+				out.putInt(t.link(r.f)).putInt(t.link(r.sf)).putInt(t.link(r.isf));
+				for (SegmentLog.Link[] links: new SegmentLog.Link[][]{r.n, r.sn, r.isn}){
+					int count = t.count(links);
+					out.putInt(adjacency).putInt(count);
+					adjacency += count;
+				}
+				out.putInt(data).putInt(r.data.remaining());
+				data += r.data.remaining();
+			}
+			for (SegmentLog.Link link: t.remotes.keySet()){
+				byte[] ip = link.addr.ip.getAddress();
+				out.putInt(link.webID).putInt(link.height).putInt(link.addr.port).putInt(link.addr.UID);
+				out.putInt(ip.length).put(Arrays.copyOf(ip, 16));
+			}
+			for (SegmentLog.Record r: nodes){
+				t.write(r.n, out);
+				t.write(r.sn, out);
+				t.write(r.isn, out);
+			}
+			//Unchanged nodes' data is still a slice of the old base; it's copied straight from the map
+			for (SegmentLog.Record r: nodes)
+				out.put(r.data.duplicate());
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	/**
+	 * Maps a base checkpoint and builds its nodes in an empty segment
+	 * @param file the checkpoint file
+	 * @param segment the segment to fill
+	 * @return the nodes, by the UID they were saved with
+	 * @throws IOException if the file couldn't be mapped, or isn't a checkpoint
+	 */
+	protected static HashMap<Integer, Node> load(File file, Segment segment) throws IOException{
+		MappedByteBuffer map = map(file);
+		Layout l = new Layout(file, map);
+		if (l.state != null)
+			SegmentLog.Replay.applyState(segment, l.state);
+		HashMap<Integer, Node> byUID = new HashMap();
+		Node[] nodes = new Node[l.nodes], remotes = new Node[l.remotes];
+		int[] oldWebIDs = new int[l.nodes], webIDs = new int[l.nodes], heights = new int[l.nodes];
+		for (int i=0; i<l.nodes; i++){
+			int at = HEADER + i*NODE;
+			webIDs[i] = map.getInt(at+4);
+			heights[i] = map.getInt(at+8);
+			nodes[i] = new Node(map.getInt(at), webIDs[i], heights[i]);
+			oldWebIDs[i] = -1;
+			segment.registerNode(nodes[i]);
+			byUID.put(map.getInt(at), nodes[i]);
+		}
+		Node[] folds = new Node[l.nodes], sfolds = new Node[l.nodes], isfolds = new Node[l.nodes];
+		Node[][] n = new Node[l.nodes][], sn = new Node[l.nodes][], isn = new Node[l.nodes][];
+		for (int i=0; i<l.nodes; i++){
+			int at = HEADER + i*NODE;
+			folds[i] = l.resolve(map.getInt(at+12), nodes, remotes);
+			sfolds[i] = l.resolve(map.getInt(at+16), nodes, remotes);
+			isfolds[i] = l.resolve(map.getInt(at+20), nodes, remotes);
+			n[i] = l.resolve(map.getInt(at+24), map.getInt(at+28), nodes, remotes);
+			sn[i] = l.resolve(map.getInt(at+32), map.getInt(at+36), nodes, remotes);
+			isn[i] = l.resolve(map.getInt(at+40), map.getInt(at+44), nodes, remotes);
+			//Deserialized on first access
+			int length = map.getInt(at+52);
+			if (length > 0){
+				ByteBuffer data = map.duplicate();
+				data.position(l.data + map.getInt(at+48));
+				data.limit(data.position() + length);
+				nodes[i].data = new Attributes(data.slice());
+			}
+		}
+		segment.applyLinks(nodes, oldWebIDs, webIDs, heights, folds, sfolds, isfolds, n, sn, isn);
+		return byUID;
+	}
+	/**
+	 * Reads a base checkpoint's nodes into a replay, so it can be merged with deltas
+	 * @param file the checkpoint file
+	 * @param replay the replay to add the nodes to
+	 * @throws IOException if the file couldn't be read, or isn't a checkpoint
+	 */
+	protected static void read(File file, SegmentLog.Replay replay) throws IOException{
+		MappedByteBuffer map = map(file);
+		Layout l = new Layout(file, map);
+		if (l.state != null)
+			replay.state = l.state;
+		SegmentLog.Link[] links = new SegmentLog.Link[l.nodes];
+		for (int i=0; i<l.nodes; i++){
+			int at = HEADER + i*NODE;
+			links[i] = new SegmentLog.Link(map.getInt(at+4), map.getInt(at+8));
+		}
+		for (int i=0; i<l.nodes; i++){
+			int at = HEADER + i*NODE;
+			SegmentLog.Record r = new SegmentLog.Record(map.getInt(at));
+			r.webID = links[i].webID;
+			r.height = links[i].height;
+			r.f = l.link(map.getInt(at+12), links);
+			r.sf = l.link(map.getInt(at+16), links);
+			r.isf = l.link(map.getInt(at+20), links);
+			r.n = l.links(map.getInt(at+24), map.getInt(at+28), links);
+			r.sn = l.links(map.getInt(at+32), map.getInt(at+36), links);
+			r.isn = l.links(map.getInt(at+40), map.getInt(at+44), links);
+			//Data isn't copied; it's written from the map if the node is unchanged
+			ByteBuffer data = map.duplicate();
+			data.position(l.data + map.getInt(at+48));
+			data.limit(data.position() + map.getInt(at+52));
+			r.data = data.slice();
+			replay.add(r);
+		}
+	}
+
+	/**
+	 * Numbers the nodes and remote links, while the tables are being written
+	 */
+	private static class Tables{
+		private final HashMap<Integer, Integer> index;
+		private final LinkedHashMap<SegmentLog.Link, Integer> remotes = new LinkedHashMap();
+		private final HashMap<RemoteAddress, SegmentLog.Link> remoteByAddress = new HashMap();
+
+		private Tables(HashMap<Integer, Integer> index){
+			this.index = index;
+		}
+		private int link(SegmentLog.Link link){
+			if (link == null)
+				return NO_LINK;
+			if (link.addr == null){
+				Integer i = index.get(link.webID);
+				return i == null ? NO_LINK : i;
+			}
+			//Remote links are shared, since many nodes link to the same one
+			SegmentLog.Link shared = remoteByAddress.get(link.addr);
+			if (shared == null){
+				shared = link;
+				remoteByAddress.put(link.addr, link);
+				remotes.put(link, remotes.size());
+			}
+			return NO_LINK-1-remotes.get(shared);
+		}
+		private int count(SegmentLog.Link[] links){
+			int count = 0;
+			for (SegmentLog.Link link: links){
+				if (link(link) != NO_LINK)
+					count++;
+			}
+			return count;
+		}
+		private void write(SegmentLog.Link[] links, Output out) throws IOException{
+			for (SegmentLog.Link link: links){
+				int ref = link(link);
+				if (ref != NO_LINK)
+					out.putInt(ref);
+			}
+		}
+	}
+	/**
+	 * Buffers small writes to a checkpoint file; large slices skip the buffer
+	 */
+	private static class Output{
+		private static final int CHUNK = 64*1024;
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+
+		private Output(FileChannel channel){
+			this.channel = channel;
+		}
+		private Output putInt(int value) throws IOException{
+			if (buffer.remaining() < 4)
+				flush();
+			buffer.putInt(value);
+			return this;
+		}
+		private Output putLong(long value) throws IOException{
+			if (buffer.remaining() < 8)
+				flush();
+			buffer.putLong(value);
+			return this;
+		}
+		private Output put(byte[] bytes) throws IOException{
+			return put(ByteBuffer.wrap(bytes));
+		}
+		private Output put(ByteBuffer bytes) throws IOException{
+			if (bytes.remaining() > buffer.remaining()){
+				flush();
+				if (bytes.remaining() > buffer.remaining()){
+					while (bytes.hasRemaining())
+						channel.write(bytes);
+					return this;
+				}
+			}
+			buffer.put(bytes);
+			return this;
+		}
+		private void flush() throws IOException{
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+	/**
+	 * Reads the segment state record from a base checkpoint
+	 * @param file the checkpoint file
+	 * @return the state record's payload; null, if it has none
+	 * @throws IOException if the file couldn't be read, or isn't a checkpoint
+	 */
+	protected static byte[] readState(File file) throws IOException{
+		return new Layout(file, map(file)).state;
+	}
+	private static MappedByteBuffer map(File file) throws IOException{
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+		}
+	}
+	/**
+	 * Where the tables are, in a mapped checkpoint
+	 */
+	private static class Layout{
+		private final ByteBuffer map;
+		private final byte[] state;
+		private final int nodes, remotes, adjacency, data;
+
+		private Layout(File file, ByteBuffer map) throws IOException{
+			this.map = map;
+			if (map.capacity() < HEADER || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+				throw new IOException(file+" is not a segment checkpoint");
+			int length = map.getInt(16);
+			if (length > 0){
+				state = new byte[length];
+				ByteBuffer s = map.duplicate();
+				s.position(20);
+				s.get(state);
+			}
+			else state = null;
+			int at = 20+STATE;
+			nodes = map.getInt(at);
+			remotes = map.getInt(at+4);
+			adjacency = HEADER + nodes*NODE + remotes*REMOTE;
+			data = adjacency + map.getInt(at+8)*4;
+		}
+		private Node resolve(int ref, Node[] nodes, Node[] proxies) throws IOException{
+			if (ref == NO_LINK)
+				return null;
+			if (ref >= 0)
+				return nodes[ref];
+			//Remote nodes share one proxy, made the first time it's needed
+			int i = NO_LINK-1-ref;
+			if (proxies[i] == null){
+				SegmentLog.Link link = remote(i);
+				proxies[i] = new NodeProxy(link.webID, link.height, link.addr);
+			}
+			return proxies[i];
+		}
+		private Node[] resolve(int start, int count, Node[] nodes, Node[] proxies) throws IOException{
+			Node[] links = new Node[count];
+			for (int i=0; i<count; i++)
+				links[i] = resolve(map.getInt(adjacency + (start+i)*4), nodes, proxies);
+			return links;
+		}
+		private SegmentLog.Link link(int ref, SegmentLog.Link[] nodes) throws IOException{
+			if (ref == NO_LINK)
+				return null;
+			return ref >= 0 ? nodes[ref] : remote(NO_LINK-1-ref);
+		}
+		private SegmentLog.Link[] links(int start, int count, SegmentLog.Link[] nodes) throws IOException{
+			SegmentLog.Link[] links = new SegmentLog.Link[count];
+			for (int i=0; i<count; i++)
+				links[i] = link(map.getInt(adjacency + (start+i)*4), nodes);
+			return links;
+		}
+		private SegmentLog.Link remote(int i) throws IOException{
+			int at = HEADER + nodes*NODE + i*REMOTE;
+			SegmentLog.Link link = new SegmentLog.Link(map.getInt(at), map.getInt(at+4));
+			byte[] ip = new byte[map.getInt(at+16)];
+			ByteBuffer b = map.duplicate();
+			b.position(at+20);
+			b.get(ip);
+			try{
+				link.addr = new RemoteAddress(InetAddress.getByAddress(ip).getHostAddress(), map.getInt(at+8), map.getInt(at+12));
+			} catch (Exception e){
+				throw new IOException(e);
+			}
+			return link;
+		}
+	}
+}
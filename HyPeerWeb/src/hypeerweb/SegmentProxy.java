@@ -7,6 +7,7 @@ import communicator.RemoteAddress;
 import hypeerweb.visitors.AbstractVisitor;
 import java.io.ObjectStreamException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Oh goodness. I can't believe I'm doing this
@@ -140,7 +141,92 @@ public class SegmentProxy<T> extends Segment{
 	public void getNode(int p1, boolean p2, NodeListener p3){
 		requestSeg("getNode", new String[] {"int", "boolean", NodeListener.className}, new Object[] {p1, p2, p3}, false);
 	}
-	
+	@Override
+	protected void sampleNode(int p1, NodeListener p2){
+		requestSeg("sampleNode", new String[] {"int", NodeListener.className}, new Object[] {p1, p2}, false);
+	}
+	@Override
+	protected NodeListener[] landFlight(long p1){
+		return (NodeListener[]) requestSeg("landFlight", new String[] {"long"}, new Object[] {p1}, true);
+	}
+	@Override
+	protected void finishCommit(long p1){
+		requestSeg("finishCommit", new String[] {"long"}, new Object[] {p1}, false);
+	}
+	@Override
+	protected void finishCommit(long p1, int p2){
+		requestSeg("finishCommit", new String[] {"long", "int"}, new Object[] {p1, p2}, false);
+	}
+	@Override
+	protected void unlockEdge(int p1){
+		requestSeg("unlockEdge", new String[] {"int"}, new Object[] {p1}, false);
+	}
+	@Override
+	protected int[] getSegmentShape(){
+		return (int[]) requestSeg("getSegmentShape");
+	}
+	@Override
+	public double getRequestRate(){
+		return (double) requestSeg("getRequestRate");
+	}
+	@Override
+	public void migrateNodes(Segment p1, int p2, NodeListener p3){
+		requestSeg("migrateNodes", new String[] {Segment.className, "int", NodeListener.className}, new Object[] {p1, p2, p3}, false);
+	}
+	@Override
+	public void migrateSubcube(Segment p1, NodeListener p2){
+		requestSeg("migrateSubcube", new String[] {Segment.className, NodeListener.className}, new Object[] {p1, p2}, false);
+	}
+	@Override
+	public double getProxyRatio(){
+		return (double) requestSeg("getProxyRatio");
+	}
+	@Override
+	protected Node[] adoptNodes(NodeImmutable[] p1){
+		return (Node[]) requestSeg("adoptNodes", new String[] {NodeImmutable[].class.getName()}, new Object[] {p1}, true);
+	}
+	@Override
+	public Node[] getSegmentNodes(){
+		return (Node[]) requestSeg("getSegmentNodes");
+	}
+	@Override
+	public Node[] getSegmentNodes(int[] p1){
+		return (Node[]) requestSeg("getSegmentNodes", new String[] {"[I"}, new Object[] {p1}, true);
+	}
+	@Override
+	public int[] getSegmentWebIds(){
+		return (int[]) requestSeg("getSegmentWebIds");
+	}
+	@Override
+	protected Node[] allocateNodes(int p1){
+		return (Node[]) requestSeg("allocateNodes", new String[] {"int"}, new Object[] {p1}, true);
+	}
+	@Override
+	protected HashMap<String, Object> releaseNodes(Node[] p1){
+		return (HashMap<String, Object>) requestSeg("releaseNodes", new String[] {Node.classNameArr}, new Object[] {p1}, true);
+	}
+	@Override
+	protected boolean queryResults(long p1, ArrayList p2){
+		return (boolean) requestSeg("queryResults", new String[] {"long", "java.util.ArrayList"}, new Object[] {p1, p2}, true);
+	}
+	@Override
+	protected void rehashNodes(Node[] p1){
+		requestSeg("rehashNodes", new String[] {Node.classNameArr}, new Object[] {p1}, false);
+	}
+	@Override
+	protected void applyLinks(
+		Node[] p1, int[] p2, int[] p3, int[] p4,
+		Node[] p5, Node[] p6, Node[] p7,
+		Node[][] p8, Node[][] p9, Node[][] p10
+	){
+		String nodeArr2 = Node[][].class.getName();
+		requestSeg("applyLinks", new String[] {
+			Node.classNameArr, "[I", "[I", "[I",
+			Node.classNameArr, Node.classNameArr, Node.classNameArr,
+			nodeArr2, nodeArr2, nodeArr2
+		}, new Object[] {p1, p2, p3, p4, p5, p6, p7, p8, p9, p10}, true);
+	}
+
 	private Object requestSeg(String name){
 		return requestSeg(name, null, null, true);
 	}
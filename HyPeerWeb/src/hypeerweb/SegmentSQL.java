@@ -0,0 +1,465 @@
+package hypeerweb;
+
+import communicator.Communicator;
+import communicator.RemoteAddress;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores a segment's nodes, links and attributes in indexed SQLite tables
+ * (see lib/sqlite-jdbc), so they can be queried by height, segment, or
+ * attribute without loading the whole web. Like SegmentLog, nodes are marked
+ * as they change; a background thread writes every marked node in one
+ * transaction, using batched prepared statements. The database is in WAL
+ * journal mode, so queries (on their own connection) never wait for writes.
+ * Several segments can share a database; their rows are kept apart by the
+ * segment's name (its dbname). Tables:
+ *	Segments		segment state, webID, height and UID
+ *	SegmentNodes		UID, webID, height and serialized data of each node
+ *	SegmentLinks		one row per link (see link types); remote links have an address
+ *	SegmentAttributes	attributes with a String, number, or boolean value
+ */
+public class SegmentSQL extends Thread{
+	//Link types
+	public static final int
+		FOLD = 0, SURROGATE_FOLD = 1, INVERSE_SURROGATE_FOLD = 2,
+		NEIGHBOR = 3, SURROGATE_NEIGHBOR = 4, INVERSE_SURROGATE_NEIGHBOR = 5;
+	private static final String[] SCHEMA = {
+		"CREATE TABLE IF NOT EXISTS `Segments` (`Segment` text primary key, `State` integer, `InceptionState` integer, `WebId` integer, `Height` integer, `UID` integer)",
+		"CREATE TABLE IF NOT EXISTS `SegmentNodes` (`Segment` text, `UID` integer, `WebId` integer, `Height` integer, `Data` blob, primary key (`Segment`, `UID`))",
+		"CREATE TABLE IF NOT EXISTS `SegmentLinks` (`Segment` text, `UID` integer, `Type` integer, `WebId` integer, `Height` integer, `Host` text, `Port` integer, `Remote` integer)",
+		"CREATE TABLE IF NOT EXISTS `SegmentAttributes` (`Segment` text, `UID` integer, `Name` text, `Value`)",
+		"CREATE INDEX IF NOT EXISTS `Idx_SegmentNodes_WebId` on `SegmentNodes` (`WebId`)",
+		"CREATE INDEX IF NOT EXISTS `Idx_SegmentNodes_Height` on `SegmentNodes` (`Height`)",
+		"CREATE INDEX IF NOT EXISTS `Idx_SegmentLinks` on `SegmentLinks` (`Segment`, `UID`)",
+		"CREATE INDEX IF NOT EXISTS `Idx_SegmentAttributes` on `SegmentAttributes` (`Segment`, `UID`)",
+		"CREATE INDEX IF NOT EXISTS `Idx_SegmentAttributes_Value` on `SegmentAttributes` (`Name`, `Value`)"
+	};
+	//How long (in ms) the writer waits to gather changes into one batch
+	private static final int GROUP_COMMIT = 20;
+	private final Segment segment;
+	private final String name;
+	//Writes happen on the writer thread; queries use their own connection
+	private final Connection writer, reader;
+	private final PreparedStatement
+		deleteNode, deleteLinks, deleteAttributes,
+		insertNode, insertLink, insertAttribute, updateState;
+	//UID's of nodes that changed, but haven't been written yet
+	private final Set<Integer> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	//Segment state, as of the last time we wrote it
+	private int[] storedState;
+	//Sync requests, and how many have been committed (see sync)
+	private long requested, committed;
+	//The last batch that failed, and why; sync callers waiting on it get the error
+	private long failed;
+	private SQLException failure;
+	private boolean closed;
+
+	/**
+	 * Starts storing a segment; its old rows are replaced by the
+	 * segment's current nodes
+	 * @param segment the segment to store; it must have a dbname
+	 * @param file the SQLite database file
+	 * @throws SQLException if the database couldn't be opened or written
+	 */
+	protected SegmentSQL(Segment segment, String file) throws SQLException{
+		super("segment-sql-"+segment.dbname);
+		this.segment = segment;
+		name = segment.dbname;
+		writer = open(file);
+		reader = open(file);
+		Statement s = writer.createStatement();
+		for (String sql: SCHEMA)
+			s.executeUpdate(sql);
+		s.close();
+		writer.setAutoCommit(false);
+		deleteNode = writer.prepareStatement("DELETE FROM `SegmentNodes` WHERE `Segment`=? AND `UID`=?");
+		deleteLinks = writer.prepareStatement("DELETE FROM `SegmentLinks` WHERE `Segment`=? AND `UID`=?");
+		deleteAttributes = writer.prepareStatement("DELETE FROM `SegmentAttributes` WHERE `Segment`=? AND `UID`=?");
+		insertNode = writer.prepareStatement("INSERT INTO `SegmentNodes` VALUES (?, ?, ?, ?, ?)");
+		insertLink = writer.prepareStatement("INSERT INTO `SegmentLinks` VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+		insertAttribute = writer.prepareStatement("INSERT INTO `SegmentAttributes` VALUES (?, ?, ?, ?)");
+		updateState = writer.prepareStatement("INSERT OR REPLACE INTO `Segments` VALUES (?, ?, ?, ?, ?, ?)");
+		//Replace whatever was stored for this segment before
+		for (String table: new String[]{"SegmentNodes", "SegmentLinks", "SegmentAttributes"}){
+			PreparedStatement clear = writer.prepareStatement("DELETE FROM `"+table+"` WHERE `Segment`=?");
+			clear.setString(1, name);
+			clear.executeUpdate();
+			clear.close();
+		}
+		for (Object n: segment.nodes.values())
+			dirty.add(((Node) n).UID);
+		flush();
+		setDaemon(true);
+		start();
+	}
+	private static Connection open(String file) throws SQLException{
+		try{
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e){
+			throw new SQLException("SQLite driver not found", e);
+		}
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:"+file);
+		Statement s = conn.createStatement();
+		//Readers see the last commit, and don't block the writer; with WAL,
+		//a normal sync is enough to keep the database consistent
+		s.execute("PRAGMA journal_mode=WAL");
+		s.execute("PRAGMA synchronous=NORMAL");
+		s.close();
+		return conn;
+	}
+
+	//STORING
+	/**
+	 * Marks a node as changed; its rows will be rewritten with the next batch
+	 * @param UID the node's UID
+	 */
+	protected void mark(int UID){
+		dirty.add(UID);
+	}
+	/**
+	 * Blocks until every change made before this call has been committed;
+	 * concurrent callers share the same transaction
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws SQLException if the transaction failed; the changes
+	 *	are tried again with the next one
+	 */
+	public synchronized void sync() throws InterruptedException, SQLException{
+		long ticket = ++requested;
+		notifyAll();
+		while (committed < ticket && !closed){
+			if (failed >= ticket)
+				throw failure;
+			wait();
+		}
+	}
+	/**
+	 * Writes the remaining changes and closes the database
+	 */
+	public void close(){
+		synchronized (this){
+			closed = true;
+			notifyAll();
+		}
+		try{
+			join();
+			flush();
+			writer.close();
+			synchronized (reader){
+				reader.close();
+			}
+		} catch (Exception e){
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void run(){
+		while (true){
+			long ticket;
+			synchronized (this){
+				//Wait for the batch to fill, unless someone is waiting on it;
+				//a batch that failed is retried once the wait is over
+				if ((requested == committed || requested == failed) && !closed){
+					try{
+						wait(GROUP_COMMIT);
+					} catch (InterruptedException e){
+						return;
+					}
+				}
+				if (closed)
+					return;
+				ticket = requested;
+				try{
+					flush();
+					committed = ticket;
+				} catch (SQLException e){
+					System.err.println("SegmentSQL: failed to write "+name);
+					e.printStackTrace();
+					failed = ticket;
+					failure = e;
+				}
+				notifyAll();
+			}
+		}
+	}
+	/**
+	 * Rewrites the rows of every marked node in one transaction
+	 * @throws SQLException if the rows couldn't be written; the
+	 *	nodes stay marked, so they're tried again with the next batch
+	 */
+	private synchronized void flush() throws SQLException{
+		Integer[] batch = dirty.toArray(new Integer[0]);
+		int[] state = {
+			segment.state.ordinal(), segment.inceptionState.ordinal(),
+			segment.getWebId(), segment.getHeight(), segment.UID
+		};
+		boolean stateChanged = !Arrays.equals(state, storedState);
+		if (batch.length == 0 && !stateChanged)
+			return;
+		//Anything marked after this is left for the next batch
+		dirty.removeAll(Arrays.asList(batch));
+		try{
+			for (Integer uid: batch){
+				for (PreparedStatement delete: new PreparedStatement[]{deleteNode, deleteLinks, deleteAttributes}){
+					delete.setString(1, name);
+					delete.setInt(2, uid);
+					delete.addBatch();
+				}
+				Node n = (Node) segment.nodesByUID.get(uid);
+				//Only nodes that are mapped by webID are part of the segment
+				if (n != null && segment.nodes.get(n.getWebId()) == n)
+					addNode(n);
+			}
+			if (stateChanged){
+				updateState.setString(1, name);
+				for (int i=0; i<state.length; i++)
+					updateState.setInt(i+2, state[i]);
+				updateState.addBatch();
+			}
+			//Deletes go first, so a node's new rows replace its old ones
+			for (PreparedStatement ps: new PreparedStatement[]{
+				deleteNode, deleteLinks, deleteAttributes,
+				insertNode, insertLink, insertAttribute, updateState
+			})
+				ps.executeBatch();
+			writer.commit();
+			storedState = state;
+		} catch (SQLException | IOException | RuntimeException e){
+			writer.rollback();
+			for (PreparedStatement ps: new PreparedStatement[]{
+				deleteNode, deleteLinks, deleteAttributes,
+				insertNode, insertLink, insertAttribute, updateState
+			})
+				ps.clearBatch();
+			dirty.addAll(Arrays.asList(batch));
+			throw e instanceof SQLException ? (SQLException) e : new SQLException(e);
+		}
+	}
+	private void addNode(Node n) throws SQLException, IOException{
+		insertNode.setString(1, name);
+		insertNode.setInt(2, n.UID);
+		insertNode.setInt(3, n.getWebId());
+		insertNode.setInt(4, n.getHeight());
+		insertNode.setBytes(5, n.data.toBytes());
+		insertNode.addBatch();
+		addLink(n, FOLD, n.L.getFold());
+		addLink(n, SURROGATE_FOLD, n.L.getSurrogateFold());
+		addLink(n, INVERSE_SURROGATE_FOLD, n.L.getInverseSurrogateFold());
+		for (Node link: n.L.getNeighbors())
+			addLink(n, NEIGHBOR, link);
+		for (Node link: n.L.getSurrogateNeighbors())
+			addLink(n, SURROGATE_NEIGHBOR, link);
+		for (Node link: n.L.getInverseSurrogateNeighbors())
+			addLink(n, INVERSE_SURROGATE_NEIGHBOR, link);
+		//Only simple values can be indexed; the rest are only in the node's data
+		for (Map.Entry<String, Object> attr: n.data.toMap().entrySet()){
+			insertAttribute.setString(1, name);
+			insertAttribute.setInt(2, n.UID);
+			insertAttribute.setString(3, attr.getKey());
+			if (bindValue(insertAttribute, 4, attr.getValue()))
+				insertAttribute.addBatch();
+		}
+	}
+	private void addLink(Node n, int type, Node link) throws SQLException{
+		if (link == null)
+			return;
+		//Links to this segment are resolved by webID when loaded; all
+		//others need the address of the machine they're on
+		RemoteAddress addr = null;
+		if (link instanceof NodeProxy)
+			addr = link.getAddress();
+		else if (link.getHostSegment() != segment && Communicator.getAddress() != null)
+			addr = new RemoteAddress(Communicator.getAddress(), link.UID);
+		insertLink.setString(1, name);
+		insertLink.setInt(2, n.UID);
+		insertLink.setInt(3, type);
+		insertLink.setInt(4, link.getWebId());
+		insertLink.setInt(5, link.getHeight());
+		if (addr == null){
+			for (int i=6; i<=8; i++)
+				insertLink.setNull(i, java.sql.Types.NULL);
+		}
+		else{
+			insertLink.setString(6, addr.ip.getHostAddress());
+			insertLink.setInt(7, addr.port);
+			insertLink.setInt(8, addr.UID);
+		}
+		insertLink.addBatch();
+	}
+	/**
+	 * Binds an attribute value to a statement
+	 * @return false, if the value is not a String, number, or boolean
+	 */
+	private static boolean bindValue(PreparedStatement ps, int index, Object value) throws SQLException{
+		if (value instanceof String)
+			ps.setString(index, (String) value);
+		else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+			ps.setLong(index, ((Number) value).longValue());
+		else if (value instanceof Number)
+			ps.setDouble(index, ((Number) value).doubleValue());
+		else if (value instanceof Boolean)
+			ps.setInt(index, (Boolean) value ? 1 : 0);
+		else return false;
+		return true;
+	}
+
+	//QUERIES
+	/**
+	 * Get the webID's of stored nodes with a certain height, from every
+	 * segment in the database
+	 * @param height the node height
+	 * @return the webID's, in order
+	 * @throws SQLException if the query failed
+	 */
+	public ArrayList<Integer> getNodesByHeight(int height) throws SQLException{
+		return query("SELECT `WebId` FROM `SegmentNodes` WHERE `Height`=? ORDER BY `WebId`", height);
+	}
+	/**
+	 * Get the webID's of the nodes stored for a segment
+	 * @param segment the segment's name (its dbname)
+	 * @return the webID's, in order
+	 * @throws SQLException if the query failed
+	 */
+	public ArrayList<Integer> getNodesBySegment(String segment) throws SQLException{
+		return query("SELECT `WebId` FROM `SegmentNodes` WHERE `Segment`=? ORDER BY `WebId`", segment);
+	}
+	/**
+	 * Get the webID's of stored nodes with an attribute value, from every
+	 * segment in the database; only String, number, and boolean values are indexed
+	 * @param attribute the attribute's name
+	 * @param value the attribute's value
+	 * @return the webID's, in order
+	 * @throws SQLException if the query failed
+	 */
+	public ArrayList<Integer> getNodesByAttribute(String attribute, Object value) throws SQLException{
+		return query(
+			"SELECT n.`WebId` FROM `SegmentAttributes` a JOIN `SegmentNodes` n"+
+			" ON n.`Segment`=a.`Segment` AND n.`UID`=a.`UID`"+
+			" WHERE a.`Name`=? AND a.`Value`=? ORDER BY n.`WebId`", attribute, value);
+	}
+	/**
+	 * Get the webID's a stored node links to
+	 * @param webID the node's webID
+	 * @param type the type of link (e.g. NEIGHBOR)
+	 * @return the linked webID's, in order
+	 * @throws SQLException if the query failed
+	 */
+	public ArrayList<Integer> getLinks(int webID, int type) throws SQLException{
+		return query(
+			"SELECT l.`WebId` FROM `SegmentNodes` n JOIN `SegmentLinks` l"+
+			" ON l.`Segment`=n.`Segment` AND l.`UID`=n.`UID`"+
+			" WHERE n.`WebId`=? AND l.`Type`=? ORDER BY l.`WebId`", webID, type);
+	}
+	private ArrayList<Integer> query(String sql, Object... params) throws SQLException{
+		ArrayList<Integer> found = new ArrayList();
+		synchronized (reader){
+			try (PreparedStatement ps = reader.prepareStatement(sql)){
+				for (int i=0; i<params.length; i++){
+					if (!bindValue(ps, i+1, params[i]))
+						return found;
+				}
+				try (ResultSet rs = ps.executeQuery()){
+					while (rs.next())
+						found.add(rs.getInt(1));
+				}
+			}
+		}
+		return found;
+	}
+
+	//LOADING
+	/**
+	 * Rebuilds a segment from its stored rows; the segment and its nodes keep their UID's
+	 * @param file the SQLite database file
+	 * @param dbname the segment's name
+	 * @return the loaded segment, or null if nothing was stored for it
+	 * @throws SQLException if the database couldn't be read
+	 * @throws IOException if a node couldn't be rebuilt
+	 * @throws ClassNotFoundException if a node's data couldn't be read
+	 */
+	protected static Segment load(String file, String dbname) throws SQLException, IOException, ClassNotFoundException{
+		Segment segment;
+		try (Connection conn = open(file)){
+			int[] state;
+			try (PreparedStatement ps = conn.prepareStatement("SELECT `State`, `InceptionState`, `WebId`, `Height`, `UID` FROM `Segments` WHERE `Segment`=?")){
+				ps.setString(1, dbname);
+				try (ResultSet rs = ps.executeQuery()){
+					if (!rs.next())
+						return null;
+					state = new int[]{rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4), rs.getInt(5)};
+				}
+			} catch (SQLException e){
+				//The tables don't exist yet
+				return null;
+			}
+			SegmentLog.Replay replay = new SegmentLog.Replay();
+			replay.state = SegmentLog.encodeState(state);
+			HashMap<Integer, ArrayList<SegmentLog.Link>[]> links = new HashMap();
+			try (PreparedStatement ps = conn.prepareStatement("SELECT `UID`, `WebId`, `Height`, `Data` FROM `SegmentNodes` WHERE `Segment`=?")){
+				ps.setString(1, dbname);
+				try (ResultSet rs = ps.executeQuery()){
+					while (rs.next()){
+						SegmentLog.Record r = new SegmentLog.Record(rs.getInt(1));
+						r.webID = rs.getInt(2);
+						r.height = rs.getInt(3);
+						byte[] data = rs.getBytes(4);
+						r.data = ByteBuffer.wrap(data == null ? new byte[0] : data);
+						replay.add(r);
+						ArrayList[] types = new ArrayList[INVERSE_SURROGATE_NEIGHBOR+1];
+						for (int i=0; i<types.length; i++)
+							types[i] = new ArrayList();
+						links.put(r.UID, types);
+					}
+				}
+			}
+			try (PreparedStatement ps = conn.prepareStatement("SELECT `UID`, `Type`, `WebId`, `Height`, `Host`, `Port`, `Remote` FROM `SegmentLinks` WHERE `Segment`=?")){
+				ps.setString(1, dbname);
+				try (ResultSet rs = ps.executeQuery()){
+					while (rs.next()){
+						ArrayList<SegmentLog.Link>[] types = links.get(rs.getInt(1));
+						if (types == null)
+							continue;
+						SegmentLog.Link link = new SegmentLog.Link(rs.getInt(3), rs.getInt(4));
+						String host = rs.getString(5);
+						if (host != null){
+							try{
+								link.addr = new RemoteAddress(host, rs.getInt(6), rs.getInt(7));
+							} catch (Exception e){
+								throw new IOException(e);
+							}
+						}
+						types[rs.getInt(2)].add(link);
+					}
+				}
+			}
+			for (SegmentLog.Record r: replay.records.values()){
+				ArrayList<SegmentLog.Link>[] types = links.get(r.UID);
+				r.f = first(types[FOLD]);
+				r.sf = first(types[SURROGATE_FOLD]);
+				r.isf = first(types[INVERSE_SURROGATE_FOLD]);
+				r.n = types[NEIGHBOR].toArray(new SegmentLog.Link[0]);
+				r.sn = types[SURROGATE_NEIGHBOR].toArray(new SegmentLog.Link[0]);
+				r.isn = types[INVERSE_SURROGATE_NEIGHBOR].toArray(new SegmentLog.Link[0]);
+			}
+			segment = replay.apply(dbname);
+		}
+		return segment;
+	}
+	private static SegmentLog.Link first(ArrayList<SegmentLog.Link> links){
+		return links.isEmpty() ? null : links.get(0);
+	}
+}
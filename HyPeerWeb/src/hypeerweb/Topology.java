@@ -0,0 +1,302 @@
+package hypeerweb;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * The shape of a HyPeerWeb is fully determined by its webID's: a complete
+ * cube, plus any number of children in the next dimension. This computes
+ * the connections each webID should have, so many nodes can be linked at
+ * once, without walking the HyPeerWeb. All connections are returned as
+ * webID's (-1 if there is no connection)
+ */
+public class Topology {
+	private final BitSet ids;
+	//Number of nodes, dimension of the smallest enclosing cube,
+	//and number of nodes in the complete sub-cube
+	private int size, dimension, half;
+	private static final int[] none = new int[0];
+
+	/**
+	 * Create the topology for a HyPeerWeb with webID's 0 through size-1
+	 * @param size the number of nodes in the HyPeerWeb
+	 */
+	public Topology(int size){
+		assert(size >= 0);
+		ids = new BitSet(size);
+		ids.set(0, size);
+		this.size = size;
+		resize();
+	}
+	/**
+	 * Create the topology for a HyPeerWeb with these webID's
+	 * @param webIDs the webID of every node in the HyPeerWeb
+	 */
+	public Topology(Collection<Integer> webIDs){
+		ids = new BitSet();
+		for (int id: webIDs)
+			ids.set(id);
+		size = ids.cardinality();
+		resize();
+	}
+	private void resize(){
+		int max = ids.length()-1;
+		dimension = max <= 0 ? 0 : 32 - Integer.numberOfLeadingZeros(max);
+		half = dimension == 0 ? 0 : 1 << (dimension-1);
+	}
+
+	//NODES
+	/**
+	 * Is this a valid set of webID's? The lower sub-cube must be complete
+	 * @return true, if the webID's could form a HyPeerWeb
+	 */
+	public boolean isValid(){
+		return size == 0 || ids.nextClearBit(0) >= Math.max(half, 1);
+	}
+	/**
+	 * Does this HyPeerWeb contain the webID?
+	 * @param webID the webID to check
+	 * @return true, if there is a node with this webID
+	 */
+	public boolean contains(int webID){
+		return webID >= 0 && ids.get(webID);
+	}
+	/**
+	 * @return the number of nodes in the HyPeerWeb
+	 */
+	public int size(){
+		return size;
+	}
+	/**
+	 * @return one more than the largest webID in the HyPeerWeb
+	 */
+	public int getCapacity(){
+		return ids.length();
+	}
+	/**
+	 * @return all webID's in the HyPeerWeb, in ascending order
+	 */
+	public int[] getWebIDs(){
+		int[] found = new int[size];
+		for (int i=0, id=ids.nextSetBit(0); id != -1; id=ids.nextSetBit(id+1))
+			found[i++] = id;
+		return found;
+	}
+	/**
+	 * Gets the height of a node; nodes that have a child (and the children
+	 * themselves) are one higher than the rest
+	 * @param webID the node's webID
+	 * @return the node's height
+	 */
+	public int getHeight(int webID){
+		if (dimension == 0)
+			return 0;
+		return webID >= half || ids.get(webID | half) ? dimension : dimension-1;
+	}
+	/**
+	 * Gets the webID of the next node that would be added; nodes
+	 * are added below the lowest webID that doesn't have a child
+	 * @return the next webID
+	 */
+	public int getNextWebID(){
+		if (size == 0)
+			return 0;
+		int id = ids.nextClearBit(half);
+		//The cube is complete, start the next dimension
+		return id >= half*2 ? 1 << dimension : id;
+	}
+	/**
+	 * Gets the parent of the next node that would be added
+	 * @return the insertion point's webID; -1 if the HyPeerWeb is empty
+	 */
+	public int getInsertionPoint(){
+		if (size == 0)
+			return -1;
+		int id = getNextWebID();
+		return id ^ Integer.highestOneBit(id);
+	}
+	/**
+	 * Gets how many nodes can be added before an insertion point would get
+	 * a second child; each of these nodes has a different parent, all at the
+	 * lowest height, so they can be added at the same time
+	 * @return the number of nodes; at least one
+	 */
+	public int getInsertionSlots(){
+		if (size == 0)
+			return 1;
+		int id = getNextWebID();
+		return (Integer.highestOneBit(id) << 1) - id;
+	}
+	/**
+	 * Gets the node that would be disconnected by the next removal;
+	 * any node without a child can be removed, we use the highest one
+	 * @return the disconnect point's webID; -1 if the HyPeerWeb is empty
+	 */
+	public int getDisconnectPoint(){
+		return ids.length()-1;
+	}
+	/**
+	 * Adds a node to this topology
+	 * @param webID the node's webID
+	 */
+	public void add(int webID){
+		if (!ids.get(webID)){
+			ids.set(webID);
+			size++;
+			resize();
+		}
+	}
+	/**
+	 * Removes a node from this topology
+	 * @param webID the node's webID
+	 */
+	public void remove(int webID){
+		if (webID >= 0 && ids.get(webID)){
+			ids.clear(webID);
+			size--;
+			resize();
+		}
+	}
+	/**
+	 * Adds nodes to this topology, in the same order they would be added
+	 * one at a time (see getNextWebID)
+	 * @param count the number of nodes to add
+	 * @return the webID's of the new nodes
+	 */
+	public int[] grow(int count){
+		int[] added = new int[count];
+		//Children are filled in order, so we don't need to rescan the ones we've filled
+		for (int i=0, from=0; i<count; i++){
+			int id = 0;
+			if (size != 0){
+				id = ids.nextClearBit(Math.max(from, half));
+				if (id >= half*2)
+					id = 1 << dimension;
+			}
+			ids.set(id);
+			size++;
+			from = id+1;
+			//Only the dimension changes, when we start a new sub-cube
+			if (id != 0 && id >= half*2)
+				resize();
+			added[i] = id;
+		}
+		return added;
+	}
+	/**
+	 * Removes nodes from this topology, always taking the disconnect point
+	 * (see getDisconnectPoint)
+	 * @param count the number of nodes to remove
+	 * @return the webID's that were removed
+	 */
+	public int[] shrink(int count){
+		int[] removed = new int[Math.min(count, size)];
+		for (int i=0; i<removed.length; i++){
+			int id = getDisconnectPoint();
+			ids.clear(id);
+			size--;
+			//Removed the last child, so the dimension drops
+			if (id <= half)
+				resize();
+			removed[i] = id;
+		}
+		return removed;
+	}
+
+	//NEIGHBORS
+	/**
+	 * Gets a node's neighbors; every existing node that differs
+	 * by one bit (within the node's height) is a neighbor
+	 * @param webID the node's webID
+	 * @return a list of webID's
+	 */
+	public int[] getNeighbors(int webID){
+		int h = getHeight(webID), count = 0;
+		int[] found = new int[h];
+		for (int i=0; i<h; i++){
+			int id = webID ^ (1 << i);
+			if (ids.get(id))
+				found[count++] = id;
+		}
+		return trim(found, count);
+	}
+	/**
+	 * Gets a node's surrogate neighbors; these stand in for
+	 * missing neighbors (the parent of the missing neighbor)
+	 * @param webID the node's webID
+	 * @return a list of webID's
+	 */
+	public int[] getSurrogateNeighbors(int webID){
+		int h = getHeight(webID), count = 0;
+		int[] found = new int[h];
+		for (int i=0; i<h; i++){
+			int id = webID ^ (1 << i);
+			if (!ids.get(id))
+				found[count++] = id ^ half;
+		}
+		return trim(found, count);
+	}
+	/**
+	 * Gets a node's inverse surrogate neighbors; only childless
+	 * nodes (of the lower height) can have these
+	 * @param webID the node's webID
+	 * @return a list of webID's
+	 */
+	public int[] getInverseSurrogateNeighbors(int webID){
+		if (dimension == 0 || getHeight(webID) == dimension)
+			return none;
+		int child = webID | half, count = 0;
+		int[] found = new int[dimension-1];
+		for (int i=0; i<dimension-1; i++){
+			int id = child ^ (1 << i);
+			if (ids.get(id))
+				found[count++] = id;
+		}
+		return trim(found, count);
+	}
+
+	//FOLDS
+	/**
+	 * Gets a node's fold
+	 * @param webID the node's webID
+	 * @return the fold's webID, or -1 if it has none
+	 */
+	public int getFold(int webID){
+		if (dimension == 0)
+			return -1;
+		int h = getHeight(webID), comp = ~webID & ((1 << h)-1);
+		if (h == dimension)
+			return ids.get(comp) ? comp : -1;
+		//Lower nodes fold with their complement, or their complement's child
+		return getHeight(comp) == h ? comp : comp | half;
+	}
+	/**
+	 * Gets a node's surrogate fold; only nodes without a fold have one
+	 * @param webID the node's webID
+	 * @return the surrogate fold's webID, or -1 if it has none
+	 */
+	public int getSurrogateFold(int webID){
+		if (dimension == 0 || getFold(webID) != -1)
+			return -1;
+		return ~webID & (half-1);
+	}
+	/**
+	 * Gets a node's inverse surrogate fold
+	 * @param webID the node's webID
+	 * @return the inverse surrogate fold's webID, or -1 if it has none
+	 */
+	public int getInverseSurrogateFold(int webID){
+		if (dimension == 0 || getHeight(webID) == dimension)
+			return -1;
+		int comp = ~webID & (half-1);
+		return getHeight(comp) == dimension ? comp : -1;
+	}
+
+	private static int[] trim(int[] arr, int length){
+		if (arr.length == length)
+			return arr;
+		int[] trimmed = new int[length];
+		System.arraycopy(arr, 0, trimmed, 0, length);
+		return trimmed;
+	}
+}
@@ -0,0 +1,91 @@
+package hypeerweb.visitors;
+
+import communicator.NodeListener;
+import hypeerweb.Node;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Navigates to many nodes at once; at each hop, the targets are grouped by
+ * their next hop, and one visitor is forwarded along each link. Routes that
+ * share a prefix only traverse it once. Listener callback is guaranteed to
+ * run on the same machine the node is on
+ */
+public class MulticastVisitor extends AbstractVisitor{
+	//Targets we still need to reach, and an optional payload for each one
+	private final int[] targets;
+	private final Object[] payloads;
+
+	/**
+	 * Navigate to the specified nodes
+	 * @param targetWebIds the WebIDs of the nodes to navigate to
+	 * @param listener the command to execute on each target node; if a
+	 * target can't be found, this is executed with a null node
+	 */
+	public MulticastVisitor(int[] targetWebIds, NodeListener listener){
+		this(targetWebIds, null, listener);
+	}
+	/**
+	 * Navigate to the specified nodes, with a different payload for each
+	 * @param targetWebIds the WebIDs of the nodes to navigate to
+	 * @param payloads a Serializable value for each target; the callback receives
+	 * the target node and its payload (see NodeListener.callback(Node, Object))
+	 * @param listener the command to execute on each target node; if a
+	 * target can't be found, this is executed with a null node
+	 */
+	public MulticastVisitor(int[] targetWebIds, Object[] payloads, NodeListener listener){
+		super(listener);
+		assert(payloads == null || payloads.length == targetWebIds.length);
+		targets = targetWebIds;
+		this.payloads = payloads;
+	}
+
+	/**
+	 * Visit a node
+	 * @param n the node to visit
+	 */
+	@Override
+	public final void visit(Node n){
+		int id = n.getWebId();
+		//Group the remaining targets by their next hop
+		LinkedHashMap<Node, ArrayList<Integer>> hops = new LinkedHashMap();
+		for (int i=0; i<targets.length; i++){
+			//We found a match!
+			if (targets[i] == id)
+				deliver(n, i);
+			else{
+				Node next = n.getCloserNode(targets[i], false);
+				//Pass null, if we couldn't find the node
+				if (next == null)
+					deliver(null, i);
+				else{
+					ArrayList<Integer> group = hops.get(next);
+					if (group == null){
+						group = new ArrayList();
+						hops.put(next, group);
+					}
+					group.add(i);
+				}
+			}
+		}
+		//Forward one visitor along each link
+		for (Map.Entry<Node, ArrayList<Integer>> hop: hops.entrySet()){
+			ArrayList<Integer> group = hop.getValue();
+			int[] subTargets = new int[group.size()];
+			Object[] subPayloads = payloads == null ? null : new Object[group.size()];
+			for (int i=0; i<subTargets.length; i++){
+				int idx = group.get(i);
+				subTargets[i] = targets[idx];
+				if (payloads != null)
+					subPayloads[i] = payloads[idx];
+			}
+			hop.getKey().accept(new MulticastVisitor(subTargets, subPayloads, callback));
+		}
+	}
+	private void deliver(Node n, int idx){
+		if (payloads == null)
+			callback.callback(n);
+		else callback.callback(n, payloads[idx]);
+	}
+}
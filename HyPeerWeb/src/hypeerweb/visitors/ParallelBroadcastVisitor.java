@@ -0,0 +1,117 @@
+package hypeerweb.visitors;
+
+import communicator.Command;
+import communicator.NodeListener;
+import hypeerweb.Node;
+import hypeerweb.NodeProxy;
+import hypeerweb.SegmentProxy;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Broadcast Visitor that visits subtrees in parallel; local subtrees are
+ * split into fork-join tasks, and remote subtrees are sent concurrently.
+ * The listener callback is guaranteed to run on the same machine the node
+ * is on, but it may be running on many nodes at once. Once every node has
+ * been visited, the completion listener runs on the starting node
+ */
+public class ParallelBroadcastVisitor extends AbstractVisitor{
+	public static final String className = ParallelBroadcastVisitor.class.getName();
+	//Shared by all broadcasts on this machine
+	private static final ForkJoinPool pool = new ForkJoinPool();
+	private final NodeListener complete;
+
+	/**
+	 * Create a new parallel broadcast visitor
+	 * @param listener the visitor callback
+	 */
+	public ParallelBroadcastVisitor(NodeListener listener){
+		this(listener, null);
+	}
+	/**
+	 * Create a new parallel broadcast visitor
+	 * @param listener the visitor callback
+	 * @param complete executed once all nodes have been visited; it is
+	 *	passed the starting node and the number of nodes visited, as an
+	 *	Integer (see NodeListener.callback(Node, Object))
+	 */
+	public ParallelBroadcastVisitor(NodeListener listener, NodeListener complete){
+		super(listener);
+		this.complete = complete;
+	}
+
+	/**
+	 * Visit a node; this blocks until the entire broadcast has finished
+	 * @param n a node to begin broadcasting from
+	 */
+	@Override
+	public final void visit(Node n){
+		Integer count = run(new Subtree(n, -2));
+		if (complete != null)
+			complete.callback(n, count);
+	}
+	private int run(Subtree task){
+		//Nested broadcasts (e.g. from within a callback) join the current pool
+		return ForkJoinTask.inForkJoinPool() ? task.invoke() : pool.invoke(task);
+	}
+	/**
+	 * Broadcasts to a subtree on this machine, for a remote visitor
+	 * @param n the root of the subtree
+	 * @param v the visitor
+	 * @param blacklist the webID of a tree child we shouldn't broadcast to (-1
+	 *	if there is none); unless this is -1, we continue up to the tree parent
+	 * @return the number of nodes visited
+	 */
+	protected static int _visitSubtree(Node n, ParallelBroadcastVisitor v, int blacklist){
+		return v.run(v.new Subtree(n, blacklist));
+	}
+
+	/**
+	 * Visits a node, then all of its tree children in parallel
+	 */
+	private class Subtree extends RecursiveTask<Integer>{
+		private final Node node;
+		private final int blacklist;
+
+		public Subtree(Node node, int blacklist){
+			this.node = node;
+			this.blacklist = blacklist;
+		}
+
+		@Override
+		protected Integer compute(){
+			//Remote subtrees are visited by the machine that has them; we wait
+			//for the results, so the visited count includes the whole subtree
+			if (node instanceof NodeProxy || node instanceof SegmentProxy){
+				Command command = new Command(
+					className, "_visitSubtree",
+					new String[]{Node.className, className, "int"},
+					new Object[]{node, ParallelBroadcastVisitor.this, blacklist}
+				);
+				Object count = RemoteRequest.send(node, command);
+				return count instanceof Integer ? (Integer) count : 0;
+			}
+			//Listeners store their parameters, so each thread needs its own copy
+			callback.clone().callback(node);
+			ArrayList<Subtree> tasks = new ArrayList();
+			for (Node child : node.getTreeChildren()){
+				if (child.getWebId() != blacklist)
+					tasks.add(new Subtree(child, -1));
+			}
+			//Broadcast to parent, if necessary; put this node in the
+			//parent's blacklist, so we don't broadcast to it again
+			if (blacklist != -1){
+				Node parent = node.getTreeParent();
+				if (parent != null)
+					tasks.add(new Subtree(parent, node.getWebId()));
+			}
+			invokeAll(tasks);
+			int count = 1;
+			for (Subtree task : tasks)
+				count += task.join();
+			return count;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package hypeerweb.visitors;
+
+import communicator.Command;
+import communicator.NodeListener;
+import hypeerweb.Node;
+import hypeerweb.NodeProxy;
+import hypeerweb.SegmentProxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reduce (convergecast) Visitor; computes a value for every node and combines
+ * them up the broadcast tree, so a single value arrives back at the starting node.
+ * Each tree edge carries one request and one response; subtrees are reduced
+ * in parallel, like the ParallelBroadcastVisitor.
+ *
+ * The map command is a static method that takes the node (prepended to its
+ * parameters) and returns a Serializable value; the combine command is a static
+ * method that takes two values (also prepended) and returns their combination.
+ * Null values are skipped. The listener is called on the starting node with the
+ * final value (see NodeListener.callback(Node, Object))
+ */
+public class ReduceVisitor extends AbstractVisitor{
+	public static final String className = ReduceVisitor.class.getName();
+	private static final ForkJoinPool pool = new ForkJoinPool();
+	private final Command map, combine;
+
+	/**
+	 * Create a new reduce visitor
+	 * @param map computes a node's value
+	 * @param combine combines two values
+	 * @param listener receives the final value
+	 */
+	public ReduceVisitor(Command map, Command combine, NodeListener listener){
+		super(listener);
+		this.map = map;
+		this.combine = combine;
+	}
+
+	//COMMON REDUCTIONS
+	/**
+	 * Counts the nodes in the HyPeerWeb
+	 * @param listener receives an Integer
+	 * @return the visitor
+	 */
+	public static ReduceVisitor count(NodeListener listener){
+		return new ReduceVisitor(
+			new Command(className, "_one"),
+			new Command(className, "_add"),
+			listener
+		);
+	}
+	/**
+	 * Sums a numeric attribute of every node
+	 * @param key the attribute name (see Node.getData)
+	 * @param listener receives a Number, or null if no node has this attribute
+	 * @return the visitor
+	 */
+	public static ReduceVisitor sum(String key, NodeListener listener){
+		return new ReduceVisitor(
+			new Command(className, "_attribute", new String[]{"java.lang.String"}, new Object[]{key}),
+			new Command(className, "_add"),
+			listener
+		);
+	}
+	/**
+	 * Counts how many nodes have each value of an attribute
+	 * @param key the attribute name (see Node.getData)
+	 * @param listener receives a HashMap, from attribute value to count
+	 * @return the visitor
+	 */
+	public static ReduceVisitor histogram(String key, NodeListener listener){
+		return new ReduceVisitor(
+			new Command(className, "_histogram", new String[]{"java.lang.String"}, new Object[]{key}),
+			new Command(className, "_merge"),
+			listener
+		);
+	}
+	/**
+	 * Finds the largest values of an attribute
+	 * @param key the attribute name (see Node.getData); values must be Comparable
+	 * @param k how many values to keep
+	 * @param listener receives an ArrayList of at most k values, largest first
+	 * @return the visitor
+	 */
+	public static ReduceVisitor top(String key, int k, NodeListener listener){
+		return new ReduceVisitor(
+			new Command(className, "_top", new String[]{"java.lang.String"}, new Object[]{key}),
+			new Command(className, "_top", new String[]{"int"}, new Object[]{k}),
+			listener
+		);
+	}
+	protected static Object _one(Node n){
+		return 1;
+	}
+	protected static Object _attribute(Node n, String key){
+		return n.getData(key);
+	}
+	protected static Object _add(Object a, Object b){
+		Number x = (Number) a, y = (Number) b;
+		if (x instanceof Double || y instanceof Double || x instanceof Float || y instanceof Float)
+			return x.doubleValue() + y.doubleValue();
+		if (x instanceof Long || y instanceof Long)
+			return x.longValue() + y.longValue();
+		return x.intValue() + y.intValue();
+	}
+	protected static Object _histogram(Node n, String key){
+		HashMap<Object, Integer> counts = new HashMap();
+		counts.put(n.getData(key), 1);
+		return counts;
+	}
+	protected static Object _merge(Object a, Object b){
+		HashMap<Object, Integer> x = (HashMap) a, y = (HashMap) b;
+		for (Map.Entry<Object, Integer> entry: y.entrySet()){
+			Integer count = x.get(entry.getKey());
+			x.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+		}
+		return x;
+	}
+	protected static Object _top(Node n, String key){
+		Object val = n.getData(key);
+		if (val == null)
+			return null;
+		ArrayList<Comparable> top = new ArrayList();
+		top.add((Comparable) val);
+		return top;
+	}
+	protected static Object _top(Object a, Object b, int k){
+		ArrayList<Comparable> top = (ArrayList) a;
+		top.addAll((ArrayList) b);
+		Collections.sort(top, Collections.reverseOrder());
+		while (top.size() > k)
+			top.remove(top.size()-1);
+		return top;
+	}
+
+	//TRAVERSAL
+	/**
+	 * Visit a node; this blocks until the entire reduction has finished
+	 * @param n a node to begin reducing from; this gets the final value
+	 */
+	@Override
+	public final void visit(Node n){
+		Object result = run(new Subtree(n, -2));
+		callback.callback(n, result);
+	}
+	private Object run(Subtree task){
+		return ForkJoinTask.inForkJoinPool() ? task.invoke() : pool.invoke(task);
+	}
+	/**
+	 * Reduces a subtree on this machine, for a remote visitor
+	 * @param n the root of the subtree
+	 * @param v the visitor
+	 * @param blacklist the webID of a tree child we shouldn't visit (-1
+	 *	if there is none); unless this is -1, we continue up to the tree parent
+	 * @return the subtree's combined value
+	 */
+	protected static Object _reduceSubtree(Node n, ReduceVisitor v, int blacklist){
+		return v.run(v.new Subtree(n, blacklist));
+	}
+	private static Object execute(Command cmd){
+		Object result = cmd.execute(false);
+		//Command returns the exception if it failed (and prints the error)
+		return result instanceof Exception ? null : result;
+	}
+
+	/**
+	 * Reduces a node, then combines the results of its tree children
+	 */
+	private class Subtree extends RecursiveTask<Object>{
+		private final Node node;
+		private final int blacklist;
+
+		public Subtree(Node node, int blacklist){
+			this.node = node;
+			this.blacklist = blacklist;
+		}
+
+		@Override
+		protected Object compute(){
+			//Remote subtrees are reduced by the machine that has them, in
+			//the map command's lane (this runs on a pool thread, so the
+			//priority can't be inherited from the command that started it)
+			if (node instanceof NodeProxy || node instanceof SegmentProxy){
+				return RemoteRequest.send(node, new Command(
+					className, "_reduceSubtree",
+					new String[]{Node.className, className, "int"},
+					new Object[]{node, ReduceVisitor.this, blacklist}
+				).setPriority(map.getPriority()));
+			}
+			ArrayList<Subtree> tasks = new ArrayList();
+			for (Node child : node.getTreeChildren()){
+				if (child.getWebId() != blacklist)
+					tasks.add(new Subtree(child, -1));
+			}
+			//The starting node isn't necessarily the root, so
+			//the tree parent's side is reduced as another child
+			if (blacklist != -1){
+				Node parent = node.getTreeParent();
+				if (parent != null)
+					tasks.add(new Subtree(parent, node.getWebId()));
+			}
+			invokeAll(tasks);
+			//Commands store their parameters, so each thread needs its own copy
+			Command m = map.clone();
+			m.prependParameter(Node.className, node);
+			Object value = execute(m);
+			for (Subtree task : tasks){
+				Object other = task.join();
+				if (other == null)
+					continue;
+				if (value == null)
+					value = other;
+				else{
+					Command c = combine.clone();
+					c.prependParameter("java.lang.Object", other);
+					c.prependParameter("java.lang.Object", value);
+					value = execute(c);
+				}
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package hypeerweb.visitors;
+
+import communicator.Command;
+import communicator.Communicator;
+import hypeerweb.Node;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A synchronous request, sent from a fork-join thread; the pool is allowed
+ * to add a thread while we wait, since the remote side may need this
+ * machine's pool to finish (e.g. a subtree that loops back to this machine)
+ */
+class RemoteRequest implements ForkJoinPool.ManagedBlocker{
+	private final Node node;
+	private final Command command;
+	private Object result;
+	private boolean done = false;
+
+	private RemoteRequest(Node node, Command command){
+		this.node = node;
+		this.command = command;
+	}
+	/**
+	 * Send a synchronous request to the machine a node is on
+	 * @param node the remote node
+	 * @param command the command to execute
+	 * @return the result of the command
+	 */
+	public static Object send(Node node, Command command){
+		RemoteRequest request = new RemoteRequest(node, command);
+		try{
+			ForkJoinPool.managedBlock(request);
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		return request.result;
+	}
+	@Override
+	public boolean block(){
+		result = Communicator.request(node.getAddress(), command, true);
+		done = true;
+		return true;
+	}
+	@Override
+	public boolean isReleasable(){
+		return done;
+	}
+}
@@ -5,10 +5,22 @@
 package hypeerweb;
 
 //blah
+import communicator.NodeListener;
+import hypeerweb.visitors.MulticastVisitor;
+import hypeerweb.visitors.ParallelBroadcastVisitor;
+import hypeerweb.visitors.ReduceVisitor;
 import hypeerweb.visitors.SendVisitor;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -116,6 +128,786 @@ public class HyPeerWebTest {
 		begin("ADDING");
 	}
 	
+	/**
+	 * Test of addNodes method (building and extending a HyPeerWeb in bulk)
+	 */
+	@Test
+	public void testAddBulk() throws Exception {
+		curTest = "ADDING BULK";
+		System.out.println("BEGIN:\t"+curTest);
+		final Segment bulk = new Segment(DB_NAME, RAND_SEED);
+		//Start with a few nodes added the normal way
+		for (int i=0; i<3; i++)
+			bulk.addNode(new Node(0, 0), new SyncListener());
+		int size = 3;
+		for (int count = 1; size + count <= MAX_SIZE; count += 7){
+			size += count;
+			final int final_size = size;
+			bulk.addNodes(count, new SyncListener(){
+				@Override
+				public void callback(Node n){
+					assertNotNull(n);
+					assertEquals(final_size, bulk.getSegmentSize());
+					assertTrue((new Validator(bulk.getCache())).validate());
+				}
+			});
+		}
+		//Normal adds should still work afterwards
+		bulk.addNode(new Node(0, 0), new SyncListener());
+		assertTrue((new Validator(bulk.getCache())).validate());
+	}
+
+	/**
+	 * Test of addNodes method (pre-initialized nodes, under distinct parents)
+	 */
+	@Test
+	public void testAddRounds() throws Exception {
+		curTest = "ADDING ROUNDS";
+		System.out.println("BEGIN:\t"+curTest);
+		final Segment rounds = new Segment(DB_NAME, RAND_SEED);
+		int size = 0;
+		for (int count = 1; size + count <= MAX_SIZE; count += 11){
+			Node[] added = new Node[count];
+			for (int i=0; i<count; i++)
+				added[i] = new Node(0, 0);
+			size += count;
+			rounds.addNodes(added, new SyncListener());
+			assertEquals(size, rounds.getSegmentSize());
+			assertTrue((new Validator(rounds.getCache())).validate());
+		}
+		//Normal adds and removes should still work afterwards
+		rounds.addNode(new Node(0, 0), new SyncListener());
+		rounds.removeNode(0, new SyncListener());
+		assertTrue((new Validator(rounds.getCache())).validate());
+	}
+
+	/**
+	 * Test of removeNodes and truncate methods
+	 */
+	@Test
+	public void testRemoveBulk() throws Exception {
+		curTest = "REMOVING BULK";
+		System.out.println("BEGIN:\t"+curTest);
+		final Segment bulk = new Segment(DB_NAME, RAND_SEED);
+		bulk.addNodes(MAX_SIZE, new SyncListener());
+		Random r = new Random(RAND_SEED);
+		int size = MAX_SIZE;
+		while (size > 0){
+			//Alternate between removing random webID's and truncating
+			int count = Math.min(size, r.nextInt(40)+1);
+			if (size % 2 == 0){
+				Object[] ids = bulk.nodes.keySet().toArray();
+				int[] remove = new int[count];
+				for (int i=0; i<count; i++)
+					remove[i] = (Integer) ids[i*size/count];
+				bulk.removeNodes(remove, new SyncListener());
+			}
+			else bulk.truncate(size-count, new SyncListener());
+			size -= count;
+			assertEquals(size, bulk.getSegmentSize());
+			if (size > 0)
+				assertTrue((new Validator(bulk.getCache())).validate());
+		}
+		assertTrue(bulk.isEmpty());
+	}
+
+	/**
+	 * Test of the commit log; many threads add and remove nodes at once
+	 */
+	@Test
+	public void testConcurrentCommits() throws Exception {
+		curTest = "CONCURRENT COMMITS";
+		System.out.println("BEGIN:\t"+curTest);
+		final Segment log = new Segment(DB_NAME, RAND_SEED);
+		log.addNodes(100, new SyncListener());
+		final int threads = 4, ops = 50;
+		final CountDownLatch done = new CountDownLatch(threads*ops*2);
+		final SyncListener count = new SyncListener(){
+			@Override
+			public void callback(Node n){
+				done.countDown();
+			}
+			@Override
+			public void callback(Node n, Node n2, int id){
+				done.countDown();
+			}
+		};
+		Thread[] workers = new Thread[threads];
+		for (int t=0; t<threads; t++){
+			//Node UID's are assigned on this thread
+			final Node[] added = new Node[ops];
+			for (int i=0; i<ops; i++)
+				added[i] = new Node(0, 0);
+			workers[t] = new Thread(){
+				@Override
+				public void run(){
+					for (Node n: added){
+						log.addNode(n, count);
+						log.removeNode(0, count);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread w: workers)
+			w.join();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(100, log.getSegmentSize());
+		assertTrue((new Validator(log.getCache())).validate());
+	}
+	
+	/**
+	 * Test of the edge lock; two segments add and remove nodes at once
+	 */
+	@Test
+	public void testConcurrentSegments() throws Exception {
+		curTest = "CONCURRENT SEGMENTS";
+		System.out.println("BEGIN:\t"+curTest);
+		final Segment a = new Segment(DB_NAME, RAND_SEED), b = new Segment(DB_NAME, RAND_SEED);
+		a.addNodes(100, new SyncListener());
+		a.addSegment(b, new SyncListener());
+		a.migrateNodes(b, 50, new SyncListener());
+		final int threads = 4, ops = 50;
+		final CountDownLatch done = new CountDownLatch(threads*ops*2);
+		final SyncListener count = new SyncListener(){
+			@Override
+			public void callback(Node n){
+				done.countDown();
+			}
+			@Override
+			public void callback(Node n, Node n2, int id){
+				done.countDown();
+			}
+		};
+		Thread[] workers = new Thread[threads];
+		for (int t=0; t<threads; t++){
+			final Segment seg = t % 2 == 0 ? a : b;
+			//Node UID's are assigned on this thread
+			final Node[] added = new Node[ops];
+			for (int i=0; i<ops; i++)
+				added[i] = new Node(0, 0);
+			workers[t] = new Thread(){
+				@Override
+				public void run(){
+					for (Node n: added){
+						seg.addNode(n, count);
+						seg.removeNode(1, count);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread w: workers)
+			w.join();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(100, a.getSegmentSize()+b.getSegmentSize());
+		SegmentCache both = new SegmentCache();
+		both.merge(a.getCache());
+		both.merge(b.getCache());
+		assertTrue((new Validator(both)).validate());
+	}
+	
+	/**
+	 * Test of the insertion/disconnect tracker on a segment that only has
+	 * some of the nodes; it is exact while the segment holds the edge lock
+	 */
+	@Test
+	public void testTrackerExact() throws Exception {
+		curTest = "TRACKER EXACT";
+		System.out.println("BEGIN:\t"+curTest);
+		final Segment a = new Segment(DB_NAME, RAND_SEED), b = new Segment(DB_NAME, RAND_SEED);
+		a.addNodes(100, new SyncListener());
+		a.addSegment(b, new SyncListener());
+		a.migrateNodes(b, 40, new SyncListener());
+		assertFalse(b.isTrackerExact());
+		final int[] exact = {0}, size = {100};
+		SyncListener check = new SyncListener(){
+			@Override
+			public void callback(Node n){
+				//Listeners run before the lock is released
+				if (b.isTrackerExact() && n.getWebId() == size[0]++)
+					exact[0]++;
+			}
+			@Override
+			public void callback(Node n, Node n2, int id){
+				if (b.isTrackerExact() && id == --size[0])
+					exact[0]++;
+			}
+		};
+		for (int i=0; i<20; i++)
+			b.addNode(new Node(0, 0), check);
+		b.addNodes(30, new SyncListener());
+		size[0] += 30;
+		for (int i=0; i<20; i++){
+			b.addNode(new Node(0, 0), check);
+			b.removeNode(i*3, check);
+		}
+		assertEquals(60, exact[0]);
+		assertFalse(b.isTrackerExact());
+		assertEquals(150, a.getSegmentSize()+b.getSegmentSize());
+		SegmentCache both = new SegmentCache();
+		both.merge(a.getCache());
+		both.merge(b.getCache());
+		assertTrue((new Validator(both)).validate());
+	}
+	
+	/**
+	 * Test of the commit log; a node is removed right after it is added,
+	 * while another add is still running, so the two are queued together
+	 */
+	@Test
+	public void testAddThenRemove() throws Exception {
+		curTest = "ADD THEN REMOVE";
+		System.out.println("BEGIN:\t"+curTest);
+		final Segment log = new Segment(DB_NAME, RAND_SEED);
+		log.addNodes(10, new SyncListener());
+		final Node added = new Node(0, 0);
+		log.addNode(new Node(0, 0), new SyncListener(){
+			@Override
+			public void callback(Node n){
+				log.addNode(added, new SyncListener());
+				log.removeNode(added, new SyncListener());
+			}
+		});
+		assertEquals(11, log.getSegmentSize());
+		assertNull(log.nodesByUID.get(added.UID));
+		assertTrue((new Validator(log.getCache())).validate());
+	}
+	
+	/**
+	 * Test of the commit log; an operation that fails because the web is
+	 * corrupt still finishes, so the operations after it can run
+	 */
+	@Test
+	public void testCorruptCommit() throws Exception {
+		curTest = "CORRUPT COMMIT";
+		System.out.println("BEGIN:\t"+curTest);
+		final Segment log = new Segment(DB_NAME, RAND_SEED);
+		log.addNodes(10, new SyncListener());
+		final ArrayList<Node> results = new ArrayList();
+		SyncListener record = new SyncListener(){
+			@Override
+			public void callback(Node n){
+				results.add(n);
+			}
+			@Override
+			public void callback(Node n, Node n2, int id){
+				results.add(n);
+			}
+		};
+		log.state = Segment.HyPeerWebState.CORRUPT;
+		log.addNode(new Node(0, 0), record);
+		log.removeNode(3, record);
+		assertEquals(Arrays.asList(null, null), results);
+		log.state = Segment.HyPeerWebState.HAS_MANY;
+		log.addNode(new Node(0, 0), record);
+		log.removeNode(3, record);
+		assertEquals(4, results.size());
+		assertNotNull(results.get(2));
+		assertNotNull(results.get(3));
+		assertEquals(10, log.getSegmentSize());
+		assertTrue((new Validator(log.getCache())).validate());
+	}
+	
+	/**
+	 * Test of migrateNodes and rebalance; nodes move between two segments
+	 */
+	@Test
+	public void testMigrate() throws Exception {
+		curTest = "MIGRATING";
+		System.out.println("BEGIN:\t"+curTest);
+		Segment from = new Segment(DB_NAME, RAND_SEED), to = new Segment(DB_NAME, RAND_SEED);
+		from.addNodes(MAX_SIZE, new SyncListener());
+		from.addSegment(to, new SyncListener());
+		from.migrateNodes(to, MAX_SIZE/4, new SyncListener());
+		assertEquals(MAX_SIZE/4, to.getSegmentSize());
+		assertEquals(MAX_SIZE, from.getSegmentSize()+to.getSegmentSize());
+		SegmentCache both = new SegmentCache(), snapshot = from.getCache();
+		both.merge(snapshot);
+		both.merge(to.getCache());
+		assertTrue((new Validator(both)).validate());
+		//Merging copies the nodes; the segment's snapshot is left as it was
+		for (NodeCache n: snapshot.nodes.values())
+			assertSame(snapshot, n.parent);
+		assertEquals(from.getSegmentSize(), snapshot.nodes.size());
+		//Without any requests, both segments should end up with about half the nodes
+		for (int i=0; i<MAX_SIZE/64; i++)
+			from.rebalance(new SyncListener());
+		assertEquals(MAX_SIZE, from.getSegmentSize()+to.getSegmentSize());
+		assertTrue(from.getSegmentSize() <= to.getSegmentSize()*1.25);
+		both = new SegmentCache();
+		both.merge(from.getCache());
+		both.merge(to.getCache());
+		assertTrue((new Validator(both)).validate());
+	}
+	
+	/**
+	 * Test of SegmentLog; a segment is rebuilt from its checkpoints and log
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		curTest = "RECOVERING";
+		System.out.println("BEGIN:\t"+curTest);
+		File dir = Files.createTempDirectory("segment").toFile();
+		String db = new File(dir, "segment.db").getPath();
+		Segment saved = Segment.newSegment(db, RAND_SEED);
+		//A base checkpoint, a delta, then changes that are only in the log
+		saved.addNodes(MAX_SIZE/2, new SyncListener());
+		SegmentDB.save(saved);
+		saved.addNodes(MAX_SIZE/4, new SyncListener());
+		saved.log.checkpoint(false);
+		saved.addNodes(MAX_SIZE/4, new SyncListener());
+		for (int i=0; i<MAX_SIZE/10; i++)
+			saved.removeNode(saved.getLastSegmentNode().getWebId(), new SyncListener());
+		((Node) saved.nodes.get(0)).setData("recovered", true);
+		//Crash without checkpointing again
+		SegmentDB.sync(saved);
+		saved.log.close();
+		Segment.segmentList.remove(saved);
+		Segment loaded = SegmentDB.load(db);
+		assertEquals(saved.getSegmentSize(), loaded.getSegmentSize());
+		assertEquals(saved.nodes.keySet(), loaded.nodes.keySet());
+		//Remote references must still be valid after a restart
+		assertEquals(saved.UID, loaded.UID);
+		for (Object id: saved.nodes.keySet())
+			assertEquals(((Node) saved.nodes.get(id)).UID, ((Node) loaded.nodes.get(id)).UID);
+		assertEquals(true, ((Node) loaded.nodes.get(0)).getData("recovered"));
+		assertTrue((new Validator(loaded.getCache())).validate());
+		loaded.log.close();
+		Segment.segmentList.remove(loaded);
+		for (File f: dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+	
+	/**
+	 * Test of the key-value store; keys must follow their owners as nodes
+	 * are added and removed, one at a time and in bulk
+	 */
+	@Test
+	public void testKeyValueStore() throws Exception {
+		curTest = "KEY-VALUE STORE";
+		System.out.println("BEGIN:\t"+curTest);
+		Segment kv = new Segment(DB_NAME, RAND_SEED);
+		kv.addNode(new Node(0, 0), new SyncListener());
+		final HashMap<String, Object> found = new HashMap();
+		NodeListener results = new NodeListener(null, null){
+			@Override
+			public void callback(Node n, Object result){
+				found.putAll((HashMap) result);
+			}
+		};
+		HashMap<String, Object> entries = new HashMap();
+		String[] keys = new String[MAX_SIZE];
+		for (int i=0; i<MAX_SIZE; i++){
+			keys[i] = "key"+i;
+			entries.put(keys[i], i);
+		}
+		kv.putAll(entries, null);
+		Random r = new Random(RAND_SEED);
+		for (int round=0; round<4; round++){
+			for (int i=0; i<MAX_SIZE/10; i++)
+				kv.addNode(new Node(0, 0), new SyncListener());
+			for (int i=0; i<MAX_SIZE/20; i++)
+				kv.removeNode(r.nextInt(kv.getSegmentSize()), new SyncListener());
+		}
+		kv.addNodes(MAX_SIZE/2, new SyncListener());
+		kv.truncate(MAX_SIZE/3, new SyncListener());
+		kv.getAll(keys, results);
+		assertEquals(entries, found);
+		//Every key is stored on the node that owns it
+		for (Object o: kv.nodes.values()){
+			Node n = (Node) o;
+			for (String key: keys){
+				if (n.getData(Segment.KEY_PREFIX+key) != null)
+					assertTrue(Segment.ownsKey(n.getWebId(), n.getHeight(), Segment.hashKey(key)));
+			}
+		}
+		found.clear();
+		kv.deleteAll(keys, null);
+		kv.getAll(keys, results);
+		for (Object value: found.values())
+			assertNull(value);
+	}
+	
+	/**
+	 * Test of key routing while the web changes size; keys that run out of
+	 * guesses are rerouted, and keys that can't be routed are reported as failed
+	 */
+	@Test
+	public void testKeyRerouting() throws Exception {
+		curTest = "KEY REROUTING";
+		System.out.println("BEGIN:\t"+curTest);
+		Segment kv = new Segment(DB_NAME, RAND_SEED);
+		kv.addNodes(MAX_SIZE, new SyncListener());
+		final HashMap<String, Object> found = new HashMap();
+		final int[] finished = {0};
+		NodeListener done = new NodeListener(null, null){
+			@Override
+			public void callback(Node n, Object result){
+				Object[] r = (Object[]) result;
+				found.putAll((HashMap) r[0]);
+				finished[0] += (Integer) r[1];
+			}
+		};
+		String[] keys = new String[MAX_SIZE];
+		Object[] values = new Object[MAX_SIZE];
+		HashMap<String, Object> entries = new HashMap();
+		for (int i=0; i<MAX_SIZE; i++){
+			keys[i] = "key"+i;
+			values[i] = i;
+			entries.put(keys[i], i);
+		}
+		Node start = (Node) kv.nodes.get(0);
+		//The keys were on their way to a webID that is gone, and are out of guesses
+		Segment._routeKeys(start, Segment.KEY_PUT, keys, values, MAX_SIZE*4, 0, 0, done);
+		assertEquals(MAX_SIZE, finished[0]);
+		for (String key: keys)
+			assertNull(found.get(key));
+		found.clear();
+		kv.getAll(keys, new NodeListener(null, null){
+			@Override
+			public void callback(Node n, Object result){
+				found.putAll((HashMap) result);
+			}
+		});
+		assertEquals(entries, found);
+		//Keys that are still bouncing around are failed, not dropped
+		found.clear();
+		finished[0] = 0;
+		Segment._routeKeys(start, Segment.KEY_DELETE, keys, null, MAX_SIZE*4, 0, Segment.KEY_ROUNDS, done);
+		assertEquals(MAX_SIZE, finished[0]);
+		for (String key: keys){
+			if (!Segment.ownsKey(start.getWebId(), start.getHeight(), Segment.hashKey(key)))
+				assertEquals(Segment.KeyResult.FAILED, found.get(key));
+		}
+	}
+	
+	/**
+	 * Test of attribute queries, across two segments
+	 */
+	@Test
+	public void testQuery() throws Exception {
+		curTest = "QUERYING";
+		System.out.println("BEGIN:\t"+curTest);
+		Segment from = new Segment(DB_NAME, RAND_SEED), to = new Segment(DB_NAME, RAND_SEED);
+		from.addNodes(MAX_SIZE, new SyncListener());
+		from.addSegment(to, new SyncListener());
+		from.migrateNodes(to, MAX_SIZE/3, new SyncListener());
+		for (Segment seg: new Segment[]{from, to}){
+			for (Object o: seg.nodes.values()){
+				Node n = (Node) o;
+				n.setData("id", n.getWebId());
+				if (n.getWebId() % 2 == 0)
+					n.setData("even", true);
+			}
+		}
+		final ArrayList<Query.Result> found = new ArrayList();
+		final int[] finished = {0};
+		NodeListener results = new NodeListener(null, null){
+			@Override
+			public void callback(Node n, Object batch){
+				if (batch == null)
+					finished[0]++;
+				else found.addAll((ArrayList) batch);
+			}
+		};
+		from.query(new Query()
+			.where("id", Query.Op.LESS, MAX_SIZE/2)
+			.where("even", Query.Op.EXISTS, null)
+			.select("id").batchSize(7), results);
+		assertEquals(1, finished[0]);
+		assertEquals(MAX_SIZE/4, found.size());
+		for (Query.Result r: found){
+			assertEquals(r.webID, r.attributes.get("id"));
+			assertTrue(r.webID < MAX_SIZE/2 && r.webID % 2 == 0);
+		}
+		//Segments stop once the limit is reached
+		found.clear();
+		to.query(new Query().where("id", Query.Op.GREATER_EQUAL, 0).limit(10).batchSize(4), results);
+		assertEquals(2, finished[0]);
+		assertEquals(10, found.size());
+		//Values stored by key aren't sent back as attributes
+		HashMap<String, Object> stored = new HashMap();
+		for (int i=0; i<MAX_SIZE; i++)
+			stored.put("q"+i, i);
+		from.putAll(stored, null);
+		found.clear();
+		from.query(new Query().where("id", Query.Op.GREATER_EQUAL, 0), results);
+		assertEquals(MAX_SIZE, found.size());
+		for (Query.Result r: found){
+			for (String name: r.attributes.keySet())
+				assertFalse(name.startsWith(Segment.KEY_PREFIX));
+		}
+	}
+	
+	/**
+	 * Test of routing; the routing table must find links as close as
+	 * scoring every link does, and routes must reach the same targets
+	 */
+	@Test
+	public void testCloserNode() throws Exception {
+		curTest = "CLOSER NODE";
+		System.out.println("BEGIN:\t"+curTest);
+		Random r = new Random(RAND_SEED);
+		for (int size: new int[]{37, MAX_SIZE/2}){
+			Segment seg = new Segment(null, RAND_SEED);
+			seg.addNodes(size, new SyncListener());
+			assertTrue((new Validator(seg.getCache())).validate());
+			Node[] nodes = (Node[]) seg.nodes.values().toArray(new Node[size]);
+			for (int i=0; i<SEND_TESTS*10; i++){
+				Node from = nodes[r.nextInt(size)];
+				//Include webID's that don't exist
+				int target = r.nextInt(size*2);
+				for (boolean mustBeCloser: new boolean[]{true, false}){
+					Node table = from.getCloserNode(target, mustBeCloser),
+						scan = from.scanCloserNode(target, mustBeCloser);
+					assertEquals(scan == null, table == null);
+					if (table != null)
+						assertEquals(score(scan, target), score(table, target));
+				}
+				//Follow both routes to the end
+				Node a = from, b = from, next;
+				for (int hops=0; (next = a.getCloserNode(target, false)) != null; hops++){
+					assertTrue(hops < size);
+					a = next;
+				}
+				for (int hops=0; (next = b.scanCloserNode(target, false)) != null; hops++){
+					assertTrue(hops < size);
+					b = next;
+				}
+				assertEquals(target < size, a.getWebId() == target);
+				assertEquals(score(b, target), score(a, target));
+			}
+		}
+	}
+	private static int score(Node n, int target){
+		return Integer.bitCount(~(n.getWebId() ^ target));
+	}
+	
+	/**
+	 * Test of LOCALITY placement; new nodes are created on their parent's
+	 * segment, so fewer links cross segments than with LOCAL placement
+	 */
+	@Test
+	public void testLocalityPlacement() throws Exception {
+		curTest = "LOCALITY PLACEMENT";
+		System.out.println("BEGIN:\t"+curTest);
+		double local = placeNodes(Segment.PlacementPolicy.LOCAL),
+			locality = placeNodes(Segment.PlacementPolicy.LOCALITY);
+		assertTrue(locality < local);
+	}
+	/**
+	 * Adds nodes from three segments in turn, with a placement policy
+	 * @param placement the policy
+	 * @return the segments' average proxy ratio (see Segment.getProxyRatio)
+	 */
+	private double placeNodes(Segment.PlacementPolicy placement) throws Exception{
+		Segment[] segs = {new Segment(null, RAND_SEED), new Segment(null, RAND_SEED), new Segment(null, RAND_SEED)};
+		segs[0].addNodes(30, new SyncListener());
+		for (int i=1; i<segs.length; i++){
+			segs[0].addSegment(segs[i], new SyncListener());
+			segs[0].migrateNodes(segs[i], 10, new SyncListener());
+		}
+		for (Segment seg: segs)
+			seg.placement = placement;
+		for (int i=0; i<MAX_SIZE/2; i++)
+			segs[i % segs.length].addNode(new Node(0, 0), new SyncListener());
+		SegmentCache all = new SegmentCache();
+		double ratio = 0;
+		int size = 0;
+		for (Segment seg: segs){
+			all.merge(seg.getCache());
+			ratio += seg.getProxyRatio();
+			size += seg.getSegmentSize();
+		}
+		assertEquals(30+MAX_SIZE/2, size);
+		assertTrue((new Validator(all)).validate());
+		return ratio/segs.length;
+	}
+	
+	/**
+	 * Test of the parallel broadcast; every node, on every segment, is visited once
+	 */
+	@Test
+	public void testParallelBroadcast() throws Exception {
+		curTest = "PARALLEL BROADCAST";
+		System.out.println("BEGIN:\t"+curTest);
+		Segment a = new Segment(null, RAND_SEED), b = new Segment(null, RAND_SEED), c = new Segment(null, RAND_SEED);
+		a.addNodes(MAX_SIZE/2, new SyncListener());
+		a.addSegment(b, new SyncListener());
+		a.addSegment(c, new SyncListener());
+		a.migrateNodes(b, MAX_SIZE/6, new SyncListener());
+		a.migrateNodes(c, MAX_SIZE/6, new SyncListener());
+		final Set<Node> visited = Collections.synchronizedSet(new HashSet<Node>());
+		final int[] total = {-1};
+		NodeListener visit = new NodeListener(null, null){
+			@Override
+			public void callback(Node n){
+				assertTrue(visited.add(n));
+			}
+		};
+		NodeListener complete = new NodeListener(null, null){
+			@Override
+			public void callback(Node n, Object count){
+				total[0] = (Integer) count;
+			}
+		};
+		Node start = (Node) c.getSegmentNodes()[0];
+		new ParallelBroadcastVisitor(visit, complete).visit(start);
+		int size = a.getSegmentSize()+b.getSegmentSize()+c.getSegmentSize();
+		assertEquals(MAX_SIZE/2, size);
+		assertEquals(size, total[0]);
+		assertEquals(size, visited.size());
+	}
+	
+	/**
+	 * Test of the reductions; counts and sums over a multi-segment web
+	 */
+	@Test
+	public void testReduce() throws Exception {
+		curTest = "REDUCE";
+		System.out.println("BEGIN:\t"+curTest);
+		Segment a = new Segment(null, RAND_SEED), b = new Segment(null, RAND_SEED);
+		a.addNodes(MAX_SIZE/2, new SyncListener());
+		a.addSegment(b, new SyncListener());
+		a.migrateNodes(b, MAX_SIZE/5, new SyncListener());
+		int count = 0, sum = 0;
+		for (Segment seg: new Segment[]{a, b}){
+			for (Node n: seg.getSegmentNodes()){
+				n.setData("weight", n.getWebId()*3);
+				count++;
+				sum += n.getWebId()*3;
+			}
+		}
+		final Object[] result = new Object[2];
+		ReduceVisitor.count(new NodeListener(null, null){
+			@Override
+			public void callback(Node n, Object value){
+				result[0] = value;
+			}
+		}).visit(b.getSegmentNodes()[0]);
+		ReduceVisitor.sum("weight", new NodeListener(null, null){
+			@Override
+			public void callback(Node n, Object value){
+				result[1] = value;
+			}
+		}).visit(a.getSegmentNodes()[0]);
+		assertEquals(MAX_SIZE/2, count);
+		assertEquals(count, result[0]);
+		assertEquals(sum, result[1]);
+	}
+	
+	/**
+	 * Test of the multicast; targets that share a route are grouped, and each
+	 * keeps its own payload. Missing targets get a null node
+	 */
+	@Test
+	public void testMulticast() throws Exception {
+		curTest = "MULTICAST";
+		System.out.println("BEGIN:\t"+curTest);
+		Segment a = new Segment(null, RAND_SEED), b = new Segment(null, RAND_SEED);
+		final int size = MAX_SIZE/3;
+		a.addNodes(size, new SyncListener());
+		a.addSegment(b, new SyncListener());
+		a.migrateNodes(b, size/2, new SyncListener());
+		//Every node, some of them twice, and some that don't exist
+		ArrayList<Integer> targets = new ArrayList();
+		for (int i=0; i<size; i++)
+			targets.add(i);
+		for (int i=0; i<size; i+=7)
+			targets.add(i);
+		for (int i=0; i<10; i++)
+			targets.add(size+i*13);
+		Collections.shuffle(targets, new Random(RAND_SEED));
+		int[] ids = new int[targets.size()];
+		Object[] payloads = new Object[ids.length];
+		for (int i=0; i<ids.length; i++){
+			ids[i] = targets.get(i);
+			payloads[i] = "payload "+ids[i];
+		}
+		final HashMap<Object, Integer> delivered = new HashMap();
+		final int[] missing = {0};
+		new MulticastVisitor(ids, payloads, new NodeListener(null, null){
+			@Override
+			public void callback(Node n, Object payload){
+				if (n == null){
+					missing[0]++;
+					assertTrue(Integer.parseInt(((String) payload).substring(8)) >= size);
+					return;
+				}
+				assertEquals("payload "+n.getWebId(), payload);
+				Integer count = delivered.get(payload);
+				delivered.put(payload, count == null ? 1 : count+1);
+			}
+		}).visit(b.getSegmentNodes()[0]);
+		assertEquals(10, missing[0]);
+		assertEquals(size, delivered.size());
+		for (int i=0; i<size; i++)
+			assertEquals(i % 7 == 0 ? 2 : 1, (int) delivered.get("payload "+i));
+		//Without payloads, the node is passed alone
+		final int[] found = {0, 0};
+		new MulticastVisitor(new int[]{0, size-1, size+5}, new NodeListener(null, null){
+			@Override
+			public void callback(Node n){
+				found[n == null ? 1 : 0]++;
+			}
+		}).visit(a.getSegmentNodes()[0]);
+		assertEquals(2, found[0]);
+		assertEquals(1, found[1]);
+	}
+	
+	/**
+	 * Test of storing a segment in SQLite, querying and reloading it
+	 */
+	@Test
+	public void testSQLStore() throws Exception {
+		curTest = "SQL STORE";
+		System.out.println("BEGIN:\t"+curTest);
+		File dir = Files.createTempDirectory("segment").toFile();
+		String db = new File(dir, "segment.db").getPath(),
+			sqlite = new File(dir, "segment.sqlite").getPath();
+		Segment saved = Segment.newSegment(db, RAND_SEED);
+		saved.addNodes(MAX_SIZE/2, new SyncListener());
+		SegmentSQL store = SegmentDB.store(saved, sqlite);
+		//Changes after the segment is stored are written incrementally
+		saved.addNodes(MAX_SIZE/2, new SyncListener());
+		saved.removeNode(saved.getLastSegmentNode().getWebId(), new SyncListener());
+		((Node) saved.nodes.get(5)).setData("color", "red");
+		SegmentDB.sync(saved);
+		assertEquals(saved.getSegmentSize(), store.getNodesBySegment(db).size());
+		assertEquals("[5]", store.getNodesByAttribute("color", "red").toString());
+		Node zero = (Node) saved.nodes.get(0);
+		assertEquals(zero.L.getNeighbors().length, store.getLinks(0, SegmentSQL.NEIGHBOR).size());
+		int height = zero.getHeight(), count = 0;
+		for (Object n: saved.nodes.values())
+			if (((Node) n).getHeight() == height)
+				count++;
+		assertEquals(count, store.getNodesByHeight(height).size());
+		store.close();
+		saved.log.close();
+		Segment.segmentList.remove(saved);
+		Segment loaded = SegmentDB.load(sqlite, db);
+		assertEquals(saved.nodes.keySet(), loaded.nodes.keySet());
+		assertEquals(saved.UID, loaded.UID);
+		for (Object id: saved.nodes.keySet())
+			assertEquals(((Node) saved.nodes.get(id)).UID, ((Node) loaded.nodes.get(id)).UID);
+		assertEquals("red", ((Node) loaded.nodes.get(5)).getData("color"));
+		assertTrue((new Validator(loaded.getCache())).validate());
+		loaded.sql.close();
+		loaded.log.close();
+		Segment.segmentList.remove(loaded);
+		//A segment's rows are kept under its dbname, so it must have one
+		Segment unnamed = new Segment(null, RAND_SEED);
+		try{
+			SegmentDB.store(unnamed, sqlite);
+			fail("Stored a segment without a dbname");
+		} catch (IllegalArgumentException e){}
+		for (File f: dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
 	/**
 	 * Test of removeNode method (from zero, every time)
 	 */
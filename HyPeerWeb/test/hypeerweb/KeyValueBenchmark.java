@@ -0,0 +1,92 @@
+package hypeerweb;
+
+import communicator.NodeListener;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the throughput of the key-value store on a large local HyPeerWeb,
+ * storing and retrieving keys one at a time (Segment.put/get), and in batches
+ * of increasing size (Segment.putAll/getAll), which route each group of keys
+ * with the same owner only once.
+ * Run with: java hypeerweb.KeyValueBenchmark [size] [keys]
+ */
+public class KeyValueBenchmark {
+	private static final int RAND_SEED = 5;
+	private static final int[] BATCH_SIZES = {16, 256, 4096};
+
+	public static void main(String[] args){
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 16,
+			keys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		Segment web = new Segment(null, RAND_SEED);
+		web.addNodes(size, new SyncListener());
+		System.out.println("HyPeerWeb size: "+size+", keys: "+keys);
+		//Run each twice, so the second run is measured after warming up
+		for (int run=0; run<2; run++){
+			Results puts = new Results(), gets = new Results();
+			long start = System.nanoTime();
+			for (int i=0; i<keys; i++)
+				web.put("key"+i, i, puts);
+			report("put", keys, start);
+			start = System.nanoTime();
+			for (int i=0; i<keys; i++)
+				web.get("key"+i, gets);
+			report("get", keys, start);
+			check(puts, gets, keys);
+			for (int batch: BATCH_SIZES){
+				puts = new Results();
+				gets = new Results();
+				start = System.nanoTime();
+				for (int i=0; i<keys; i+=batch){
+					HashMap<String, Object> entries = new HashMap();
+					for (int j=i; j<Math.min(i+batch, keys); j++)
+						entries.put("key"+j, j);
+					web.putAll(entries, puts);
+				}
+				report("putAll ("+batch+")", keys, start);
+				start = System.nanoTime();
+				for (int i=0; i<keys; i+=batch){
+					String[] names = new String[Math.min(batch, keys-i)];
+					for (int j=0; j<names.length; j++)
+						names[j] = "key"+(i+j);
+					web.getAll(names, gets);
+				}
+				report("getAll ("+batch+")", keys, start);
+				check(puts, gets, keys);
+			}
+		}
+	}
+	private static void report(String name, int keys, long start){
+		long elapsed = System.nanoTime()-start;
+		System.out.println(name+":\t"+(keys*1000000000L/Math.max(elapsed, 1))+" ops/s");
+	}
+	private static void check(Results puts, Results gets, int keys){
+		if (puts.values != keys || gets.values != keys)
+			throw new AssertionError("Expected "+keys+" results, but got "+puts.values+" puts, "+gets.values+" gets");
+		if (gets.found != keys)
+			throw new AssertionError("Only found "+gets.found+" of "+keys+" keys");
+	}
+
+	/**
+	 * Counts the results, and how many of them had a value
+	 */
+	private static class Results extends NodeListener{
+		public int values, found;
+		public Results(){
+			super(null, null);
+		}
+		@Override
+		public void callback(Node n, Object result){
+			if (result instanceof Map){
+				for (Object value: ((Map) result).values())
+					count(value);
+			}
+			else count(result);
+		}
+		private void count(Object value){
+			values++;
+			if (value != null)
+				found++;
+		}
+	}
+}
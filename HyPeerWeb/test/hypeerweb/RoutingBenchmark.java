@@ -0,0 +1,110 @@
+package hypeerweb;
+
+import hypeerweb.visitors.SendVisitor;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures hop latency of SendVisitor routing on a large local HyPeerWeb,
+ * comparing the routing table (Node.getCloserNode) to scoring every
+ * link (Node.scanCloserNode). Routing is then repeated on many threads at once,
+ * with and without a writer adding and removing nodes in the background.
+ * Run with: java hypeerweb.RoutingBenchmark [size] [sends] [threads]
+ */
+public class RoutingBenchmark {
+	private static final int RAND_SEED = 5;
+
+	public static void main(String[] args) throws InterruptedException{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20,
+			sends = args.length > 1 ? Integer.parseInt(args[1]) : 200000,
+			threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		final Segment web = new Segment(null, RAND_SEED);
+		web.addNodes(size, new SyncListener());
+		Node[] nodes = (Node[]) web.nodes.values().toArray(new Node[size]);
+		Random r = new Random(RAND_SEED);
+		int[] from = new int[sends], to = new int[sends];
+		for (int i=0; i<sends; i++){
+			from[i] = r.nextInt(size);
+			to[i] = r.nextInt(size);
+		}
+		System.out.println("HyPeerWeb size: "+size+", sends: "+sends);
+		//Run each twice, so the second run is measured after warming up
+		for (int run=0; run<2; run++){
+			measure("routing table", nodes, from, to, true);
+			measure("scan all links", nodes, from, to, false);
+		}
+		long start = System.nanoTime();
+		for (int i=0; i<sends; i++)
+			new SendVisitor(to[i], new SyncListener()).visit(nodes[from[i]]);
+		System.out.println("SendVisitor:\t"+(System.nanoTime()-start)/sends+" ns/send");
+		//Routing only reads links, so it should scale with the number of threads
+		for (int t: new int[]{1, threads})
+			measureConcurrent(t, nodes, from, to, null);
+		//Keep adding and removing the last node, while the readers route
+		measureConcurrent(threads, nodes, from, to, new Thread(){
+			@Override
+			public void run(){
+				while (!isInterrupted()){
+					web.addNode(new Node(0, 0), new SyncListener());
+					web.removeNode(web.getLastSegmentNode().getWebId(), new SyncListener());
+				}
+			}
+		});
+	}
+	private static void measureConcurrent(
+		int threads, final Node[] nodes, final int[] from, final int[] to, Thread writer
+	) throws InterruptedException{
+		final AtomicLong hops = new AtomicLong(), failed = new AtomicLong();
+		Thread[] readers = new Thread[threads];
+		for (int t=0; t<threads; t++){
+			final int offset = t;
+			readers[t] = new Thread(){
+				@Override
+				public void run(){
+					long count = 0;
+					for (int i=0; i<from.length; i++){
+						int k = (i+offset*7919) % from.length;
+						Node n = nodes[from[k]];
+						//With a writer, a route may run into a node that is being removed
+						for (int limit=64; n != null && n.getWebId() != to[k] && limit > 0; limit--){
+							n = n.getCloserNode(to[k], false);
+							count++;
+						}
+						if (n == null || n.getWebId() != to[k])
+							failed.incrementAndGet();
+					}
+					hops.addAndGet(count);
+				}
+			};
+		}
+		if (writer != null)
+			writer.start();
+		long start = System.nanoTime();
+		for (Thread r: readers)
+			r.start();
+		for (Thread r: readers)
+			r.join();
+		long elapsed = System.nanoTime()-start;
+		if (writer != null){
+			writer.interrupt();
+			writer.join();
+		}
+		System.out.println(threads+" threads"+(writer == null ? "" : " + writer")+":\t"+
+			(elapsed/Math.max(hops.get(), 1))+" ns/hop (wall clock), "+failed.get()+" failed routes");
+	}
+	private static void measure(String name, Node[] nodes, int[] from, int[] to, boolean useTable){
+		long hops = 0, start = System.nanoTime();
+		for (int i=0; i<from.length; i++){
+			Node n = nodes[from[i]];
+			while (n != null && n.getWebId() != to[i]){
+				n = useTable ? n.getCloserNode(to[i], false) : n.scanCloserNode(to[i], false);
+				hops++;
+			}
+			if (n == null)
+				throw new AssertionError("Could not route from "+from[i]+" to "+to[i]);
+		}
+		long elapsed = System.nanoTime()-start;
+		System.out.println(name+":\t"+(elapsed/Math.max(hops, 1))+" ns/hop, "+
+			((double) hops/from.length)+" hops/send");
+	}
+}